@@ -23,17 +23,17 @@ Map processMarketplaceMessage() {
         String intent = analyzeIntent(message)
         String aiResponse = generateAIResponse(message, intent, merchantId)
 
-        // 保存对话记录
-        ec.service.sync().name("create#mcp.dialog.McpDialogMessage").parameters([
+        // 保存对话记录（异步批量落库）
+        org.moqui.mcp.McpMessageWriter.getInstance(ec).enqueue([
             sessionId: sessionId,
-            messageId: "MSG_${System.currentTimeMillis()}",
+            messageId: org.moqui.mcp.McpIdAllocator.nextId("MSG"),
             message: message,
             aiResponse: aiResponse,
             intent: intent,
             messageType: "user",
             processedDate: ec.user.nowTimestamp,
             merchantId: merchantId
-        ]).disableAuthz().call()
+        ])
 
         return [
             success: true,
@@ -93,7 +93,7 @@ Map createMarketplaceSession() {
     System.out.println("=== GROOVY SERVICE CALLED! ===")
     System.err.println("=== GROOVY SERVICE CALLED! ===")
 
-    String sessionId = context.sessionId ?: ("MKT_SESSION_" + System.currentTimeMillis())
+    String sessionId = context.sessionId ?: org.moqui.mcp.McpIdAllocator.nextId("MKT")
     String merchantId = context.merchantId
 
     ec.logger.info("=== DEBUG createMarketplaceSession ===")
@@ -185,7 +185,13 @@ Map updateMarketplaceSession() {
 
     // 添加可选更新字段
     if (context.currentPhase) updateParams.currentPhase = context.currentPhase
-    if (context.context) updateParams.context = context.context
+    if (context.context) {
+        // 整体改写 context 时递增版本，使会话状态存储中的缓存与待写修改重新基于新内容
+        def current = ec.entity.find("mcp.dialog.McpDialogSession").condition("sessionId", sessionId)
+            .selectField("contextVersion").one()
+        updateParams.context = context.context
+        updateParams.contextVersion = (current?.contextVersion ?: 0L) + 1
+    }
     if (context.status) updateParams.status = context.status
     if (context.lastListingId) updateParams.lastListingId = context.lastListingId
     if (context.preferredCategories) updateParams.preferredCategories = context.preferredCategories
@@ -193,6 +199,7 @@ Map updateMarketplaceSession() {
     ec.service.sync().name("update#McpDialogSession")
         .parameters(updateParams)
         .call()
+    if (context.context) org.moqui.mcp.McpSessionStateStore.invalidateAfterCommit(ec, sessionId)
 
     return [
         sessionId: sessionId,
@@ -353,32 +360,17 @@ Map analyzeMerchantBehavior() {
     }
 
     try {
-        // 计算时间范围
-        Date fromDate = new Date(System.currentTimeMillis() - (days * 24 * 60 * 60 * 1000L))
-
-        // 统计发布数量
-        Long supplyCount = ec.entity.find("marketplace.listing.Listing")
-            .condition("publisherId", merchantId)
-            .condition("listingType", "SUPPLY")
-            .condition("createdDate", EntityCondition.GREATER_THAN_EQUAL_TO, fromDate)
-            .count()
-
-        Long demandCount = ec.entity.find("marketplace.listing.Listing")
-            .condition("publisherId", merchantId)
-            .condition("listingType", "DEMAND")
-            .condition("createdDate", EntityCondition.GREATER_THAN_EQUAL_TO, fromDate)
-            .count()
-
-        // 统计对话次数
-        Long chatCount = ec.entity.find("McpDialogMessage")
-            .condition([
-                "sessionId", EntityCondition.IN,
-                ec.entity.find("McpDialogSession")
-                    .condition("merchantId", merchantId)
-                    .getFieldList("sessionId")
-            ])
-            .condition("processedDate", EntityCondition.GREATER_THAN_EQUAL_TO, fromDate)
-            .count()
+        // 计算时间范围：含今天在内的最近 days 个自然日
+        java.sql.Date fromDate = java.sql.Date.valueOf(java.time.LocalDate.now().minusDays(days - 1))
+
+        // 读取每日汇总行（最多 days 行），不再扫描 Listing 与对话原始表
+        def dailyRows = ec.entity.find("mcp.analytics.McpMerchantDailyActivity")
+            .condition("merchantId", merchantId)
+            .condition("activityDate", EntityCondition.GREATER_THAN_EQUAL_TO, fromDate)
+            .list()
+        Long supplyCount = dailyRows.sum(0L) { (it.supplyCount ?: 0L) as Long } as Long
+        Long demandCount = dailyRows.sum(0L) { (it.demandCount ?: 0L) as Long } as Long
+        Long chatCount = dailyRows.sum(0L) { (it.chatTurnCount ?: 0L) as Long } as Long
 
         // 计算活跃度分数
         double activityScore = (supplyCount + demandCount) * 10 + chatCount * 2
@@ -284,30 +284,14 @@ private boolean sendMessageToRocketChatChannel(String channelId, String message)
  * 创建或获取marketplace会话
  */
 private String getOrCreateMarketplaceSession(String userId, String userName) {
+    // 每个Rocket.Chat用户对应固定会话，Party与会话由会话引导一次解析/创建
+    String sessionId = "rocketchat_${userId}"
     try {
-        // 尝试查找现有会话
-        Map<String, Object> findResult = context.ec.service.sync().name("moqui.mcp.McpServices.find#DialogSession")
-            .parameter("externalUserId", userId)
-            .parameter("sessionType", "MARKETPLACE")
-            .call()
-
-        if (findResult.session) {
-            Map<String, Object> session = findResult.session
-            return session.sessionId
-        }
-
-        // 创建新会话
-        Map<String, Object> createResult = context.ec.service.sync().name("moqui.mcp.create#MarketplaceSession")
-            .parameter("merchantId", userId)
-            .parameter("initialContext", "Rocket.Chat User: " + userName)
-            .call()
-
-        return createResult.sessionId
-
+        new org.moqui.mcp.McpSessionBootstrap(context.ec).resolve(sessionId, userId, "MARKETPLACE", "marketplace", null)
     } catch (Exception e) {
-        logger.error("Error managing marketplace session for user ${userId}", e)
-        return "session_${userId}_${System.currentTimeMillis()}"
+        logger.error("Error managing marketplace session for user ${userId} (${userName})", e)
     }
+    return sessionId
 }
 
 /**
@@ -15,8 +15,12 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.math.BigDecimal;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -61,6 +65,8 @@ public class MarketplaceMcpService {
     private static final String CLAUDE_MESSAGES_PATH = "/v1/messages";
     private static final String OPENAI_CHAT_COMPLETIONS_PATH = "/v1/chat/completions";
     private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+    /** 按连接超时共享的 HttpClient；每个 HttpClient 有自己的选择器线程和连接池，不随服务实例创建 */
+    private static final Map<Duration, HttpClient> HTTP_CLIENTS = new ConcurrentHashMap<>();
     private static final String DEFAULT_SYSTEM_PROMPT =
         "你是一个专业的农贸市场AI助手，帮助商家进行智能供需撮合。你需要保持礼貌、简洁，" +
         "引导用户提供必要信息，并在可能的情况下调用平台服务完成供需发布、匹配、统计等任务。";
@@ -79,9 +85,9 @@ public class MarketplaceMcpService {
         this.requestTimeout = Duration.ofSeconds(parseInt(resolveConfig("marketplace.ai.timeout.seconds", "30"), 30));
         this.systemPrompt = resolveConfig("marketplace.ai.system.prompt", DEFAULT_SYSTEM_PROMPT);
 
-        this.httpClient = HttpClient.newBuilder()
-                .connectTimeout(requestTimeout)
-                .build();
+        this.httpClient = HTTP_CLIENTS.computeIfAbsent(requestTimeout, timeout -> HttpClient.newBuilder()
+                .connectTimeout(timeout)
+                .build());
         // this.matchingEngine = new SmartMatchingEngine(ec);
     }
 
@@ -98,8 +104,9 @@ public class MarketplaceMcpService {
         logger.info("Processing marketplace message for session: {}, merchant: {}, type: {}", sessionId, merchantId, messageType);
 
         try {
-            // 获取或创建会话
-            EntityValue session = getOrCreateSession(sessionId, merchantId);
+            // 渠道已解析的会话直接复用，否则获取或创建会话
+            EntityValue session = context.get("session") instanceof EntityValue ?
+                (EntityValue) context.get("session") : getOrCreateSession(sessionId, merchantId);
 
             // 处理非文本消息类型
             if (!"text".equals(messageType)) {
@@ -285,10 +292,15 @@ public class MarketplaceMcpService {
             }
 
             // ✅ 优先尝试真实API - 首先下载语音文件
-            String audioUrl = downloadTelegramAudioFile(fileId);
+            String audioUrl = downloadTelegramAudioFile(fileId, (String) attachmentInfo.get("fileUniqueId"));
             if (audioUrl != null) {
                 logger.info("🔊 Audio download successful, trying real speech-to-text APIs...");
 
+                // 同一语音（file_unique_id 或内容相同）转写过时直接返回缓存结果
+                String[] contentHash = new String[1];
+                String cached = lookupMediaAnalysis(McpMediaAnalysisCache.TYPE_SPEECH, attachmentInfo, contentHash);
+                if (cached != null) return cached;
+
                 // 尝试多种语音转文字服务 - 支持中英文双语
                 String transcription = null;
 
@@ -296,6 +308,7 @@ public class MarketplaceMcpService {
                 transcription = transcribeWithZhipuSpeech(audioUrl);
                 if (transcription != null) {
                     logger.info("Successfully transcribed with Zhipu Speech API");
+                    storeMediaAnalysis(McpMediaAnalysisCache.TYPE_SPEECH, attachmentInfo, contentHash[0], "zhipu", transcription);
                     return transcription;
                 }
 
@@ -303,6 +316,7 @@ public class MarketplaceMcpService {
                 transcription = transcribeWithBaiduMultilingual(audioUrl);
                 if (transcription != null) {
                     logger.info("Successfully transcribed with Baidu Speech API (multilingual)");
+                    storeMediaAnalysis(McpMediaAnalysisCache.TYPE_SPEECH, attachmentInfo, contentHash[0], "baidu", transcription);
                     return transcription;
                 }
 
@@ -310,6 +324,7 @@ public class MarketplaceMcpService {
                 transcription = transcribeWithAliyunMultilingual(audioUrl);
                 if (transcription != null) {
                     logger.info("Successfully transcribed with Aliyun Speech");
+                    storeMediaAnalysis(McpMediaAnalysisCache.TYPE_SPEECH, attachmentInfo, contentHash[0], "aliyun", transcription);
                     return transcription;
                 }
 
@@ -479,17 +494,18 @@ public class MarketplaceMcpService {
             }
 
             // 下载音频文件
-            byte[] audioData = downloadAudioFile(audioUrl);
-            if (audioData == null) {
-                logger.warn("Failed to download audio file for Zhipu transcription");
+            try (McpMediaFile audioFile = downloadAudioFile(audioUrl)) {
+                if (audioFile == null) {
+                    logger.warn("Failed to download audio file for Zhipu transcription");
+                    return null;
+                }
+
+                // 智普清言语音转文字API目前可能不支持，作为占位符实现
+                // 当智普清言发布语音API时，在此实现具体调用逻辑
+                logger.info("Zhipu Speech API: Not yet available, falling back to next API");
                 return null;
             }
 
-            // 智普清言语音转文字API目前可能不支持，作为占位符实现
-            // 当智普清言发布语音API时，在此实现具体调用逻辑
-            logger.info("Zhipu Speech API: Not yet available, falling back to next API");
-            return null;
-
         } catch (Exception e) {
             logger.error("Error calling Zhipu Speech API", e);
             return null;
@@ -513,56 +529,57 @@ public class MarketplaceMcpService {
             }
 
             // 下载音频文件
-            byte[] audioData = downloadAudioFile(audioUrl);
-            if (audioData == null) {
-                return null;
-            }
-
-            // 构建multipart请求 - 自动检测语言或指定为中英文混合
-            String boundary = "----WebKitFormBoundary" + System.currentTimeMillis();
-            StringBuilder requestBody = new StringBuilder();
-
-            requestBody.append("--").append(boundary).append("\r\n");
-            requestBody.append("Content-Disposition: form-data; name=\"file\"; filename=\"audio.ogg\"\r\n");
-            requestBody.append("Content-Type: audio/ogg\r\n\r\n");
-            // Note: 实际实现中需要将音频数据加入到请求体中
-            requestBody.append("\r\n--").append(boundary).append("\r\n");
-            requestBody.append("Content-Disposition: form-data; name=\"model\"\r\n\r\n");
-            requestBody.append("whisper-1\r\n");
-            requestBody.append("--").append(boundary).append("\r\n");
-            // 不指定特定语言，让Whisper自动检测中英文
-            requestBody.append("Content-Disposition: form-data; name=\"language\"\r\n\r\n");
-            requestBody.append("auto\r\n");
-            requestBody.append("--").append(boundary).append("\r\n");
-            requestBody.append("Content-Disposition: form-data; name=\"prompt\"\r\n\r\n");
-            requestBody.append("This audio may contain Chinese and English mixed content. Please transcribe accurately.\r\n");
-            requestBody.append("--").append(boundary).append("--\r\n");
-
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://api.openai.com/v1/audio/transcriptions"))
-                .header("Authorization", "Bearer " + apiKey)
-                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
-                .timeout(Duration.ofSeconds(60))
-                .build();
-
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-
-            if (response.statusCode() == 200) {
-                Matcher textMatcher = Pattern.compile("\"text\"\\s*:\\s*\"([^\"]+)\"").matcher(response.body());
-                if (textMatcher.find()) {
-                    String transcribedText = unescapeJson(textMatcher.group(1));
-
-                    // 检测和标记语言
-                    String detectedLanguage = detectLanguage(transcribedText);
-                    logger.info("OpenAI Whisper detected language: {}", detectedLanguage);
+            try (McpMediaFile audioFile = downloadAudioFile(audioUrl)) {
+                if (audioFile == null) {
+                    return null;
+                }
 
-                    return transcribedText;
+                // 构建multipart请求 - 自动检测语言或指定为中英文混合
+                String boundary = "----WebKitFormBoundary" + System.currentTimeMillis();
+                StringBuilder requestBody = new StringBuilder();
+
+                requestBody.append("--").append(boundary).append("\r\n");
+                requestBody.append("Content-Disposition: form-data; name=\"file\"; filename=\"audio.ogg\"\r\n");
+                requestBody.append("Content-Type: audio/ogg\r\n\r\n");
+                // Note: 实际实现中需要将音频数据加入到请求体中
+                requestBody.append("\r\n--").append(boundary).append("\r\n");
+                requestBody.append("Content-Disposition: form-data; name=\"model\"\r\n\r\n");
+                requestBody.append("whisper-1\r\n");
+                requestBody.append("--").append(boundary).append("\r\n");
+                // 不指定特定语言，让Whisper自动检测中英文
+                requestBody.append("Content-Disposition: form-data; name=\"language\"\r\n\r\n");
+                requestBody.append("auto\r\n");
+                requestBody.append("--").append(boundary).append("\r\n");
+                requestBody.append("Content-Disposition: form-data; name=\"prompt\"\r\n\r\n");
+                requestBody.append("This audio may contain Chinese and English mixed content. Please transcribe accurately.\r\n");
+                requestBody.append("--").append(boundary).append("--\r\n");
+
+                HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("https://api.openai.com/v1/audio/transcriptions"))
+                    .header("Authorization", "Bearer " + apiKey)
+                    .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                    .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
+                    .timeout(Duration.ofSeconds(60))
+                    .build();
+
+                HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+
+                if (response.statusCode() == 200) {
+                    Matcher textMatcher = Pattern.compile("\"text\"\\s*:\\s*\"([^\"]+)\"").matcher(response.body());
+                    if (textMatcher.find()) {
+                        String transcribedText = unescapeJson(textMatcher.group(1));
+
+                        // 检测和标记语言
+                        String detectedLanguage = detectLanguage(transcribedText);
+                        logger.info("OpenAI Whisper detected language: {}", detectedLanguage);
+
+                        return transcribedText;
+                    }
                 }
-            }
 
-            logger.warn("OpenAI Whisper API failed: HTTP {}", response.statusCode());
-            return null;
+                logger.warn("OpenAI Whisper API failed: HTTP {}", response.statusCode());
+                return null;
+            }
 
         } catch (Exception e) {
             logger.warn("OpenAI Whisper multilingual transcription failed: {}", e.getMessage());
@@ -599,35 +616,40 @@ public class MarketplaceMcpService {
             }
 
             // 下载并转换音频文件
-            byte[] audioData = downloadAudioFile(audioUrl);
-            if (audioData == null) {
-                return null;
-            }
-
-            // 先尝试中文识别
-            String chineseResult = transcribeBaiduWithLanguage(audioData, accessToken, "zh");
+            try (McpMediaFile audioFile = downloadAudioFile(audioUrl)) {
+                if (audioFile == null) {
+                    return null;
+                }
 
-            // 如果中文识别失败或结果为空，尝试英文识别
-            if (chineseResult == null || chineseResult.trim().isEmpty()) {
-                String englishResult = transcribeBaiduWithLanguage(audioData, accessToken, "en");
-                if (englishResult != null) {
-                    logger.info("Baidu Speech detected English content");
-                    return englishResult;
+                // 中文、英文两个识别模型同时调用，纯中文结果先返回时取消英文识别
+                long budget = McpConfig.getLong(ec.getFactory(), "mcp.speech.baidu.budget.millis", 30000L);
+                List<McpProviderFanout.Candidate<String>> candidates = new ArrayList<>();
+                for (String language : new String[] { "zh", "en" }) {
+                    candidates.add(new McpProviderFanout.Candidate<>(language, budget,
+                            () -> transcribeBaiduWithLanguage(audioFile, accessToken, language)));
                 }
-            } else {
-                // 检查是否包含英文内容，如果是混合内容则尝试英文识别作为补充
-                if (containsEnglishWords(chineseResult)) {
-                    String englishResult = transcribeBaiduWithLanguage(audioData, accessToken, "en");
-                    if (englishResult != null && !englishResult.equals(chineseResult)) {
+                Map<String, String> results = McpProviderFanout.getInstance(ec).collect("Baidu speech", candidates,
+                        done -> isConfidentChinese(done.get("zh")), budget);
+                String chineseResult = results.get("zh");
+                String englishResult = results.get("en");
+
+                if (chineseResult == null || chineseResult.trim().isEmpty()) {
+                    if (englishResult != null) {
+                        logger.info("Baidu Speech detected English content");
+                        return englishResult;
+                    }
+                } else {
+                    // 中文结果含英文单词时按中英混合处理，用英文识别结果补充
+                    if (containsEnglishWords(chineseResult) && englishResult != null && !englishResult.equals(chineseResult)) {
                         logger.info("Baidu Speech detected mixed Chinese-English content");
                         return chineseResult + " " + englishResult;
                     }
+                    logger.info("Baidu Speech detected Chinese content");
+                    return chineseResult;
                 }
-                logger.info("Baidu Speech detected Chinese content");
-                return chineseResult;
-            }
 
-            return null;
+                return null;
+            }
 
         } catch (Exception e) {
             logger.warn("Baidu Speech multilingual transcription failed: {}", e.getMessage());
@@ -635,29 +657,35 @@ public class MarketplaceMcpService {
         }
     }
 
+    /**
+     * 中文识别结果可信：非空、以汉字为主且不含英文单词，此时不再需要英文识别结果
+     */
+    private boolean isConfidentChinese(String text) {
+        if (text == null || text.trim().isEmpty() || containsEnglishWords(text)) return false;
+        return "zh".equals(detectLanguage(text));
+    }
+
     /**
      * 百度语音识别 - 指定语言
      */
-    private String transcribeBaiduWithLanguage(byte[] audioData, String accessToken, String language) {
+    private String transcribeBaiduWithLanguage(McpMediaFile audioFile, String accessToken, String language) {
         try {
-            // 构建语音识别请求
-            String requestBody = String.format(
-                "{\"format\":\"wav\",\"rate\":16000,\"channel\":1,\"cuid\":\"moqui-marketplace\",\"token\":\"%s\",\"speech\":\"%s\",\"len\":%d,\"dev_pid\":%s}",
-                accessToken,
-                java.util.Base64.getEncoder().encodeToString(audioData),
-                audioData.length,
-                getLanguagePid(language)
+            // 构建语音识别请求，音频 Base64 按流写入请求体
+            HttpRequest.BodyPublisher requestBody = audioFile.base64Body(
+                String.format("{\"format\":\"wav\",\"rate\":16000,\"channel\":1,\"cuid\":\"moqui-marketplace\",\"token\":\"%s\",\"speech\":\"", accessToken),
+                String.format("\",\"len\":%d,\"dev_pid\":%s}", audioFile.getSize(), getLanguagePid(language))
             );
 
             HttpRequest request = HttpRequest.newBuilder()
                 .uri(URI.create("https://vop.baidu.com/server_api"))
                 .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
+                .POST(requestBody)
                 .timeout(Duration.ofSeconds(30))
                 .build();
 
             HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
 
+            checkBaiduTokenRejected(response.body(), accessToken);
             if (response.statusCode() == 200) {
                 Matcher resultMatcher = Pattern.compile("\"result\"\\s*:\\s*\\[\\s*\"([^\"]+)\"").matcher(response.body());
                 if (resultMatcher.find()) {
@@ -854,46 +882,14 @@ public class MarketplaceMcpService {
     }
 
     /**
-     * 下载Telegram语音文件
+     * 解析Telegram语音文件链接，同一文件经 TelegramMediaCache 只解析、下载一次
      */
-    private String downloadTelegramAudioFile(String fileId) {
-        try {
-            String botToken = resolveConfig("mcp.telegram.bot.token", "");
-            if (botToken.isEmpty()) {
-                logger.warn("Telegram bot token not configured");
-                return null;
-            }
-
-            // 获取文件信息
-            String getFileUrl = "https://api.telegram.org/bot" + botToken + "/getFile?file_id=" + fileId;
-
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(getFileUrl))
-                .GET()
-                .timeout(requestTimeout)
-                .build();
-
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-
-            if (response.statusCode() != 200) {
-                logger.warn("Failed to get file info: HTTP {}", response.statusCode());
-                return null;
-            }
-
-            // 解析响应获取文件路径
-            Matcher pathMatcher = Pattern.compile("\"file_path\"\\s*:\\s*\"([^\"]+)\"").matcher(response.body());
-            if (!pathMatcher.find()) {
-                logger.warn("Could not extract file path from response");
-                return null;
-            }
-
-            String filePath = pathMatcher.group(1);
-            return "https://api.telegram.org/file/bot" + botToken + "/" + filePath;
-
-        } catch (Exception e) {
-            logger.error("Error downloading Telegram audio file", e);
-            return null;
-        }
+    private String downloadTelegramAudioFile(String fileId, String fileUniqueId) {
+        TelegramMediaCache mediaCache = TelegramMediaCache.getInstance(ec);
+        String audioUrl = mediaCache.fileUrl(fileId, fileUniqueId);
+        // 先落到本地缓存，后续各个识别服务都从本地读取
+        if (audioUrl != null) mediaCache.fetch(fileId, fileUniqueId);
+        return audioUrl;
     }
 
     /**
@@ -913,46 +909,47 @@ public class MarketplaceMcpService {
             }
 
             // 下载音频文件
-            byte[] audioData = downloadAudioFile(audioUrl);
-            if (audioData == null) {
-                return null;
-            }
-
-            // 构建multipart请求
-            String boundary = "----WebKitFormBoundary" + System.currentTimeMillis();
-            StringBuilder requestBody = new StringBuilder();
-
-            requestBody.append("--").append(boundary).append("\r\n");
-            requestBody.append("Content-Disposition: form-data; name=\"file\"; filename=\"audio.ogg\"\r\n");
-            requestBody.append("Content-Type: audio/ogg\r\n\r\n");
-            // Note: 实际实现中需要将音频数据加入到请求体中
-            requestBody.append("\r\n--").append(boundary).append("\r\n");
-            requestBody.append("Content-Disposition: form-data; name=\"model\"\r\n\r\n");
-            requestBody.append("whisper-1\r\n");
-            requestBody.append("--").append(boundary).append("\r\n");
-            requestBody.append("Content-Disposition: form-data; name=\"language\"\r\n\r\n");
-            requestBody.append("zh\r\n");
-            requestBody.append("--").append(boundary).append("--\r\n");
-
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://api.openai.com/v1/audio/transcriptions"))
-                .header("Authorization", "Bearer " + apiKey)
-                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
-                .timeout(Duration.ofSeconds(60))
-                .build();
-
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            try (McpMediaFile audioFile = downloadAudioFile(audioUrl)) {
+                if (audioFile == null) {
+                    return null;
+                }
 
-            if (response.statusCode() == 200) {
-                Matcher textMatcher = Pattern.compile("\"text\"\\s*:\\s*\"([^\"]+)\"").matcher(response.body());
-                if (textMatcher.find()) {
-                    return unescapeJson(textMatcher.group(1));
+                // 构建multipart请求
+                String boundary = "----WebKitFormBoundary" + System.currentTimeMillis();
+                StringBuilder requestBody = new StringBuilder();
+
+                requestBody.append("--").append(boundary).append("\r\n");
+                requestBody.append("Content-Disposition: form-data; name=\"file\"; filename=\"audio.ogg\"\r\n");
+                requestBody.append("Content-Type: audio/ogg\r\n\r\n");
+                // Note: 实际实现中需要将音频数据加入到请求体中
+                requestBody.append("\r\n--").append(boundary).append("\r\n");
+                requestBody.append("Content-Disposition: form-data; name=\"model\"\r\n\r\n");
+                requestBody.append("whisper-1\r\n");
+                requestBody.append("--").append(boundary).append("\r\n");
+                requestBody.append("Content-Disposition: form-data; name=\"language\"\r\n\r\n");
+                requestBody.append("zh\r\n");
+                requestBody.append("--").append(boundary).append("--\r\n");
+
+                HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("https://api.openai.com/v1/audio/transcriptions"))
+                    .header("Authorization", "Bearer " + apiKey)
+                    .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                    .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
+                    .timeout(Duration.ofSeconds(60))
+                    .build();
+
+                HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+
+                if (response.statusCode() == 200) {
+                    Matcher textMatcher = Pattern.compile("\"text\"\\s*:\\s*\"([^\"]+)\"").matcher(response.body());
+                    if (textMatcher.find()) {
+                        return unescapeJson(textMatcher.group(1));
+                    }
                 }
-            }
 
-            logger.warn("OpenAI Whisper API failed: HTTP {}", response.statusCode());
-            return null;
+                logger.warn("OpenAI Whisper API failed: HTTP {}", response.statusCode());
+                return null;
+            }
 
         } catch (Exception e) {
             logger.warn("OpenAI Whisper transcription failed: {}", e.getMessage());
@@ -989,37 +986,37 @@ public class MarketplaceMcpService {
             }
 
             // 下载并转换音频文件
-            byte[] audioData = downloadAudioFile(audioUrl);
-            if (audioData == null) {
-                return null;
-            }
+            try (McpMediaFile audioFile = downloadAudioFile(audioUrl)) {
+                if (audioFile == null) {
+                    return null;
+                }
 
-            // 构建语音识别请求
-            String requestBody = String.format(
-                "{\"format\":\"wav\",\"rate\":16000,\"channel\":1,\"cuid\":\"moqui-marketplace\",\"token\":\"%s\",\"speech\":\"%s\",\"len\":%d}",
-                accessToken,
-                java.util.Base64.getEncoder().encodeToString(audioData),
-                audioData.length
-            );
+                // 构建语音识别请求
+                HttpRequest.BodyPublisher requestBody = audioFile.base64Body(
+                    String.format("{\"format\":\"wav\",\"rate\":16000,\"channel\":1,\"cuid\":\"moqui-marketplace\",\"token\":\"%s\",\"speech\":\"", accessToken),
+                    String.format("\",\"len\":%d}", audioFile.getSize())
+                );
 
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://vop.baidu.com/server_api"))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .timeout(Duration.ofSeconds(30))
-                .build();
+                HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("https://vop.baidu.com/server_api"))
+                    .header("Content-Type", "application/json")
+                    .POST(requestBody)
+                    .timeout(Duration.ofSeconds(30))
+                    .build();
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
 
-            if (response.statusCode() == 200) {
-                Matcher resultMatcher = Pattern.compile("\"result\"\\s*:\\s*\\[\\s*\"([^\"]+)\"").matcher(response.body());
-                if (resultMatcher.find()) {
-                    return unescapeJson(resultMatcher.group(1));
+                checkBaiduTokenRejected(response.body(), accessToken);
+                if (response.statusCode() == 200) {
+                    Matcher resultMatcher = Pattern.compile("\"result\"\\s*:\\s*\\[\\s*\"([^\"]+)\"").matcher(response.body());
+                    if (resultMatcher.find()) {
+                        return unescapeJson(resultMatcher.group(1));
+                    }
                 }
-            }
 
-            logger.warn("Baidu Speech API failed: HTTP {}", response.statusCode());
-            return null;
+                logger.warn("Baidu Speech API failed: HTTP {}", response.statusCode());
+                return null;
+            }
 
         } catch (Exception e) {
             logger.warn("Baidu Speech transcription failed: {}", e.getMessage());
@@ -1061,61 +1058,45 @@ public class MarketplaceMcpService {
     }
 
     /**
-     * 获取百度API的access token
+     * 获取百度API的access token，经 McpAccessTokenManager 缓存到过期前，不再每次调用都换取
      */
     private String getBaiduAccessToken(String apiKey, String secretKey) {
-        try {
-            String tokenUrl = String.format(
-                "https://aip.baidubce.com/oauth/2.0/token?grant_type=client_credentials&client_id=%s&client_secret=%s",
-                apiKey, secretKey
-            );
-
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(tokenUrl))
-                .GET()
-                .timeout(requestTimeout)
-                .build();
-
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-
-            if (response.statusCode() == 200) {
-                Matcher tokenMatcher = Pattern.compile("\"access_token\"\\s*:\\s*\"([^\"]+)\"").matcher(response.body());
-                if (tokenMatcher.find()) {
-                    return tokenMatcher.group(1);
-                }
-            }
-
-            logger.warn("Failed to get Baidu access token: HTTP {}", response.statusCode());
-            return null;
+        return McpAccessTokenManager.getInstance(ec).getToken("baidu", apiKey, secretKey);
+    }
 
-        } catch (Exception e) {
-            logger.error("Error getting Baidu access token", e);
-            return null;
+    /**
+     * 百度返回 token 无效或过期（语音 err_no 3302，图像 error_code 110/111）时作废缓存，下次重新换取
+     */
+    private void checkBaiduTokenRejected(String responseBody, String accessToken) {
+        if (responseBody != null && Pattern.compile("\"(err_no\"\\s*:\\s*3302|error_code\"\\s*:\\s*11[01])\\b").matcher(responseBody).find()) {
+            logger.warn("Baidu rejected cached access token, it will be exchanged again");
+            McpAccessTokenManager.getInstance(ec).invalidate(accessToken);
         }
     }
 
     /**
-     * 下载音频文件
+     * 下载音频文件，调用方负责关闭以删除临时文件
      */
-    private byte[] downloadAudioFile(String audioUrl) {
-        try {
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(audioUrl))
-                .GET()
-                .timeout(Duration.ofSeconds(30))
-                .build();
-
-            HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    private McpMediaFile downloadAudioFile(String audioUrl) {
+        return openMediaFile(audioUrl, "audio");
+    }
 
-            if (response.statusCode() == 200) {
-                return response.body();
-            }
+    /**
+     * 打开媒体文件：TelegramMediaCache 中已有的直接使用本地文件，否则限长流式下载到临时文件，
+     * 超过 mcp.media.max.bytes 的文件不再下载，避免整文件读入内存
+     */
+    private McpMediaFile openMediaFile(String url, String kind) {
+        try {
+            Path cached = TelegramMediaCache.getInstance(ec).pathForUrl(url);
+            if (cached != null) return McpMediaFile.local(cached);
 
-            logger.warn("Failed to download audio file: HTTP {}", response.statusCode());
-            return null;
+            long maxBytes = McpConfig.getLong(ec.getFactory(), "mcp.media.max.bytes", 20L * 1024 * 1024);
+            McpMediaFile file = McpMediaFile.download(httpClient, url, maxBytes, Duration.ofSeconds(30));
+            if (file == null) logger.warn("Failed to download {} file: {}", kind, url);
+            return file;
 
         } catch (Exception e) {
-            logger.error("Error downloading audio file", e);
+            logger.error("Error downloading " + kind + " file", e);
             return null;
         }
     }
@@ -1193,39 +1174,20 @@ public class MarketplaceMcpService {
             logger.info("🖼️ analyzeImageContent called with fileId: '{}'", fileId);
 
             // ✅ 优先尝试真实API - 首先下载图片文件
-            String imageUrl = downloadTelegramImageFile(fileId);
+            String imageUrl = downloadTelegramImageFile(fileId, (String) attachmentInfo.get("fileUniqueId"));
             if (imageUrl != null) {
                 logger.info("🖼️ Image download successful, trying real image recognition APIs...");
 
-                // 尝试多种图片识别服务
-                String analysis = null;
-
-                // 1. 尝试智普清言视觉识别API (首选，用户配置的API)
-                analysis = analyzeWithZhipuVision(imageUrl);
-                if (analysis != null) {
-                    logger.info("Successfully analyzed with Zhipu Vision API");
-                    return analysis;
-                }
-
-                // 2. 尝试百度图像识别API (中文场景优化)
-                analysis = analyzeWithBaiduImageRecognition(imageUrl);
-                if (analysis != null) {
-                    logger.info("Successfully analyzed with Baidu Image Recognition");
-                    return analysis;
-                }
+                // 同一图片（file_unique_id 或内容相同）识别过时直接返回缓存结果
+                String[] contentHash = new String[1];
+                String cached = lookupMediaAnalysis(McpMediaAnalysisCache.TYPE_IMAGE, attachmentInfo, contentHash);
+                if (cached != null) return cached;
 
-                // 3. 尝试阿里云视觉智能API
-                analysis = analyzeWithAliyunVision(imageUrl);
+                // 并发调用多种图片识别服务，取第一个可用结果
+                Map.Entry<String, String> analysis = analyzeWithVisionProviders(imageUrl, attachmentInfo);
                 if (analysis != null) {
-                    logger.info("Successfully analyzed with Aliyun Vision API");
-                    return analysis;
-                }
-
-                // 4. 尝试Google Cloud Vision API
-                analysis = analyzeWithGoogleVision(imageUrl);
-                if (analysis != null) {
-                    logger.info("Successfully analyzed with Google Cloud Vision");
-                    return analysis;
+                    storeMediaAnalysis(McpMediaAnalysisCache.TYPE_IMAGE, attachmentInfo, contentHash[0], analysis.getKey(), analysis.getValue());
+                    return analysis.getValue();
                 }
 
                 logger.warn("All real image recognition APIs failed, falling back to demo mode");
@@ -1251,46 +1213,75 @@ public class MarketplaceMcpService {
     }
 
     /**
-     * 下载Telegram图片文件
+     * 图片识别服务商扇出：按 mcp.vision.providers 的顺序错开启动（mcp.vision.stagger.millis，0 为同时启动，
+     * 负数为逐个顺序尝试），第一个可用结果返回后取消其余调用；每个服务商受 mcp.vision.<provider>.budget.millis 限制。
+     * 返回 (服务商, 识别结果)，全部失败时返回 null
      */
-    private String downloadTelegramImageFile(String fileId) {
-        try {
-            String botToken = resolveConfig("mcp.telegram.bot.token", "");
-            if (botToken.isEmpty()) {
-                logger.warn("Telegram bot token not configured");
-                return null;
+    private Map.Entry<String, String> analyzeWithVisionProviders(String imageUrl, Map<String, Object> attachmentInfo) throws InterruptedException {
+        ExecutionContextFactory ecf = ec.getFactory();
+        long defaultBudget = McpConfig.getLong(ecf, "mcp.vision.budget.millis", 20000L);
+        List<McpProviderFanout.Candidate<Map.Entry<String, String>>> candidates = new ArrayList<>();
+        for (String provider : McpConfig.get(ecf, "mcp.vision.providers", "zhipu,baidu,aliyun,google").split(",")) {
+            provider = provider.trim();
+            long budget = McpConfig.getLong(ecf, "mcp.vision." + provider + ".budget.millis", defaultBudget);
+            switch (provider) {
+                case "zhipu": candidates.add(visionCandidate(provider, budget, () -> analyzeWithZhipuVision(imageUrl, attachmentInfo))); break;
+                case "baidu": candidates.add(visionCandidate(provider, budget, () -> analyzeWithBaiduImageRecognition(imageUrl, attachmentInfo))); break;
+                case "aliyun": candidates.add(visionCandidate(provider, budget, () -> analyzeWithAliyunVision(imageUrl))); break;
+                case "google": candidates.add(visionCandidate(provider, budget, () -> analyzeWithGoogleVision(imageUrl, attachmentInfo))); break;
+                case "openai": candidates.add(visionCandidate(provider, budget, () -> analyzeWithOpenAIVision(imageUrl))); break;
+                default: if (!provider.isEmpty()) logger.warn("Unknown vision provider in mcp.vision.providers: {}", provider);
             }
+        }
+        return McpProviderFanout.getInstance(ec).firstSuccess("Image recognition", candidates,
+                result -> result.getValue() != null && !result.getValue().trim().isEmpty(),
+                McpConfig.getLong(ecf, "mcp.vision.stagger.millis", 0L),
+                McpConfig.getLong(ecf, "mcp.vision.total.budget.millis", 45000L));
+    }
 
-            // 获取文件信息
-            String getFileUrl = "https://api.telegram.org/bot" + botToken + "/getFile?file_id=" + fileId;
-
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(getFileUrl))
-                .GET()
-                .timeout(requestTimeout)
-                .build();
-
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    private static McpProviderFanout.Candidate<Map.Entry<String, String>> visionCandidate(String provider, long budget,
+                                                                                        Callable<String> call) {
+        return new McpProviderFanout.Candidate<>(provider, budget, () -> new AbstractMap.SimpleImmutableEntry<>(provider, call.call()));
+    }
 
-            if (response.statusCode() != 200) {
-                logger.warn("Failed to get image file info: HTTP {}", response.statusCode());
-                return null;
-            }
+    /**
+     * 识别结果缓存使用的服务商版本，模型名参与版本，换模型后旧结果不再命中
+     */
+    private String analysisProviderVersion(String analysisType, String provider) {
+        String model = null;
+        if (McpMediaAnalysisCache.TYPE_IMAGE.equals(analysisType) && "zhipu".equals(provider)) {
+            model = getDefaultProperty("image.recognition.zhipu.model");
+            if (model == null || model.isEmpty()) model = "glm-4v-plus";
+        }
+        return McpMediaAnalysisCache.providerVersion(ec.getFactory(), analysisType, provider, model);
+    }
 
-            // 解析响应获取文件路径
-            Matcher pathMatcher = Pattern.compile("\"file_path\"\\s*:\\s*\"([^\"]+)\"").matcher(response.body());
-            if (!pathMatcher.find()) {
-                logger.warn("Could not extract image file path from response");
-                return null;
-            }
+    /**
+     * 按 file_unique_id、再按内容哈希查找缓存的识别结果；contentHash 只在 file_unique_id 未命中时计算，通过 hashHolder 带回给调用方保存结果时使用
+     */
+    private String lookupMediaAnalysis(String analysisType, Map<String, Object> attachmentInfo, String[] hashHolder) {
+        String fileId = (String) attachmentInfo.get("fileId");
+        String fileUniqueId = (String) attachmentInfo.get("fileUniqueId");
+        Function<String, String> version = provider -> analysisProviderVersion(analysisType, provider);
+        String cached = McpMediaAnalysisCache.lookup(ec, analysisType, fileUniqueId, null, version);
+        if (cached != null) return cached;
+        hashHolder[0] = McpMediaAnalysisCache.contentHash(TelegramMediaCache.getInstance(ec).fetch(fileId, fileUniqueId));
+        return hashHolder[0] != null ? McpMediaAnalysisCache.lookup(ec, analysisType, null, hashHolder[0], version) : null;
+    }
 
-            String filePath = pathMatcher.group(1);
-            return "https://api.telegram.org/file/bot" + botToken + "/" + filePath;
+    private void storeMediaAnalysis(String analysisType, Map<String, Object> attachmentInfo, String contentHash, String provider, String result) {
+        McpMediaAnalysisCache.store(ec, analysisType, (String) attachmentInfo.get("fileUniqueId"), contentHash,
+                provider, analysisProviderVersion(analysisType, provider), result);
+    }
 
-        } catch (Exception e) {
-            logger.error("Error downloading Telegram image file", e);
-            return null;
-        }
+    /**
+     * 解析Telegram图片文件链接，同一文件经 TelegramMediaCache 只解析、下载一次
+     */
+    private String downloadTelegramImageFile(String fileId, String fileUniqueId) {
+        TelegramMediaCache mediaCache = TelegramMediaCache.getInstance(ec);
+        String imageUrl = mediaCache.fileUrl(fileId, fileUniqueId);
+        if (imageUrl != null) mediaCache.fetch(fileId, fileUniqueId);
+        return imageUrl;
     }
 
     /**
@@ -1344,7 +1335,7 @@ public class MarketplaceMcpService {
     /**
      * 使用智普清言视觉识别API (GLM-4V)
      */
-    private String analyzeWithZhipuVision(String imageUrl) {
+    private String analyzeWithZhipuVision(String imageUrl, Map<String, Object> attachmentInfo) {
         try {
             String apiKey = firstNonBlank(
                 getDefaultProperty("zhipu.api.key"),
@@ -1358,47 +1349,46 @@ public class MarketplaceMcpService {
             }
 
             // 下载图片并转换为base64
-            byte[] imageData = downloadImageFile(imageUrl);
-            if (imageData == null) {
-                logger.warn("Failed to download image file for Zhipu Vision analysis");
-                return null;
-            }
-
-            String base64Image = java.util.Base64.getEncoder().encodeToString(imageData);
-            String model = getDefaultProperty("image.recognition.zhipu.model");
-            if (model == null || model.isEmpty()) {
-                model = "glm-4v-plus"; // 默认使用GLM-4V Plus模型
-            }
-
-            // 构建智普清言Vision API请求
-            String requestBody = String.format(
-                "{\"model\":\"%s\",\"messages\":[{\"role\":\"user\",\"content\":[{\"type\":\"text\",\"text\":\"请分析这张图片，识别其中的产品、材料或物品。重点识别工业材料、机械设备、建筑材料或商业产品。请用中文描述。\"},{\"type\":\"image_url\",\"image_url\":{\"url\":\"data:image/jpeg;base64,%s\"}}]}],\"temperature\":0.1}",
-                escapeJson(model),
-                base64Image
-            );
+            try (McpMediaFile imageFile = openVisionImage(imageUrl, attachmentInfo, "zhipu")) {
+                if (imageFile == null) {
+                    logger.warn("Failed to download image file for Zhipu Vision analysis");
+                    return null;
+                }
 
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://open.bigmodel.cn/api/paas/v4/chat/completions"))
-                .header("Authorization", "Bearer " + apiKey)
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .timeout(Duration.ofSeconds(60))
-                .build();
+                String model = getDefaultProperty("image.recognition.zhipu.model");
+                if (model == null || model.isEmpty()) {
+                    model = "glm-4v-plus"; // 默认使用GLM-4V Plus模型
+                }
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                // 构建智普清言Vision API请求
+                HttpRequest.BodyPublisher requestBody = imageFile.base64Body(
+                    String.format("{\"model\":\"%s\",\"messages\":[{\"role\":\"user\",\"content\":[{\"type\":\"text\",\"text\":\"请分析这张图片，识别其中的产品、材料或物品。重点识别工业材料、机械设备、建筑材料或商业产品。请用中文描述。\"},{\"type\":\"image_url\",\"image_url\":{\"url\":\"data:image/jpeg;base64,", escapeJson(model)),
+                    "\"}}]}],\"temperature\":0.1}"
+                );
 
-            if (response.statusCode() == 200) {
-                // 解析智普清言API响应
-                Matcher contentMatcher = Pattern.compile("\"content\"\\s*:\\s*\"([^\"]+)\"").matcher(response.body());
-                if (contentMatcher.find()) {
-                    String analysisResult = unescapeJson(contentMatcher.group(1));
-                    logger.info("Zhipu Vision API analysis successful: {} chars", analysisResult.length());
-                    return analysisResult;
+                HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("https://open.bigmodel.cn/api/paas/v4/chat/completions"))
+                    .header("Authorization", "Bearer " + apiKey)
+                    .header("Content-Type", "application/json")
+                    .POST(requestBody)
+                    .timeout(Duration.ofSeconds(60))
+                    .build();
+
+                HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+
+                if (response.statusCode() == 200) {
+                    // 解析智普清言API响应
+                    Matcher contentMatcher = Pattern.compile("\"content\"\\s*:\\s*\"([^\"]+)\"").matcher(response.body());
+                    if (contentMatcher.find()) {
+                        String analysisResult = unescapeJson(contentMatcher.group(1));
+                        logger.info("Zhipu Vision API analysis successful: {} chars", analysisResult.length());
+                        return analysisResult;
+                    }
                 }
-            }
 
-            logger.warn("Zhipu Vision API failed: HTTP {}, response: {}", response.statusCode(), response.body());
-            return null;
+                logger.warn("Zhipu Vision API failed: HTTP {}, response: {}", response.statusCode(), response.body());
+                return null;
+            }
 
         } catch (Exception e) {
             logger.warn("Zhipu Vision analysis failed: {}", e.getMessage());
@@ -1409,7 +1399,7 @@ public class MarketplaceMcpService {
     /**
      * 使用百度图像识别API
      */
-    private String analyzeWithBaiduImageRecognition(String imageUrl) {
+    private String analyzeWithBaiduImageRecognition(String imageUrl, Map<String, Object> attachmentInfo) {
         try {
             String apiKey = firstNonBlank(
                 System.getProperty("baidu.vision.api.key"),
@@ -1435,36 +1425,33 @@ public class MarketplaceMcpService {
             }
 
             // 下载图片并转换为base64
-            byte[] imageData = downloadImageFile(imageUrl);
-            if (imageData == null) {
-                return null;
-            }
+            try (McpMediaFile imageFile = openVisionImage(imageUrl, attachmentInfo, "baidu")) {
+                if (imageFile == null) {
+                    return null;
+                }
 
-            String base64Image = java.util.Base64.getEncoder().encodeToString(imageData);
+                // 调用百度通用物体识别API
+                HttpRequest.BodyPublisher requestBody = imageFile.base64Body("{\"image\":\"", "\",\"baike_num\":5}");
 
-            // 调用百度通用物体识别API
-            String requestBody = String.format(
-                "{\"image\":\"%s\",\"baike_num\":5}",
-                base64Image
-            );
+                HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("https://aip.baidubce.com/rest/2.0/image-classify/v2/advanced_general?access_token=" + accessToken))
+                    .header("Content-Type", "application/json")
+                    .POST(requestBody)
+                    .timeout(Duration.ofSeconds(30))
+                    .build();
 
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://aip.baidubce.com/rest/2.0/image-classify/v2/advanced_general?access_token=" + accessToken))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .timeout(Duration.ofSeconds(30))
-                .build();
+                HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                checkBaiduTokenRejected(response.body(), accessToken);
+                if (response.statusCode() == 200) {
+                    // 解析百度API响应
+                    return parseBaiduVisionResponse(response.body());
+                }
 
-            if (response.statusCode() == 200) {
-                // 解析百度API响应
-                return parseBaiduVisionResponse(response.body());
+                logger.warn("Baidu Vision API failed: HTTP {}", response.statusCode());
+                return null;
             }
 
-            logger.warn("Baidu Vision API failed: HTTP {}", response.statusCode());
-            return null;
-
         } catch (Exception e) {
             logger.warn("Baidu Vision analysis failed: {}", e.getMessage());
             return null;
@@ -1533,7 +1520,7 @@ public class MarketplaceMcpService {
     /**
      * 使用Google Cloud Vision API
      */
-    private String analyzeWithGoogleVision(String imageUrl) {
+    private String analyzeWithGoogleVision(String imageUrl, Map<String, Object> attachmentInfo) {
         try {
             String apiKey = firstNonBlank(
                 System.getProperty("google.vision.api.key"),
@@ -1547,35 +1534,34 @@ public class MarketplaceMcpService {
             }
 
             // 下载图片并转换为base64
-            byte[] imageData = downloadImageFile(imageUrl);
-            if (imageData == null) {
-                return null;
-            }
+            try (McpMediaFile imageFile = openVisionImage(imageUrl, attachmentInfo, "google")) {
+                if (imageFile == null) {
+                    return null;
+                }
 
-            String base64Image = java.util.Base64.getEncoder().encodeToString(imageData);
+                // 构建Google Vision API请求
+                HttpRequest.BodyPublisher requestBody = imageFile.base64Body(
+                    "{\"requests\":[{\"image\":{\"content\":\"",
+                    "\"},\"features\":[{\"type\":\"LABEL_DETECTION\",\"maxResults\":10},{\"type\":\"TEXT_DETECTION\",\"maxResults\":5}]}]}"
+                );
 
-            // 构建Google Vision API请求
-            String requestBody = String.format(
-                "{\"requests\":[{\"image\":{\"content\":\"%s\"},\"features\":[{\"type\":\"LABEL_DETECTION\",\"maxResults\":10},{\"type\":\"TEXT_DETECTION\",\"maxResults\":5}]}]}",
-                base64Image
-            );
+                HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("https://vision.googleapis.com/v1/images:annotate?key=" + apiKey))
+                    .header("Content-Type", "application/json")
+                    .POST(requestBody)
+                    .timeout(Duration.ofSeconds(30))
+                    .build();
 
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://vision.googleapis.com/v1/images:annotate?key=" + apiKey))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .timeout(Duration.ofSeconds(30))
-                .build();
+                HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() == 200) {
+                    return parseGoogleVisionResponse(response.body());
+                }
 
-            if (response.statusCode() == 200) {
-                return parseGoogleVisionResponse(response.body());
+                logger.warn("Google Vision API failed: HTTP {}", response.statusCode());
+                return null;
             }
 
-            logger.warn("Google Vision API failed: HTTP {}", response.statusCode());
-            return null;
-
         } catch (Exception e) {
             logger.warn("Google Vision analysis failed: {}", e.getMessage());
             return null;
@@ -1609,29 +1595,31 @@ public class MarketplaceMcpService {
     }
 
     /**
-     * 下载图片文件
+     * 下载图片文件，调用方负责关闭以删除临时文件
      */
-    private byte[] downloadImageFile(String imageUrl) {
-        try {
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(imageUrl))
-                .GET()
-                .timeout(Duration.ofSeconds(30))
-                .build();
+    private McpMediaFile downloadImageFile(String imageUrl) {
+        return openMediaFile(imageUrl, "image");
+    }
 
-            HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    /**
+     * 准备上传给图片识别服务的图片：按服务商目标分辨率挑选 Telegram 照片尺寸，必要时缩小并重新压缩
+     */
+    private McpMediaFile openVisionImage(String imageUrl, Map<String, Object> attachmentInfo, String provider) {
+        TelegramImagePreprocessor preprocessor = TelegramImagePreprocessor.getInstance(ec);
+        TelegramImagePreprocessor.Target target = preprocessor.target(provider);
 
-            if (response.statusCode() == 200) {
-                return response.body();
+        String url = imageUrl;
+        Object photoSizes = attachmentInfo.get("photoSizes");
+        if (photoSizes instanceof List) {
+            Map<?, ?> size = TelegramImagePreprocessor.selectPhotoSize((List<?>) photoSizes, target.getMaxSide());
+            if (size != null && size.get("fileId") != null && !size.get("fileId").equals(attachmentInfo.get("fileId"))) {
+                String sizeUrl = downloadTelegramImageFile((String) size.get("fileId"), (String) size.get("fileUniqueId"));
+                if (sizeUrl != null) url = sizeUrl;
             }
-
-            logger.warn("Failed to download image file: HTTP {}", response.statusCode());
-            return null;
-
-        } catch (Exception e) {
-            logger.error("Error downloading image file", e);
-            return null;
         }
+
+        Object fileSize = attachmentInfo.get("fileSize");
+        return preprocessor.prepare(downloadImageFile(url), target, fileSize instanceof Number ? ((Number) fileSize).longValue() : 0L);
     }
 
     /**
@@ -1943,27 +1931,50 @@ public class MarketplaceMcpService {
                 return generateLocalResponse(userMessage, intent);
             }
 
-            switch (aiProvider) {
-                case CLAUDE:
-                    return callClaude(buildMarketplacePrompt(userMessage, context, intent));
-                case ZHIPU:
-                    return callZhipu(buildMarketplacePrompt(userMessage, context, intent));
-                case QWEN:
-                    return callQwen(buildMarketplacePrompt(userMessage, context, intent));
-                case BAIDU:
-                    return callBaidu(buildMarketplacePrompt(userMessage, context, intent));
-                case XUNFEI:
-                    return callXunfei(buildMarketplacePrompt(userMessage, context, intent));
-                case OPENAI:
-                default:
-                    return callOpenAi(buildMarketplacePrompt(userMessage, context, intent));
-            }
+            return callProvider(buildMarketplacePrompt(userMessage, context, intent));
         } catch (Exception e) {
             ec.getLogger().warn("AI API调用失败，使用本地响应: " + e.getMessage());
             return generateLocalResponse(userMessage, intent);
         }
     }
 
+    private String callProvider(String prompt) throws Exception {
+        switch (aiProvider) {
+            case CLAUDE: return callClaude(prompt);
+            case ZHIPU: return callZhipu(prompt);
+            case QWEN: return callQwen(prompt);
+            case BAIDU: return callBaidu(prompt);
+            case XUNFEI: return callXunfei(prompt);
+            case OPENAI:
+            default: return callOpenAi(prompt);
+        }
+    }
+
+    /**
+     * 用已配置的AI服务把已有摘要与新对话压缩为新摘要；未配置或调用失败时返回null
+     */
+    public String summarizeConversation(String previousSummary, String transcript, int maxChars) {
+        String apiKey = resolveApiKey();
+        if (apiKey == null || apiKey.isEmpty()) return null;
+
+        StringBuilder prompt = new StringBuilder();
+        prompt.append("请将以下对话压缩为不超过").append(maxChars)
+            .append("字的中文摘要，保留商品、数量、价格、供需意图、用户偏好和未完成事项，不要寒暄。\n\n");
+        if (previousSummary != null && !previousSummary.isEmpty()) {
+            prompt.append("已有摘要:\n").append(previousSummary).append("\n\n");
+        }
+        prompt.append("新增对话:\n").append(transcript);
+        try {
+            String summary = callProvider(prompt.toString());
+            if (summary == null || summary.trim().isEmpty()) return null;
+            summary = summary.trim();
+            return summary.length() > maxChars ? summary.substring(0, maxChars) : summary;
+        } catch (Exception e) {
+            logger.warn("Conversation summary call failed: {}", e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * 生成本地AI响应（当API不可用时）
      */
@@ -2300,40 +2311,7 @@ public class MarketplaceMcpService {
 
     // 辅助方法...
     private EntityValue getOrCreateSession(String sessionId, String merchantId) {
-        EntityValue session = ec.getEntity().find("McpDialogSession")
-            .condition("sessionId", sessionId)
-            .one();
-
-        if (session == null) {
-            // 确保merchantId对应的Party存在，如果不存在则创建
-            EntityValue existingParty = ec.getEntity().find("Party")
-                .condition("partyId", merchantId)
-                .one();
-
-            if (existingParty == null) {
-                logger.info("Creating Party for merchantId: {}", merchantId);
-                ec.getService().sync().name("create#Party").parameters(Map.of(
-                    "partyId", merchantId,
-                    "partyTypeEnumId", "PtyPerson",
-                    "disabled", "N"
-                )).call();
-            }
-
-            ec.getService().sync().name("create#McpDialogSession").parameters(Map.of(
-                "sessionId", sessionId,
-                "customerId", merchantId,
-                "merchantId", merchantId,
-                "currentPhase", "marketplace",
-                "status", "ACTIVE",
-                "createdDate", ec.getUser().getNowTimestamp()
-            )).call();
-
-            session = ec.getEntity().find("McpDialogSession")
-                .condition("sessionId", sessionId)
-                .one();
-        }
-
-        return session;
+        return new McpSessionBootstrap(ec).resolve(sessionId, merchantId, null, "marketplace", null);
     }
 
     private String buildContextForClaudeCall(EntityValue session, String intent) {
@@ -2341,16 +2319,19 @@ public class MarketplaceMcpService {
         context.append("会话模式: ").append(intent).append("\n");
         context.append("商家ID: ").append(session.get("merchantId")).append("\n");
 
-        // 添加最近的对话历史
-        EntityList recentMessages = ec.getEntity().find("McpDialogMessage")
-            .condition("sessionId", session.get("sessionId"))
-            .orderBy("-processedDate")
-            .limit(3)
-            .list();
+        // 较早对话的滚动摘要
+        McpConversationSummarizer.Summary summary = McpConversationSummarizer.getSummary(ec, session.getString("sessionId"));
+        if (summary != null) {
+            context.append("对话摘要:\n").append(summary.text).append("\n");
+        }
+
+        // 添加最近的对话历史（包含尚未落库的记录），已压缩进摘要的轮次不再重复
+        List<Map<String, Object>> recentMessages =
+            McpConversationSummarizer.contextTurns(ec, session.getString("sessionId"), summary, 3);
 
         if (!recentMessages.isEmpty()) {
             context.append("最近对话:\n");
-            for (EntityValue msg : recentMessages) {
+            for (Map<String, Object> msg : recentMessages) {
                 context.append("用户: ").append(msg.get("content")).append("\n");
                 context.append("助手: ").append(msg.get("aiResponse")).append("\n");
             }
@@ -2361,20 +2342,19 @@ public class MarketplaceMcpService {
 
     private void saveDialogMessage(String sessionId, String userMessage, String aiResponse, String intent) {
         try {
-            // Generate unique messageId with limited length (40 chars max)
-            // Use timestamp modulo and short hash to fit database constraint
-            long timestamp = System.currentTimeMillis();
-            int shortHash = Math.abs(userMessage.hashCode() % 10000); // 4 digits max
-            String messageId = String.format("TG_%d_%04d", timestamp % 100000000L, shortHash);
+            // 时间有序、节点内唯一的ID（不超过40字符）
+            String messageId = McpIdAllocator.nextId("TG");
 
-            ec.getService().sync().name("create#McpDialogMessage").parameters(Map.of(
+            // 异步批量落库，不在回复路径上增加数据库往返
+            McpMessageWriter.getInstance(ec).enqueue(Map.of(
                 "messageId", messageId,
                 "sessionId", sessionId,
                 "messageType", intent,
                 "content", userMessage,
                 "aiResponse", aiResponse,
                 "processedDate", ec.getUser().getNowTimestamp()
-            )).call();
+            ));
+            McpConversationSummarizer.onTurn(ec, sessionId);
         } catch (Exception e) {
             // Log error but don't fail the conversation if logging fails
             logger.warn("Failed to save dialog message for session {}: {}", sessionId, e.getMessage());
@@ -0,0 +1,258 @@
+package org.moqui.mcp;
+
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.ExecutionContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 服务商 OAuth access token 缓存（client_credentials 换取的 token，如百度语音、百度图像识别）
+ * 按服务商 + 凭据缓存到过期前，进入刷新窗口后在后台刷新，同一凭据同时只有一个换取请求；
+ * token 持久化在本地文件（只保存凭据的哈希，不保存密钥），重启后继续使用。
+ * 服务商的 token 地址由 mcp.oauth.<provider>.token.url 配置，百度有内置默认值
+ */
+public class McpAccessTokenManager {
+    private static final Logger logger = LoggerFactory.getLogger(McpAccessTokenManager.class);
+
+    public static final String TOOL_NAME = "McpAccessTokenManager";
+    /** 距过期不足该时间的 token 不再使用 */
+    private static final long EXPIRY_SAFETY_MILLIS = 60_000L;
+
+    private final ExecutionContextFactory ecf;
+    private final Path tokenFile;
+    private final long refreshBeforeMillis;
+    private final HttpClient httpClient;
+    private final ExecutorService refresher;
+
+    private final Map<String, Token> tokens = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Token>> refreshing = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong exchangeCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /** 已换取的 token */
+    private static final class Token {
+        final String value;
+        final long issuedAt;
+        final long expiresAt;
+
+        Token(String value, long issuedAt, long expiresAt) {
+            this.value = value;
+            this.issuedAt = issuedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    McpAccessTokenManager(ExecutionContextFactory ecf) {
+        this.ecf = ecf;
+        this.tokenFile = Paths.get(McpConfig.get(ecf, "mcp.oauth.token.file", ecf.getRuntimePath() + "/mcp/oauth-tokens.json"));
+        this.refreshBeforeMillis = McpConfig.getLong(ecf, "mcp.oauth.refresh.before.seconds", 86400L) * 1000L;
+        this.httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(20)).build();
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.refresher = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "McpAccessTokenRefresher-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        load();
+    }
+
+    public static McpAccessTokenManager getInstance(ExecutionContext ec) {
+        return ec.getTool(TOOL_NAME, McpAccessTokenManager.class);
+    }
+
+    public long getHitCount() { return hitCount.get(); }
+    public long getExchangeCount() { return exchangeCount.get(); }
+    public long getFailureCount() { return failureCount.get(); }
+
+    /**
+     * 取可用的 access token；缓存中没有或已过期时同步换取，进入刷新窗口时返回当前 token 并在后台刷新。换取失败返回 null
+     */
+    public String getToken(String provider, String clientId, String clientSecret) {
+        if (clientId == null || clientSecret == null) return null;
+        String key = keyOf(provider, clientId, clientSecret);
+        long now = System.currentTimeMillis();
+        Token token = tokens.get(key);
+        if (token != null && now < token.expiresAt - EXPIRY_SAFETY_MILLIS) {
+            hitCount.incrementAndGet();
+            if (now >= refreshAt(token)) exchange(key, provider, clientId, clientSecret);
+            return token.value;
+        }
+
+        try {
+            Token fresh = exchange(key, provider, clientId, clientSecret).get(30, TimeUnit.SECONDS);
+            return fresh != null ? fresh.value : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            logger.warn("Cannot obtain {} access token: {}", provider, e.getMessage());
+            return null;
+        }
+    }
+
+    /** 服务商返回 token 无效或过期时调用，下一次 getToken 重新换取 */
+    public void invalidate(String accessToken) {
+        if (accessToken == null) return;
+        if (tokens.values().removeIf(token -> accessToken.equals(token.value))) save();
+    }
+
+    /** 有效期的后段开始刷新：提前 refreshBeforeMillis，但不早于有效期过半 */
+    private long refreshAt(Token token) {
+        long lifetime = token.expiresAt - token.issuedAt;
+        return token.expiresAt - Math.min(refreshBeforeMillis, lifetime / 2);
+    }
+
+    /** 同一凭据只发起一个换取请求，其余调用方共享结果 */
+    private CompletableFuture<Token> exchange(String key, String provider, String clientId, String clientSecret) {
+        CompletableFuture<Token> future = new CompletableFuture<>();
+        CompletableFuture<Token> existing = refreshing.putIfAbsent(key, future);
+        if (existing != null) return existing;
+        refresher.execute(() -> {
+            try {
+                future.complete(requestToken(key, provider, clientId, clientSecret));
+            } finally {
+                refreshing.remove(key, future);
+                if (!future.isDone()) future.complete(null);
+            }
+        });
+        return future;
+    }
+
+    private Token requestToken(String key, String provider, String clientId, String clientSecret) {
+        exchangeCount.incrementAndGet();
+        try {
+            String url = tokenUrl(provider) + "?grant_type=client_credentials"
+                    + "&client_id=" + URLEncoder.encode(clientId, StandardCharsets.UTF_8)
+                    + "&client_secret=" + URLEncoder.encode(clientSecret, StandardCharsets.UTF_8);
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(url))
+                    .POST(HttpRequest.BodyPublishers.noBody())
+                    .timeout(Duration.ofSeconds(30))
+                    .build();
+            long issuedAt = System.currentTimeMillis();
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            Object parsed = response.body() != null && !response.body().isEmpty() ? new JsonSlurper().parseText(response.body()) : null;
+            Object accessToken = parsed instanceof Map ? ((Map<?, ?>) parsed).get("access_token") : null;
+            if (response.statusCode() != 200 || accessToken == null) {
+                failureCount.incrementAndGet();
+                logger.warn("Failed to get {} access token: HTTP {}", provider, response.statusCode());
+                return null;
+            }
+
+            Object expiresIn = ((Map<?, ?>) parsed).get("expires_in");
+            long lifetimeMillis = expiresIn instanceof Number ? ((Number) expiresIn).longValue() * 1000L : 86400_000L;
+            Token token = new Token(accessToken.toString(), issuedAt, issuedAt + lifetimeMillis);
+            tokens.put(key, token);
+            save();
+            logger.info("Obtained {} access token, valid for {}s", provider, lifetimeMillis / 1000L);
+            return token;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            failureCount.incrementAndGet();
+            logger.warn("Error getting {} access token: {}", provider, e.getMessage());
+            return null;
+        }
+    }
+
+    private String tokenUrl(String provider) {
+        String defaultUrl = "baidu".equals(provider) ? "https://aip.baidubce.com/oauth/2.0/token" : null;
+        String url = McpConfig.get(ecf, "mcp.oauth." + provider + ".token.url", defaultUrl);
+        if (url == null || url.isEmpty()) throw new IllegalArgumentException("mcp.oauth." + provider + ".token.url not configured");
+        return url;
+    }
+
+    /** 凭据只以哈希形式出现在键和持久化文件中 */
+    static String keyOf(String provider, String clientId, String clientSecret) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((clientId + '\n' + clientSecret).getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(provider).append(':');
+            for (int i = 0; i < 16; i++) key.append(String.format("%02x", hash[i]));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(tokenFile)) return;
+        try {
+            Object parsed = new JsonSlurper().parseText(new String(Files.readAllBytes(tokenFile), StandardCharsets.UTF_8));
+            if (!(parsed instanceof Map)) return;
+            long now = System.currentTimeMillis();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) parsed).entrySet()) {
+                if (!(entry.getValue() instanceof Map)) continue;
+                Map<?, ?> value = (Map<?, ?>) entry.getValue();
+                Object token = value.get("token");
+                Object issuedAt = value.get("issuedAt");
+                Object expiresAt = value.get("expiresAt");
+                if (token == null || !(issuedAt instanceof Number) || !(expiresAt instanceof Number)) continue;
+                if (((Number) expiresAt).longValue() - EXPIRY_SAFETY_MILLIS <= now) continue;
+                tokens.put(entry.getKey().toString(), new Token(token.toString(), ((Number) issuedAt).longValue(), ((Number) expiresAt).longValue()));
+            }
+            logger.info("Loaded {} cached access token(s) from {}", tokens.size(), tokenFile);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Cannot read access tokens from {}: {}", tokenFile, e.getMessage());
+        }
+    }
+
+    /** 写临时文件后原子替换；文件含 token，尽量只允许当前用户读写 */
+    private synchronized void save() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        tokens.forEach((key, token) -> {
+            Map<String, Object> value = new LinkedHashMap<>();
+            value.put("token", token.value);
+            value.put("issuedAt", token.issuedAt);
+            value.put("expiresAt", token.expiresAt);
+            snapshot.put(key, value);
+        });
+        try {
+            Files.createDirectories(tokenFile.getParent());
+            Path temp = tokenFile.resolveSibling(tokenFile.getFileName() + ".tmp");
+            Files.write(temp, JsonOutput.toJson(snapshot).getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException ignored) { }
+            Files.move(temp, tokenFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Cannot write access tokens to {}: {}", tokenFile, e.getMessage());
+        }
+    }
+
+    void destroy() {
+        refresher.shutdownNow();
+        logger.info("McpAccessTokenManager stopped: hits={}, exchanges={}, failures={}",
+                hitCount.get(), exchangeCount.get(), failureCount.get());
+    }
+}
@@ -0,0 +1,33 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.context.ToolFactory;
+
+/**
+ * 在 MoquiConf tools 中注册，随运行时加载 McpAccessTokenManager 持久化的 token
+ */
+public class McpAccessTokenManagerToolFactory implements ToolFactory<McpAccessTokenManager> {
+    private McpAccessTokenManager manager = null;
+
+    public McpAccessTokenManagerToolFactory() { }
+
+    @Override
+    public String getName() { return McpAccessTokenManager.TOOL_NAME; }
+
+    @Override
+    public void init(ExecutionContextFactory ecf) {
+        manager = new McpAccessTokenManager(ecf);
+    }
+
+    @Override
+    public McpAccessTokenManager getInstance(Object... parameters) {
+        if (manager == null) throw new IllegalStateException("McpAccessTokenManagerToolFactory not initialized");
+        return manager;
+    }
+
+    @Override
+    public void destroy() {
+        if (manager != null) manager.destroy();
+        manager = null;
+    }
+}
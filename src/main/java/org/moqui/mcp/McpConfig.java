@@ -0,0 +1,75 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.impl.context.ExecutionContextFactoryImpl;
+import org.moqui.util.MNode;
+
+import java.util.Locale;
+
+/**
+ * MCP组件配置读取：系统属性 → 环境变量 → MoquiConf default-property → 默认值
+ */
+final class McpConfig {
+    private McpConfig() { }
+
+    static String get(ExecutionContextFactory ecf, String propertyName, String defaultValue) {
+        String sysValue = System.getProperty(propertyName);
+        if (isNotBlank(sysValue)) return sysValue;
+
+        String envValue = System.getenv(propertyName.toUpperCase(Locale.ROOT).replace('.', '_'));
+        if (isNotBlank(envValue)) return envValue;
+
+        if (ecf instanceof ExecutionContextFactoryImpl) {
+            MNode confRoot = ((ExecutionContextFactoryImpl) ecf).getConfXmlRoot();
+            if (confRoot != null) {
+                for (MNode node : confRoot.children("default-property")) {
+                    if (propertyName.equals(node.attribute("name"))) {
+                        String value = node.attribute("value");
+                        if (isNotBlank(value)) return value;
+                    }
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    static int getInt(ExecutionContextFactory ecf, String propertyName, int defaultValue) {
+        String value = get(ecf, propertyName, null);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static long getLong(ExecutionContextFactory ecf, String propertyName, long defaultValue) {
+        String value = get(ecf, propertyName, null);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static double getDouble(ExecutionContextFactory ecf, String propertyName, double defaultValue) {
+        String value = get(ecf, propertyName, null);
+        if (value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static boolean getBoolean(ExecutionContextFactory ecf, String propertyName, boolean defaultValue) {
+        String value = get(ecf, propertyName, null);
+        if (value == null) return defaultValue;
+        return "true".equalsIgnoreCase(value.trim()) || "Y".equalsIgnoreCase(value.trim());
+    }
+
+    private static boolean isNotBlank(String value) {
+        return value != null && !value.trim().isEmpty();
+    }
+}
@@ -0,0 +1,270 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContext;
+import org.moqui.entity.EntityCondition;
+import org.moqui.entity.EntityFind;
+import org.moqui.entity.EntityList;
+import org.moqui.entity.EntityValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.cache.Cache;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 滚动对话摘要
+ * 每累计 N 轮对话异步触发一次，把早于最近窗口的轮次压缩进 McpDialogSession.summary，
+ * 提示词只拼接“摘要 + 尚未压缩的轮次”，长度不随对话增长。
+ * 已压缩位置用 (processedDate, messageId) 游标记录，与历史分页使用同一排序
+ */
+public class McpConversationSummarizer {
+    private static final Logger logger = LoggerFactory.getLogger(McpConversationSummarizer.class);
+
+    public static final String SUMMARIZE_SERVICE = "moqui.mcp.summarize#DialogSession";
+    static final String TURN_COUNTER_CACHE_NAME = "mcp.dialog.TurnCounter";
+    static final String SUMMARY_CACHE_NAME = "mcp.dialog.SessionSummary";
+
+    private static final String SESSION_ENTITY = "mcp.dialog.McpDialogSession";
+    private static final String MESSAGE_ENTITY = "mcp.dialog.McpDialogMessage";
+    /** 单次最多压缩的轮次数，积压更多时由下一次触发继续处理 */
+    private static final int MAX_FOLD_TURNS = 100;
+
+    private static final Summary NO_SUMMARY = new Summary("", null, null);
+
+    /** 会话摘要及其已压缩到的位置 */
+    static final class Summary {
+        final String text;
+        final Timestamp through;
+        final String throughId;
+
+        Summary(String text, Timestamp through, String throughId) {
+            this.text = text;
+            this.through = through;
+            this.throughId = throughId;
+        }
+
+        static Summary of(EntityValue session) {
+            String text = session.getString("summary");
+            if (text == null || text.isEmpty()) return NO_SUMMARY;
+            return new Summary(text, session.getTimestamp("summarizedThrough"), session.getString("summarizedThroughId"));
+        }
+
+        boolean isEmpty() { return text.isEmpty(); }
+
+        /**
+         * 去掉已压缩进摘要的轮次（新的在前的列表），避免同一轮在提示词中既以摘要又以原文出现
+         */
+        List<Map<String, Object>> unsummarized(List<Map<String, Object>> turns) {
+            if (isEmpty() || through == null) return turns;
+            List<Map<String, Object>> result = new ArrayList<>(turns.size());
+            for (Map<String, Object> turn : turns) {
+                Object date = turn.get("processedDate");
+                if (!(date instanceof Timestamp)) {
+                    result.add(turn);
+                    continue;
+                }
+                int compare = ((Timestamp) date).compareTo(through);
+                Object messageId = turn.get("messageId");
+                boolean after = compare > 0 || (compare == 0 && throughId != null && messageId != null
+                        && messageId.toString().compareTo(throughId) > 0);
+                if (after) result.add(turn);
+            }
+            return result;
+        }
+    }
+
+    private McpConversationSummarizer() { }
+
+    /**
+     * 记录一轮对话，累计到间隔轮数时异步提交摘要服务
+     */
+    public static void onTurn(ExecutionContext ec, String sessionId) {
+        if (sessionId == null) return;
+        int interval = McpConfig.getInt(ec.getFactory(), "mcp.summary.interval.turns", 10);
+        if (interval <= 0) return;
+
+        Cache<String, Integer> counterCache = ec.getCache().getCache(TURN_COUNTER_CACHE_NAME);
+        Integer count = counterCache.get(sessionId);
+        int next = count != null ? count + 1 : 1;
+        if (next < interval) {
+            counterCache.put(sessionId, next);
+            return;
+        }
+        counterCache.put(sessionId, 0);
+        ec.getService().async().name(SUMMARIZE_SERVICE).parameter("sessionId", sessionId).call();
+    }
+
+    /**
+     * 会话当前摘要，读穿缓存；没有摘要时返回null
+     */
+    static Summary getSummary(ExecutionContext ec, String sessionId) {
+        Cache<String, Summary> summaryCache = ec.getCache().getCache(SUMMARY_CACHE_NAME);
+        Summary cached = summaryCache.get(sessionId);
+        if (cached == null) {
+            boolean alreadyDisabled = ec.getArtifactExecution().disableAuthz();
+            try {
+                EntityValue session = ec.getEntity().find(SESSION_ENTITY)
+                        .condition("sessionId", sessionId)
+                        .selectFields(Arrays.asList("summary", "summarizedThrough", "summarizedThroughId"))
+                        .one();
+                cached = session != null ? Summary.of(session) : NO_SUMMARY;
+            } finally {
+                if (!alreadyDisabled) ec.getArtifactExecution().enableAuthz();
+            }
+            summaryCache.put(sessionId, cached);
+        }
+        return cached.isEmpty() ? null : cached;
+    }
+
+    /**
+     * 拼接提示词用的最近对话：有摘要时取上次压缩之后的全部轮次，并去掉已折叠进摘要的轮次。
+     * 摘要每 interval 轮才推进一次，游标之后最多积压 interval + keep.recent 轮，少取会让这些轮次既不在摘要也不在提示词中
+     */
+    static List<Map<String, Object>> contextTurns(ExecutionContext ec, String sessionId, Summary summary, int limit) {
+        if (summary == null) return McpRecentTurnStore.recentTurns(ec, sessionId, limit);
+        int interval = Math.max(0, McpConfig.getInt(ec.getFactory(), "mcp.summary.interval.turns", 10));
+        int keepRecent = Math.max(0, McpConfig.getInt(ec.getFactory(), "mcp.summary.keep.recent", 3));
+        return summary.unsummarized(McpRecentTurnStore.recentTurns(ec, sessionId, Math.max(limit, interval + keepRecent)));
+    }
+
+    /**
+     * moqui.mcp.summarize#DialogSession 服务实现；服务不开事务，模型调用期间不占用数据库事务，只在写回时开新事务
+     */
+    public static Map<String, Object> summarizeDialogSession(ExecutionContext ec) {
+        String sessionId = (String) ec.getContext().get("sessionId");
+        int keepRecent = McpConfig.getInt(ec.getFactory(), "mcp.summary.keep.recent", 3);
+        int maxChars = McpConfig.getInt(ec.getFactory(), "mcp.summary.max.chars", 1500);
+        Map<String, Object> result = new HashMap<>();
+        result.put("foldedCount", 0);
+
+        EntityValue session = ec.getEntity().find(SESSION_ENTITY).condition("sessionId", sessionId).one();
+        if (session == null) return result;
+        Timestamp summarizedThrough = session.getTimestamp("summarizedThrough");
+        String summarizedThroughId = session.getString("summarizedThroughId");
+
+        // 最近 keepRecent 轮留给提示词原文，之前且尚未压缩的轮次进入摘要；用 keyset 游标跳过最近窗口而不是 offset。
+        // 按时间正序取最早的积压，游标只推进到本次实际压缩的最后一轮
+        EntityFind find = ec.getEntity().find(MESSAGE_ENTITY)
+                .condition("sessionId", sessionId)
+                .orderBy("processedDate")
+                .orderBy("messageId")
+                .limit(MAX_FOLD_TURNS);
+        if (keepRecent > 0) {
+            EntityList recentWindow = ec.getEntity().find(MESSAGE_ENTITY)
+                    .condition("sessionId", sessionId)
+                    .selectFields(Arrays.asList("processedDate", "messageId"))
+                    .orderBy("-processedDate")
+                    .orderBy("-messageId")
+                    .limit(keepRecent)
+                    .list();
+            if (recentWindow.size() < keepRecent) return result;
+            EntityValue oldestKept = recentWindow.get(recentWindow.size() - 1);
+            find.condition(McpDialogHistory.before(ec, "processedDate", "messageId",
+                    new McpDialogHistory.Cursor(oldestKept.getTimestamp("processedDate"), oldestKept.getString("messageId"))));
+        }
+        if (summarizedThrough != null) {
+            // 与历史分页相同的 keyset 游标；旧数据没有 messageId 时退回按时间比较
+            find.condition(summarizedThroughId != null
+                    ? McpDialogHistory.after(ec, "processedDate", "messageId", new McpDialogHistory.Cursor(summarizedThrough, summarizedThroughId))
+                    : ec.getEntity().getConditionFactory().makeCondition("processedDate", EntityCondition.GREATER_THAN, summarizedThrough));
+        }
+        // 写入器中尚未落库的记录可能比已落库的更早，只压缩到最早的未落库记录之前，游标之后不会再出现更早的行
+        Timestamp oldestPending = null;
+        for (Map<String, Object> pending : McpMessageWriter.getInstance(ec).pending(sessionId)) {
+            Object date = pending.get("processedDate");
+            if (date instanceof Timestamp && (oldestPending == null || ((Timestamp) date).before(oldestPending))) oldestPending = (Timestamp) date;
+        }
+        if (oldestPending != null) find.condition("processedDate", EntityCondition.LESS_THAN, oldestPending);
+        List<EntityValue> chronological = find.list();
+        if (chronological.isEmpty()) return result;
+
+        String previousSummary = session.getString("summary");
+        StringBuilder transcript = new StringBuilder();
+        for (EntityValue turn : chronological) {
+            transcript.append("用户: ").append(textOf(turn)).append("\n");
+            if (turn.get("aiResponse") != null) transcript.append("助手: ").append(turn.get("aiResponse")).append("\n");
+        }
+
+        String summary = null;
+        if (McpConfig.getBoolean(ec.getFactory(), "mcp.summary.ai.enabled", false)) {
+            summary = new MarketplaceMcpService(ec).summarizeConversation(previousSummary, transcript.toString(), maxChars);
+        }
+        if (summary == null) summary = extractiveSummary(previousSummary, chronological, maxChars);
+
+        Long previousCount = session.getLong("summaryTurnCount");
+        long turnCount = (previousCount != null ? previousCount : 0L) + chronological.size();
+        EntityValue lastTurn = chronological.get(chronological.size() - 1);
+        Timestamp lastFolded = lastTurn.getTimestamp("processedDate");
+        String lastFoldedId = lastTurn.getString("messageId");
+
+        String newSummary = summary;
+        Boolean written = (Boolean) ec.getTransaction().runRequireNew(30, "Error saving dialog summary", () -> {
+            EntityValue current = ec.getEntity().find(SESSION_ENTITY).condition("sessionId", sessionId).forUpdate(true).one();
+            // 并发的另一次摘要已推进游标时放弃本次结果，下一次触发会从新位置继续
+            if (current == null || !Objects.equals(current.getTimestamp("summarizedThrough"), summarizedThrough)
+                    || !Objects.equals(current.getString("summarizedThroughId"), summarizedThroughId)) return false;
+            current.set("summary", newSummary);
+            current.set("summaryTurnCount", turnCount);
+            current.set("summarizedThrough", lastFolded);
+            current.set("summarizedThroughId", lastFoldedId);
+            current.update();
+            return true;
+        });
+        if (!Boolean.TRUE.equals(written)) {
+            logger.info("Summary of session {} advanced concurrently; discarding this run", sessionId);
+            return result;
+        }
+        ec.getCache().<String, Summary>getCache(SUMMARY_CACHE_NAME).put(sessionId, new Summary(summary, lastFolded, lastFoldedId));
+
+        logger.info("Summarized {} turn(s) of session {} ({} chars)", chronological.size(), sessionId, summary.length());
+        result.put("foldedCount", chronological.size());
+        result.put("summary", summary);
+        return result;
+    }
+
+    /**
+     * 无AI时的抽取式摘要：每轮保留意图与首句，超出长度时丢弃最早的条目
+     */
+    static String extractiveSummary(String previousSummary, List<EntityValue> chronological, int maxChars) {
+        LinkedList<String> lines = new LinkedList<>();
+        if (previousSummary != null && !previousSummary.isEmpty()) lines.addAll(Arrays.asList(previousSummary.split("\n")));
+        for (EntityValue turn : chronological) {
+            StringBuilder line = new StringBuilder("- ");
+            String intent = turn.getString("intent") != null ? turn.getString("intent") : turn.getString("messageType");
+            if (intent != null) line.append('[').append(intent).append("] ");
+            line.append(firstSentence(textOf(turn), 60));
+            String reply = firstSentence(turn.getString("aiResponse"), 40);
+            if (!reply.isEmpty()) line.append(" → ").append(reply);
+            lines.add(line.toString());
+        }
+        int total = 0;
+        for (String line : lines) total += line.length() + 1;
+        while (total > maxChars && lines.size() > 1) total -= lines.removeFirst().length() + 1;
+        return String.join("\n", lines);
+    }
+
+    private static String textOf(EntityValue turn) {
+        String content = turn.getString("content");
+        return content != null ? content : (turn.getString("message") != null ? turn.getString("message") : "");
+    }
+
+    private static String firstSentence(String text, int maxLength) {
+        if (text == null) return "";
+        String trimmed = text.replace('\n', ' ').trim();
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (c == '。' || c == '！' || c == '？' || c == '!' || c == '?') {
+                trimmed = trimmed.substring(0, i + 1);
+                break;
+            }
+        }
+        return trimmed.length() > maxLength ? trimmed.substring(0, maxLength) + "…" : trimmed;
+    }
+}
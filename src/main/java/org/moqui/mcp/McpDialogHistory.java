@@ -0,0 +1,173 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContext;
+import org.moqui.entity.EntityCondition;
+import org.moqui.entity.EntityConditionFactory;
+import org.moqui.entity.EntityFind;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 对话历史分页查询
+ * 按 (时间, 主键) 做 keyset 分页：游标记录上一页最后一行，下一页从游标之后顺序扫描索引，
+ * 查询成本与翻到第几页、表里有多少行无关；不使用 offset，也不返回无上限的列表
+ */
+public class McpDialogHistory {
+    private static final String SESSION_ENTITY = "mcp.dialog.McpDialogSession";
+    private static final String MESSAGE_ENTITY = "mcp.dialog.McpDialogMessage";
+    static final int DEFAULT_PAGE_SIZE = 20;
+    static final int MAX_PAGE_SIZE = 200;
+
+    private McpDialogHistory() { }
+
+    /**
+     * moqui.mcp.get#DialogMessagePage 服务实现，消息按时间倒序
+     */
+    public static Map<String, Object> getDialogMessagePage(ExecutionContext ec) {
+        Map<String, Object> parameters = ec.getContext();
+        String sessionId = (String) parameters.get("sessionId");
+        int pageSize = pageSize(parameters.get("pageSize"));
+
+        EntityFind find = ec.getEntity().find(MESSAGE_ENTITY)
+                .condition("sessionId", sessionId)
+                .orderBy("-processedDate")
+                .orderBy("-messageId")
+                .limit(pageSize + 1);
+        Cursor cursor = Cursor.parse((String) parameters.get("cursor"));
+        if (cursor != null) find.condition(before(ec, "processedDate", "messageId", cursor));
+        List<Map<String, Object>> rows = new ArrayList<>(find.list());
+
+        // 热表已翻到底时继续从冷归档读取更早的消息
+        if (rows.size() <= pageSize) {
+            McpMessageArchive archive = McpMessageArchive.getInstance(ec);
+            if (archive != null && archive.hasSession(sessionId)) {
+                Set<Object> seen = new HashSet<>();
+                for (Map<String, Object> row : rows) seen.add(row.get("messageId"));
+                for (Map<String, Object> message : archive.read(sessionId, cursor, pageSize + 1)) {
+                    if (!seen.contains(message.get("messageId"))) rows.add(message);
+                }
+                rows.sort(NEWEST_FIRST);
+                if (rows.size() > pageSize + 1) rows = new ArrayList<>(rows.subList(0, pageSize + 1));
+            }
+        }
+        return toPage(rows, pageSize, "processedDate", "messageId", "messages");
+    }
+
+    /**
+     * moqui.mcp.get#DialogSessionPage 服务实现，会话按最后修改时间倒序，可按商家、状态过滤
+     */
+    public static Map<String, Object> getDialogSessionPage(ExecutionContext ec) {
+        Map<String, Object> parameters = ec.getContext();
+        int pageSize = pageSize(parameters.get("pageSize"));
+
+        EntityFind find = ec.getEntity().find(SESSION_ENTITY)
+                .orderBy("-lastModifiedDate")
+                .orderBy("-sessionId")
+                .limit(pageSize + 1);
+        if (parameters.get("merchantId") != null) find.condition("merchantId", parameters.get("merchantId"));
+        if (parameters.get("status") != null) find.condition("status", parameters.get("status"));
+        Cursor cursor = Cursor.parse((String) parameters.get("cursor"));
+        if (cursor != null) find.condition(before(ec, "lastModifiedDate", "sessionId", cursor));
+        return toPage(new ArrayList<>(find.list()), pageSize, "lastModifiedDate", "sessionId", "sessions");
+    }
+
+    /**
+     * 严格排在游标之后（倒序意义上更早）的条件：date &lt;= d AND (date &lt; d OR (date = d AND id &lt; i))
+     * 前导的 date &lt;= d 是可直接定位索引的范围条件；只有 OR 时数据库只能按前缀扫描整段再过滤
+     */
+    static EntityCondition before(ExecutionContext ec, String dateField, String idField, Cursor cursor) {
+        EntityConditionFactory ecf = ec.getEntity().getConditionFactory();
+        EntityCondition sameDate = ecf.makeCondition(Arrays.asList(
+                ecf.makeCondition(dateField, EntityCondition.EQUALS, cursor.date),
+                ecf.makeCondition(idField, EntityCondition.LESS_THAN, cursor.id)
+        ), EntityCondition.AND);
+        return ecf.makeCondition(Arrays.asList(
+                ecf.makeCondition(dateField, EntityCondition.LESS_THAN_EQUAL_TO, cursor.date),
+                ecf.makeCondition(ecf.makeCondition(dateField, EntityCondition.LESS_THAN, cursor.date), EntityCondition.OR, sameDate)
+        ), EntityCondition.AND);
+    }
+
+    /**
+     * 严格排在游标之后（正序意义上更晚）的条件：date &gt;= d AND (date &gt; d OR (date = d AND id &gt; i))
+     */
+    static EntityCondition after(ExecutionContext ec, String dateField, String idField, Cursor cursor) {
+        EntityConditionFactory ecf = ec.getEntity().getConditionFactory();
+        EntityCondition sameDate = ecf.makeCondition(Arrays.asList(
+                ecf.makeCondition(dateField, EntityCondition.EQUALS, cursor.date),
+                ecf.makeCondition(idField, EntityCondition.GREATER_THAN, cursor.id)
+        ), EntityCondition.AND);
+        return ecf.makeCondition(Arrays.asList(
+                ecf.makeCondition(dateField, EntityCondition.GREATER_THAN_EQUAL_TO, cursor.date),
+                ecf.makeCondition(ecf.makeCondition(dateField, EntityCondition.GREATER_THAN, cursor.date), EntityCondition.OR, sameDate)
+        ), EntityCondition.AND);
+    }
+
+    private static Map<String, Object> toPage(List<Map<String, Object>> rows, int pageSize, String dateField, String idField, String listName) {
+        boolean hasMore = rows.size() > pageSize;
+        List<Map<String, Object>> page = new ArrayList<>(hasMore ? rows.subList(0, pageSize) : rows);
+        Map<String, Object> result = new HashMap<>();
+        result.put(listName, page);
+        result.put("hasMore", hasMore);
+        if (hasMore) {
+            Map<String, Object> last = page.get(page.size() - 1);
+            result.put("nextCursor", Cursor.format((Timestamp) last.get(dateField), (String) last.get(idField)));
+        }
+        return result;
+    }
+
+    static boolean isBefore(Map<String, Object> message, Cursor cursor) {
+        Timestamp date = (Timestamp) message.get("processedDate");
+        if (date == null) return true;
+        int compare = date.compareTo(cursor.date);
+        return compare < 0 || (compare == 0 && ((String) message.get("messageId")).compareTo(cursor.id) < 0);
+    }
+
+    static final Comparator<Map<String, Object>> NEWEST_FIRST = (a, b) -> {
+        Timestamp dateA = (Timestamp) a.get("processedDate");
+        Timestamp dateB = (Timestamp) b.get("processedDate");
+        int compare = dateA == null ? (dateB == null ? 0 : 1) : (dateB == null ? -1 : dateB.compareTo(dateA));
+        return compare != 0 ? compare : ((String) b.get("messageId")).compareTo((String) a.get("messageId"));
+    };
+
+    private static int pageSize(Object requested) {
+        if (requested == null) return DEFAULT_PAGE_SIZE;
+        int size = requested instanceof Number ? ((Number) requested).intValue() : Integer.parseInt(requested.toString());
+        return Math.max(1, Math.min(MAX_PAGE_SIZE, size));
+    }
+
+    /**
+     * 分页游标，格式为 "秒.纳秒:主键"，保留数据库时间戳的全部精度以免同一毫秒内的行被跳过
+     */
+    static final class Cursor {
+        final Timestamp date;
+        final String id;
+
+        Cursor(Timestamp date, String id) {
+            this.date = date;
+            this.id = id;
+        }
+
+        static String format(Timestamp date, String id) {
+            if (date == null || id == null) return null;
+            return Math.floorDiv(date.getTime(), 1000L) + "." + date.getNanos() + ":" + id;
+        }
+
+        static Cursor parse(String value) {
+            if (value == null || value.isEmpty()) return null;
+            int colon = value.indexOf(':');
+            int dot = value.indexOf('.');
+            if (colon < 0 || dot < 0 || dot > colon) throw new IllegalArgumentException("Invalid cursor: " + value);
+            Timestamp date = new Timestamp(Long.parseLong(value.substring(0, dot)) * 1000L);
+            date.setNanos(Integer.parseInt(value.substring(dot + 1, colon)));
+            return new Cursor(date, value.substring(colon + 1));
+        }
+    }
+}
@@ -85,15 +85,17 @@ public class McpDialogService {
         String currentPhase = (String) session.get("currentPhase");
         context.append("当前项目阶段: ").append(getPhaseDescription(currentPhase)).append("\n");
 
-        // 获取历史对话
-        List<EntityValue> messages = ec.getEntity().find("McpDialogMessage")
-                .condition("sessionId", sessionId)
-                .orderBy("-processedDate")
-                .limit(10)
-                .list();
+        // 较早对话的滚动摘要
+        McpConversationSummarizer.Summary summary = McpConversationSummarizer.Summary.of(session);
+        if (!summary.isEmpty()) {
+            context.append("对话摘要:\n").append(summary.text).append("\n");
+        }
+
+        // 获取历史对话（包含尚未落库的记录），已压缩进摘要的轮次不再重复
+        List<Map<String, Object>> messages = McpConversationSummarizer.contextTurns(ec, sessionId, summary, 10);
 
         context.append("历史对话:\n");
-        for (EntityValue msg : messages) {
+        for (Map<String, Object> msg : messages) {
             context.append("用户: ").append(msg.get("content")).append("\n");
             context.append("AI: ").append(msg.get("aiResponse")).append("\n");
         }
@@ -217,15 +219,16 @@ public class McpDialogService {
      * 保存对话消息
      */
     private void saveDialogMessage(String sessionId, String userMessage, String aiResponse, String messageType) {
-        String messageId = ec.getEntity().sequencedIdPrimary("org.moqui.mcp.McpDialog."+sessionId,null,10L);
-        ec.getService().sync().name("create#McpDialogMessage").parameters(Map.of(
+        String messageId = McpIdAllocator.nextId("DLG");
+        McpMessageWriter.getInstance(ec).enqueue(Map.of(
                 "messageId", messageId,
                 "sessionId", sessionId,
                 "messageType", messageType,
                 "content", userMessage,
                 "aiResponse", aiResponse,
                 "processedDate", ec.getUser().getNowTimestamp()
-        )).call();
+        ));
+        McpConversationSummarizer.onTurn(ec, sessionId);
     }
 
     /**
@@ -0,0 +1,145 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.entity.EntityCondition;
+import org.moqui.entity.EntityValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 媒体识别结果缓存（McpMediaAnalysis）
+ * 同一图片、语音被反复转发时直接返回上次的识别文本，不再调用识别服务。
+ * 先按 file_unique_id 查找，找不到再按内容 SHA-256 查找（同一内容重新上传时 file_unique_id 不同）；
+ * 每条结果记录产生它的服务商及其版本（mcp.media.analysis.<image|speech>.<provider>.version 加模型名），版本变化或超过 TTL 即视为未命中
+ */
+public class McpMediaAnalysisCache {
+    private static final Logger logger = LoggerFactory.getLogger(McpMediaAnalysisCache.class);
+
+    static final String ANALYSIS_ENTITY = "mcp.media.McpMediaAnalysis";
+    public static final String TYPE_IMAGE = "IMAGE";
+    public static final String TYPE_SPEECH = "SPEECH";
+
+    private McpMediaAnalysisCache() { }
+
+    /** 服务商当前的结果版本；升级模型或调整提示词时修改配置即可让旧结果失效 */
+    public static String providerVersion(ExecutionContextFactory ecf, String analysisType, String provider, String model) {
+        String version = McpConfig.get(ecf, "mcp.media.analysis." + analysisType.toLowerCase() + "." + provider + ".version", "1");
+        return model != null && !model.isEmpty() ? version + "/" + model : version;
+    }
+
+    /**
+     * 查找缓存的识别文本；currentVersion 按服务商名返回当前版本。contentHash 可为 null（只按 mediaKey 查找）
+     */
+    public static String lookup(ExecutionContext ec, String analysisType, String mediaKey, String contentHash,
+                                Function<String, String> currentVersion) {
+        if (mediaKey == null && contentHash == null) return null;
+        boolean alreadyDisabled = ec.getArtifactExecution().disableAuthz();
+        try {
+            EntityValue row = mediaKey != null ? ec.getEntity().find(ANALYSIS_ENTITY)
+                    .condition("mediaKey", mediaKey)
+                    .condition("analysisType", analysisType)
+                    .one() : null;
+            if (!usable(ec, row, currentVersion) && contentHash != null) {
+                row = ec.getEntity().find(ANALYSIS_ENTITY)
+                        .condition("contentHash", contentHash)
+                        .condition("analysisType", analysisType)
+                        .condition("expireDate", EntityCondition.GREATER_THAN, ec.getUser().getNowTimestamp())
+                        .orderBy("-createdDate")
+                        .limit(1)
+                        .list()
+                        .getFirst();
+            }
+            if (!usable(ec, row, currentVersion)) return null;
+            logger.info("Media analysis cache hit: type={}, mediaKey={}, provider={}", analysisType, mediaKey, row.getString("providerName"));
+            return row.getString("resultText");
+        } catch (Exception e) {
+            logger.warn("Media analysis cache lookup failed: {}", e.getMessage());
+            return null;
+        } finally {
+            if (!alreadyDisabled) ec.getArtifactExecution().enableAuthz();
+        }
+    }
+
+    private static boolean usable(ExecutionContext ec, EntityValue row, Function<String, String> currentVersion) {
+        if (row == null || row.getString("resultText") == null) return false;
+        Timestamp expireDate = row.getTimestamp("expireDate");
+        if (expireDate != null && !expireDate.after(ec.getUser().getNowTimestamp())) return false;
+        String provider = row.getString("providerName");
+        return provider != null && currentVersion.apply(provider).equals(row.getString("providerVersion"));
+    }
+
+    /**
+     * 保存识别结果，在独立事务中写入，失败不影响本次回复；mediaKey 为空时以内容哈希作为键
+     */
+    public static void store(ExecutionContext ec, String analysisType, String mediaKey, String contentHash,
+                             String provider, String providerVersion, String resultText) {
+        String key = mediaKey != null ? mediaKey : contentHash;
+        if (key == null || resultText == null || resultText.trim().isEmpty()) return;
+        long ttlMillis = McpConfig.getLong(ec.getFactory(), "mcp.media.analysis.ttl.days", 30L) * 86400_000L;
+        Timestamp now = ec.getUser().getNowTimestamp();
+        boolean alreadyDisabled = ec.getArtifactExecution().disableAuthz();
+        try {
+            ec.getTransaction().runRequireNew(30, "Error storing media analysis", () -> {
+                EntityValue row = ec.getEntity().makeValue(ANALYSIS_ENTITY);
+                row.set("mediaKey", key);
+                row.set("analysisType", analysisType);
+                row.set("contentHash", contentHash);
+                row.set("providerName", provider);
+                row.set("providerVersion", providerVersion);
+                row.set("resultText", resultText);
+                row.set("createdDate", now);
+                row.set("expireDate", new Timestamp(now.getTime() + ttlMillis));
+                row.createOrUpdate();
+                return null;
+            });
+        } catch (Exception e) {
+            logger.warn("Failed to store media analysis for {}: {}", key, e.getMessage());
+        } finally {
+            if (!alreadyDisabled) ec.getArtifactExecution().enableAuthz();
+        }
+    }
+
+    /** 文件内容的 SHA-256（十六进制）；读取失败返回 null */
+    public static String contentHash(Path path) {
+        if (path == null) return null;
+        try (InputStream in = Files.newInputStream(path)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) digest.update(buffer, 0, read);
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            logger.warn("Cannot hash media file {}: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * moqui.mcp.purge#MediaAnalysis 服务实现，删除过期的缓存结果
+     */
+    public static Map<String, Object> purgeMediaAnalysis(ExecutionContext ec) {
+        Timestamp now = ec.getUser().getNowTimestamp();
+        long deleted = (Long) ec.getTransaction().runRequireNew(300, "Error purging media analysis", () ->
+                ec.getEntity().find(ANALYSIS_ENTITY)
+                        .condition("expireDate", EntityCondition.LESS_THAN, now)
+                        .deleteAll());
+        logger.info("Media analysis cache purge: deleted={}", deleted);
+        Map<String, Object> result = new HashMap<>();
+        result.put("deletedCount", (int) deleted);
+        return result;
+    }
+}
@@ -0,0 +1,162 @@
+package org.moqui.mcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * 媒体文件句柄：本地缓存文件或限长下载到临时文件的文件
+ * 识别服务的请求体按流生成，Base64 编码边读边写进请求，每个进行中的请求只占用固定大小的缓冲区，与文件大小无关；
+ * 关闭时删除临时文件，缓存文件保留
+ */
+public final class McpMediaFile implements AutoCloseable {
+    /** 每次编码的原始字节数，必须是 3 的倍数，保证只在末尾出现填充 */
+    private static final int CHUNK = 48 * 1024;
+
+    private final Path path;
+    private final long size;
+    private final boolean temporary;
+
+    private McpMediaFile(Path path, long size, boolean temporary) {
+        this.path = path;
+        this.size = size;
+        this.temporary = temporary;
+    }
+
+    public Path getPath() { return path; }
+    public long getSize() { return size; }
+
+    /** 已在本地的文件，关闭时不删除 */
+    public static McpMediaFile local(Path path) throws IOException {
+        return new McpMediaFile(path, Files.size(path), false);
+    }
+
+    /** 本类之外生成的临时文件（如重新编码的图片），关闭时删除 */
+    static McpMediaFile temporary(Path path) throws IOException {
+        return new McpMediaFile(path, Files.size(path), true);
+    }
+
+    /**
+     * 流式下载到临时文件，超过 maxBytes 立即中止；非 200 响应返回 null
+     */
+    public static McpMediaFile download(HttpClient httpClient, String url, long maxBytes, Duration timeout)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder().uri(URI.create(url)).GET().timeout(timeout).build();
+        HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream in = response.body()) {
+            if (response.statusCode() != 200) return null;
+            long declared = response.headers().firstValueAsLong("Content-Length").orElse(-1L);
+            if (declared > maxBytes) throw new IOException("Media file is " + declared + " bytes, limit is " + maxBytes);
+
+            Path temp = Files.createTempFile("mcp-media-", ".tmp");
+            long size = 0;
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    size += read;
+                    if (size > maxBytes) throw new IOException("Media file exceeds " + maxBytes + " bytes");
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            return new McpMediaFile(temp, size, true);
+        }
+    }
+
+    /** Base64 编码后的长度（含填充） */
+    public long base64Length() {
+        return (size + 2) / 3 * 4;
+    }
+
+    /**
+     * JSON 请求体：prefix + 文件内容的 Base64 + suffix，按流生成并带准确的 Content-Length
+     */
+    public HttpRequest.BodyPublisher base64Body(String prefix, String suffix) {
+        byte[] head = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] tail = suffix.getBytes(StandardCharsets.UTF_8);
+        HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return new SequenceInputStream(new SequenceInputStream(new ByteArrayInputStream(head),
+                        new Base64InputStream(Files.newInputStream(path))), new ByteArrayInputStream(tail));
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        });
+        return HttpRequest.BodyPublishers.fromPublisher(stream, head.length + base64Length() + tail.length);
+    }
+
+    @Override
+    public void close() {
+        if (!temporary) return;
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) { }
+    }
+
+    /** 读取原始字节并输出 Base64 字符的输入流 */
+    static final class Base64InputStream extends InputStream {
+        private final InputStream source;
+        private final Base64.Encoder encoder = Base64.getEncoder();
+        private final byte[] raw = new byte[CHUNK];
+        private byte[] encoded = new byte[0];
+        private int position;
+        private boolean finished;
+
+        Base64InputStream(InputStream source) {
+            this.source = source;
+        }
+
+        private boolean fill() throws IOException {
+            if (position < encoded.length) return true;
+            if (finished) return false;
+            int length = 0;
+            while (length < raw.length) {
+                int read = source.read(raw, length, raw.length - length);
+                if (read < 0) {
+                    finished = true;
+                    break;
+                }
+                length += read;
+            }
+            if (length == 0) return false;
+            encoded = encoder.encode(length == raw.length ? raw : Arrays.copyOf(raw, length));
+            position = 0;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? encoded[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (!fill()) return -1;
+            int count = Math.min(length, encoded.length - position);
+            System.arraycopy(encoded, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContext;
+import org.moqui.entity.EntityCondition;
+import org.moqui.entity.EntityFind;
+import org.moqui.entity.EntityList;
+import org.moqui.entity.EntityValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 商家每日活跃度汇总（McpMerchantDailyActivity）
+ * 发布与对话写入时按 (商家, 日期) 增量累加，analyze#MerchantBehavior 只读取窗口内的 N 行汇总，
+ * 不再对 Listing 与 McpDialogMessage 原始表做计数
+ */
+public class McpMerchantActivity {
+    private static final Logger logger = LoggerFactory.getLogger(McpMerchantActivity.class);
+
+    static final String ACTIVITY_ENTITY = "mcp.analytics.McpMerchantDailyActivity";
+    static final String INCREMENT_SERVICE = "moqui.mcp.increment#MerchantDailyActivity";
+    private static final String LISTING_ENTITY = "marketplace.listing.Listing";
+    private static final String MESSAGE_ENTITY = "mcp.dialog.McpDialogMessage";
+    private static final String SESSION_ENTITY = "mcp.dialog.McpDialogSession";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int SCAN_CHUNK = 1000;
+
+    private McpMerchantActivity() { }
+
+    /** 单个 (商家, 日期) 的计数增量 */
+    static final class Delta {
+        long supply;
+        long demand;
+        long chat;
+    }
+
+    /**
+     * 在独立事务中累加计数；首次写入并发创建同一行时重试为更新
+     */
+    public static void increment(ExecutionContext ec, String merchantId, Date activityDate, long supply, long demand, long chat) {
+        if (merchantId == null || activityDate == null || (supply == 0 && demand == 0 && chat == 0)) return;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                ec.getTransaction().runRequireNew(30, "Error updating merchant daily activity", () -> {
+                    EntityValue row = ec.getEntity().find(ACTIVITY_ENTITY)
+                            .condition("merchantId", merchantId)
+                            .condition("activityDate", activityDate)
+                            .forUpdate(true)
+                            .one();
+                    if (row == null) {
+                        row = ec.getEntity().makeValue(ACTIVITY_ENTITY);
+                        row.set("merchantId", merchantId);
+                        row.set("activityDate", activityDate);
+                        row.set("supplyCount", supply);
+                        row.set("demandCount", demand);
+                        row.set("chatTurnCount", chat);
+                        row.create();
+                    } else {
+                        row.set("supplyCount", value(row, "supplyCount") + supply);
+                        row.set("demandCount", value(row, "demandCount") + demand);
+                        row.set("chatTurnCount", value(row, "chatTurnCount") + chat);
+                        row.update();
+                    }
+                    return null;
+                });
+                return;
+            } catch (Exception e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    logger.warn("Failed to update daily activity for merchant {} on {}: {}", merchantId, activityDate, e.getMessage());
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 对话记录落库后调用：按 (商家, 日期) 汇总后每组只写一次；缺少 merchantId 的记录按会话补齐
+     */
+    static void recordChatTurns(ExecutionContext ec, List<Map<String, Object>> messages) {
+        Map<String, String> merchantBySession = new HashMap<>();
+        Set<String> unresolved = new HashSet<>();
+        for (Map<String, Object> message : messages) {
+            if (message.get("merchantId") == null && message.get("sessionId") != null) unresolved.add((String) message.get("sessionId"));
+        }
+        if (!unresolved.isEmpty()) {
+            boolean alreadyDisabled = ec.getArtifactExecution().disableAuthz();
+            try {
+                EntityList sessions = ec.getEntity().find(SESSION_ENTITY)
+                        .condition("sessionId", EntityCondition.IN, unresolved)
+                        .selectField("sessionId")
+                        .selectField("merchantId")
+                        .list();
+                for (EntityValue session : sessions) merchantBySession.put(session.getString("sessionId"), session.getString("merchantId"));
+            } finally {
+                if (!alreadyDisabled) ec.getArtifactExecution().enableAuthz();
+            }
+        }
+
+        Map<List<Object>, Delta> deltas = new HashMap<>();
+        for (Map<String, Object> message : messages) {
+            String merchantId = message.get("merchantId") != null ? message.get("merchantId").toString()
+                    : merchantBySession.get(message.get("sessionId"));
+            Date day = dayOf(message.get("processedDate"));
+            if (merchantId == null || day == null) continue;
+            deltas.computeIfAbsent(List.of(merchantId, day), k -> new Delta()).chat++;
+        }
+        apply(ec, deltas);
+    }
+
+    /**
+     * moqui.mcp.record#ListingActivity 服务实现，由 Listing 创建的 EECA 调用
+     */
+    public static Map<String, Object> recordListingActivity(ExecutionContext ec) {
+        Map<String, Object> parameters = ec.getContext();
+        String listingType = (String) parameters.get("listingType");
+        String publisherId = (String) parameters.get("publisherId");
+        long supply = "SUPPLY".equals(listingType) ? 1 : 0;
+        long demand = "DEMAND".equals(listingType) ? 1 : 0;
+        if (publisherId == null || (supply == 0 && demand == 0)) return new HashMap<>();
+        Date day = dayOf(parameters.get("createdDate") != null ? parameters.get("createdDate") : ec.getUser().getNowTimestamp());
+        // 发布事务提交后再累加：回滚的发布不计数，计数行的锁也不会占用发布事务
+        ec.getService().special().name(INCREMENT_SERVICE).parameters(Map.of(
+                "merchantId", publisherId,
+                "activityDate", day,
+                "supplyCount", supply,
+                "demandCount", demand
+        )).registerOnCommit();
+        return new HashMap<>();
+    }
+
+    /**
+     * moqui.mcp.increment#MerchantDailyActivity 服务实现，由 record#ListingActivity 注册在发布事务提交后执行
+     */
+    public static Map<String, Object> incrementMerchantDailyActivity(ExecutionContext ec) {
+        Map<String, Object> parameters = ec.getContext();
+        increment(ec, (String) parameters.get("merchantId"), dayOf(parameters.get("activityDate")),
+                count(parameters.get("supplyCount")), count(parameters.get("demandCount")), count(parameters.get("chatTurnCount")));
+        return new HashMap<>();
+    }
+
+    private static long count(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0L;
+    }
+
+    /**
+     * moqui.mcp.backfill#MerchantDailyActivity 服务实现：按原始表重算 [fromDate, thruDate) 内的汇总行
+     * thruDate 默认为今天，不触碰仍在增量累加的当天数据
+     */
+    public static Map<String, Object> backfillMerchantDailyActivity(ExecutionContext ec) {
+        Map<String, Object> parameters = ec.getContext();
+        Date fromDate = dayOf(parameters.get("fromDate"));
+        Date thruDate = parameters.get("thruDate") != null ? dayOf(parameters.get("thruDate")) : Date.valueOf(LocalDate.now());
+        String merchantId = (String) parameters.get("merchantId");
+        if (fromDate == null) fromDate = Date.valueOf(LocalDate.now().minusDays(90));
+        Timestamp from = new Timestamp(fromDate.getTime());
+        Timestamp thru = new Timestamp(thruDate.getTime());
+
+        Map<List<Object>, Delta> deltas = new HashMap<>();
+        scanListings(ec, from, thru, merchantId, deltas);
+        scanMessages(ec, from, thru, merchantId, deltas);
+
+        Date rangeFrom = fromDate;
+        ec.getTransaction().runRequireNew(300, "Error backfilling merchant daily activity", () -> {
+            EntityFind existing = ec.getEntity().find(ACTIVITY_ENTITY)
+                    .condition("activityDate", EntityCondition.GREATER_THAN_EQUAL_TO, rangeFrom)
+                    .condition("activityDate", EntityCondition.LESS_THAN, thruDate);
+            if (merchantId != null) existing.condition("merchantId", merchantId);
+            existing.deleteAll();
+
+            List<EntityValue> rows = new ArrayList<>(deltas.size());
+            for (Map.Entry<List<Object>, Delta> entry : deltas.entrySet()) {
+                EntityValue row = ec.getEntity().makeValue(ACTIVITY_ENTITY);
+                row.set("merchantId", entry.getKey().get(0));
+                row.set("activityDate", entry.getKey().get(1));
+                row.set("supplyCount", entry.getValue().supply);
+                row.set("demandCount", entry.getValue().demand);
+                row.set("chatTurnCount", entry.getValue().chat);
+                rows.add(row);
+            }
+            if (!rows.isEmpty()) ec.getEntity().createBulk(rows);
+            return null;
+        });
+
+        logger.info("Backfilled {} merchant daily activity row(s) from {} to {}", deltas.size(), fromDate, thruDate);
+        Map<String, Object> result = new HashMap<>();
+        result.put("rowCount", deltas.size());
+        return result;
+    }
+
+    private static void scanListings(ExecutionContext ec, Timestamp from, Timestamp thru, String merchantId,
+                                     Map<List<Object>, Delta> deltas) {
+        McpDialogHistory.Cursor cursor = null;
+        while (true) {
+            EntityFind find = ec.getEntity().find(LISTING_ENTITY)
+                    .condition("createdDate", EntityCondition.GREATER_THAN_EQUAL_TO, from)
+                    .condition("createdDate", EntityCondition.LESS_THAN, thru)
+                    .selectField("listingId").selectField("publisherId").selectField("listingType").selectField("createdDate")
+                    .orderBy("createdDate").orderBy("listingId")
+                    .limit(SCAN_CHUNK);
+            if (merchantId != null) find.condition("publisherId", merchantId);
+            if (cursor != null) find.condition(McpDialogHistory.after(ec, "createdDate", "listingId", cursor));
+            EntityList chunk = find.list();
+            for (EntityValue listing : chunk) {
+                String publisherId = listing.getString("publisherId");
+                if (publisherId == null) continue;
+                Delta delta = deltas.computeIfAbsent(List.of(publisherId, dayOf(listing.get("createdDate"))), k -> new Delta());
+                if ("SUPPLY".equals(listing.getString("listingType"))) delta.supply++;
+                else if ("DEMAND".equals(listing.getString("listingType"))) delta.demand++;
+            }
+            if (chunk.size() < SCAN_CHUNK) break;
+            EntityValue last = chunk.get(chunk.size() - 1);
+            cursor = new McpDialogHistory.Cursor(last.getTimestamp("createdDate"), last.getString("listingId"));
+        }
+    }
+
+    private static void scanMessages(ExecutionContext ec, Timestamp from, Timestamp thru, String merchantId,
+                                     Map<List<Object>, Delta> deltas) {
+        Map<String, String> merchantBySession = new HashMap<>();
+        McpDialogHistory.Cursor cursor = null;
+        while (true) {
+            EntityFind find = ec.getEntity().find(MESSAGE_ENTITY)
+                    .condition("processedDate", EntityCondition.GREATER_THAN_EQUAL_TO, from)
+                    .condition("processedDate", EntityCondition.LESS_THAN, thru)
+                    .selectField("messageId").selectField("sessionId").selectField("merchantId").selectField("processedDate")
+                    .orderBy("processedDate").orderBy("messageId")
+                    .limit(SCAN_CHUNK);
+            if (cursor != null) find.condition(McpDialogHistory.after(ec, "processedDate", "messageId", cursor));
+            EntityList chunk = find.list();
+
+            Set<String> unresolved = new HashSet<>();
+            for (EntityValue message : chunk) {
+                String sessionId = message.getString("sessionId");
+                if (message.get("merchantId") == null && sessionId != null && !merchantBySession.containsKey(sessionId)) unresolved.add(sessionId);
+            }
+            if (!unresolved.isEmpty()) {
+                for (String sessionId : unresolved) merchantBySession.put(sessionId, null);
+                for (EntityValue session : ec.getEntity().find(SESSION_ENTITY).condition("sessionId", EntityCondition.IN, unresolved)
+                        .selectField("sessionId").selectField("merchantId").list()) {
+                    merchantBySession.put(session.getString("sessionId"), session.getString("merchantId"));
+                }
+            }
+            for (EntityValue message : chunk) {
+                String messageMerchant = message.getString("merchantId") != null ? message.getString("merchantId")
+                        : merchantBySession.get(message.getString("sessionId"));
+                if (messageMerchant == null || (merchantId != null && !merchantId.equals(messageMerchant))) continue;
+                deltas.computeIfAbsent(List.of(messageMerchant, dayOf(message.get("processedDate"))), k -> new Delta()).chat++;
+            }
+            if (chunk.size() < SCAN_CHUNK) break;
+            EntityValue last = chunk.get(chunk.size() - 1);
+            cursor = new McpDialogHistory.Cursor(last.getTimestamp("processedDate"), last.getString("messageId"));
+        }
+    }
+
+    private static void apply(ExecutionContext ec, Map<List<Object>, Delta> deltas) {
+        for (Map.Entry<List<Object>, Delta> entry : deltas.entrySet()) {
+            Delta delta = entry.getValue();
+            increment(ec, (String) entry.getKey().get(0), (Date) entry.getKey().get(1), delta.supply, delta.demand, delta.chat);
+        }
+    }
+
+    private static long value(EntityValue row, String field) {
+        Long value = row.getLong(field);
+        return value != null ? value : 0L;
+    }
+
+    /** 服务器时区的自然日 */
+    static Date dayOf(Object value) {
+        if (value instanceof Date) return (Date) value;
+        if (value instanceof java.util.Date) {
+            return Date.valueOf(new Timestamp(((java.util.Date) value).getTime()).toLocalDateTime().toLocalDate());
+        }
+        if (value instanceof String && !((String) value).isEmpty()) return Date.valueOf(((String) value).substring(0, 10));
+        return null;
+    }
+}
@@ -0,0 +1,556 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.entity.EntityCondition;
+import org.moqui.entity.EntityFind;
+import org.moqui.entity.EntityList;
+import org.moqui.entity.EntityValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * McpDialogMessage 冷归档
+ * 超过保留期的消息按会话分块、Deflate 压缩后追加写入本地段文件（只追加，不改写），
+ * sessionId → (段号, 偏移, 长度) 的定长索引通过内存映射读取；同一会话的索引条目经前驱指针串成链，
+ * 链头记录在内存映射的开放寻址会话表中，查找不占用堆内存，启动时也无需扫描索引。
+ * 归档后的行从热表删除，历史查询经 McpDialogHistory 透明合并归档内容
+ */
+public class McpMessageArchive {
+    private static final Logger logger = LoggerFactory.getLogger(McpMessageArchive.class);
+
+    public static final String TOOL_NAME = "McpMessageArchive";
+    private static final String MESSAGE_ENTITY = "mcp.dialog.McpDialogMessage";
+
+    private static final int CHUNK_MAGIC = 0x4D434131;
+    private static final int INDEX_MAGIC = 0x4D434931;
+    private static final int SESSIONS_MAGIC = 0x4D435331;
+    private static final int CHUNK_HEADER = 12;
+    /** 索引条目定长：sessionId(2+80) 段号(4) 偏移(8) 长度(4) 条数(4) 最早/最晚时间(8+8) 同会话前一条目(4)，其余补齐 */
+    private static final int ENTRY_BYTES = 128;
+    /** 会话表头：魔数、槽位数、会话数、已登记的索引条目数（-1 表示更新中途中断，需重建）；槽位为 哈希(4) 链头条目+1(4) */
+    private static final int SESSIONS_HEADER = 16;
+    private static final int SESSION_SLOT_BYTES = 8;
+    private static final int INITIAL_SESSION_SLOTS = 4096;
+    private static final int MAX_ID_BYTES = 80;
+    private static final int INITIAL_ENTRIES = 4096;
+    private static final String[] FIELDS = {"messageId", "sessionId", "messageType", "message", "content",
+            "aiResponse", "intent", "merchantId"};
+
+    private final Path directory;
+    private final long segmentMaxBytes;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int entryCount;
+
+    private final FileChannel sessionsChannel;
+    private MappedByteBuffer sessions;
+
+    private int currentSegment;
+    private FileChannel currentChannel;
+    private final Map<Integer, FileChannel> readChannels = new ConcurrentHashMap<>();
+
+    McpMessageArchive(ExecutionContextFactory ecf) {
+        this.directory = Paths.get(McpConfig.get(ecf, "mcp.archive.dir", ecf.getRuntimePath() + "/mcp/archive"));
+        this.segmentMaxBytes = McpConfig.getLong(ecf, "mcp.archive.segment.bytes", 64L * 1024 * 1024);
+        try {
+            Files.createDirectories(directory);
+            indexChannel = FileChannel.open(directory.resolve("index.dat"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean fresh = indexChannel.size() == 0;
+            mapIndex(Math.max(indexChannel.size(), (long) (INITIAL_ENTRIES + 1) * ENTRY_BYTES));
+            if (fresh) {
+                index.putInt(0, INDEX_MAGIC);
+                index.putInt(4, 0);
+                index.force();
+            } else if (index.getInt(0) != INDEX_MAGIC) {
+                throw new IllegalStateException("Invalid archive index " + directory.resolve("index.dat"));
+            }
+            entryCount = index.getInt(4);
+
+            sessionsChannel = FileChannel.open(directory.resolve("sessions.dat"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            openSessions();
+
+            currentSegment = lastSegmentNumber();
+            currentChannel = openSegment(currentSegment);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open message archive at " + directory, e);
+        }
+        logger.info("McpMessageArchive opened at {} with {} chunk(s) for {} session(s)", directory, entryCount, sessions.getInt(8));
+    }
+
+    public static McpMessageArchive getInstance(ExecutionContext ec) {
+        return ec.getTool(TOOL_NAME, McpMessageArchive.class);
+    }
+
+    public int getChunkCount() { return entryCount; }
+    public int getSessionCount() {
+        lock.readLock().lock();
+        try { return sessions.getInt(8); } finally { lock.readLock().unlock(); }
+    }
+
+    public boolean hasSession(String sessionId) {
+        lock.readLock().lock();
+        try { return headEntry(sessionId) >= 0; } finally { lock.readLock().unlock(); }
+    }
+
+    /** sessionId 超出索引条目的长度时无法归档，相应消息留在热表 */
+    static boolean canIndex(String sessionId) {
+        return sessionId != null && sessionId.getBytes(StandardCharsets.UTF_8).length <= MAX_ID_BYTES;
+    }
+
+    /**
+     * 追加一批按会话分组的消息：先写段文件并刷盘，再写索引条目并更新条目数（索引条目数是提交点）
+     */
+    public void append(Map<String, List<Map<String, Object>>> bySession) {
+        if (bySession.isEmpty()) return;
+        lock.writeLock().lock();
+        try {
+            List<long[]> chunkInfo = new ArrayList<>(bySession.size());
+            List<String> chunkSessions = new ArrayList<>(bySession.size());
+            for (Map.Entry<String, List<Map<String, Object>>> entry : bySession.entrySet()) {
+                if (!canIndex(entry.getKey())) throw new IllegalArgumentException("sessionId too long to archive: " + entry.getKey());
+                byte[] compressed = deflate(encode(entry.getValue()));
+                int chunkLength = CHUNK_HEADER + compressed.length;
+                if (currentChannel.size() > 0 && currentChannel.size() + chunkLength > segmentMaxBytes) {
+                    currentChannel.force(false);
+                    currentChannel.close();
+                    currentSegment++;
+                    currentChannel = openSegment(currentSegment);
+                }
+                long offset = currentChannel.size();
+                ByteBuffer chunk = ByteBuffer.allocate(chunkLength);
+                chunk.putInt(CHUNK_MAGIC).putInt(entry.getValue().size()).putInt(compressed.length).put(compressed);
+                chunk.flip();
+                long position = offset;
+                while (chunk.hasRemaining()) position += currentChannel.write(chunk, position);
+
+                long minMillis = Long.MAX_VALUE;
+                long maxMillis = Long.MIN_VALUE;
+                for (Map<String, Object> message : entry.getValue()) {
+                    long millis = millisOf(message.get("processedDate"));
+                    minMillis = Math.min(minMillis, millis);
+                    maxMillis = Math.max(maxMillis, millis);
+                }
+                chunkInfo.add(new long[]{currentSegment, offset, chunkLength, entry.getValue().size(), minMillis, maxMillis});
+                chunkSessions.add(entry.getKey());
+            }
+            currentChannel.force(false);
+
+            ensureIndexCapacity(entryCount + chunkInfo.size());
+            for (int i = 0; i < chunkInfo.size(); i++) {
+                writeEntry(entryCount + i, chunkSessions.get(i), chunkInfo.get(i));
+            }
+            index.force();
+            index.putInt(4, entryCount + chunkInfo.size());
+            index.force();
+            int firstNew = entryCount;
+            entryCount += chunkInfo.size();
+            if (!linkSessions(firstNew)) throw new IllegalStateException("Message archive session table is inconsistent with " + directory.resolve("index.dat"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to append to message archive", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 读取会话中排在 cursor 之前（cursor 为空时从最新开始）的最多 limit 条归档消息，新的在前。
+     * 按块的最晚时间从新到旧解压，已凑够 limit 条且剩余的块都早于第 limit 条时停止，更早的块不解压
+     */
+    public List<Map<String, Object>> read(String sessionId, McpDialogHistory.Cursor cursor, int limit) {
+        List<long[]> chunks = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int entry = headEntry(sessionId); entry >= 0; entry = prevEntry(entry)) {
+                int base = (entry + 1) * ENTRY_BYTES;
+                long minMillis = index.getLong(base + 102);
+                if (cursor != null && minMillis > cursor.date.getTime()) continue;
+                chunks.add(new long[]{index.getInt(base + 82), index.getLong(base + 86), index.getInt(base + 94), index.getLong(base + 110)});
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        chunks.sort(Comparator.comparingLong((long[] chunk) -> chunk[3]).reversed());
+
+        // 归档任务中断重跑时同一消息可能写入两次，按 messageId 去重
+        Map<String, Map<String, Object>> byId = new HashMap<>();
+        List<Map<String, Object>> messages = new ArrayList<>();
+        try {
+            for (long[] chunk : chunks) {
+                if (messages.size() >= limit && chunk[3] < millisOf(messages.get(limit - 1).get("processedDate"))) break;
+                for (Map<String, Object> message : readChunk((int) chunk[0], chunk[1], (int) chunk[2])) {
+                    if (cursor == null || McpDialogHistory.isBefore(message, cursor)) byId.put((String) message.get("messageId"), message);
+                }
+                messages = new ArrayList<>(byId.values());
+                messages.sort(McpDialogHistory.NEWEST_FIRST);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read archived messages for session " + sessionId, e);
+        }
+        return messages.size() > limit ? new ArrayList<>(messages.subList(0, limit)) : messages;
+    }
+
+    /**
+     * moqui.mcp.archive#DialogMessages 服务实现：分批把超过保留期的消息移入归档
+     */
+    public static Map<String, Object> archiveDialogMessages(ExecutionContext ec) {
+        Map<String, Object> parameters = ec.getContext();
+        int ageDays = parameters.get("ageDays") != null ? ((Number) parameters.get("ageDays")).intValue()
+                : McpConfig.getInt(ec.getFactory(), "mcp.archive.age.days", 90);
+        int batchSize = McpConfig.getInt(ec.getFactory(), "mcp.archive.batch.size", 1000);
+        int maxMessages = parameters.get("maxMessages") != null ? ((Number) parameters.get("maxMessages")).intValue() : 100000;
+        Timestamp cutoff = new Timestamp(ec.getUser().getNowTimestamp().getTime() - ageDays * 86400000L);
+        McpMessageArchive archive = getInstance(ec);
+
+        int archivedCount = 0;
+        Timestamp lastDate = null;
+        String lastId = null;
+        while (archivedCount < maxMessages) {
+            EntityFind find = ec.getEntity().find(MESSAGE_ENTITY)
+                    .condition("processedDate", EntityCondition.LESS_THAN, cutoff)
+                    .orderBy("processedDate")
+                    .orderBy("messageId")
+                    .limit(Math.min(batchSize, maxMessages - archivedCount));
+            // 无法归档而留在热表的行通过游标跳过，避免重复读取
+            if (lastDate != null) {
+                find.condition(McpDialogHistory.after(ec, "processedDate", "messageId", new McpDialogHistory.Cursor(lastDate, lastId)));
+            }
+            EntityList batch = find.list();
+            if (batch.isEmpty()) break;
+
+            Map<String, List<Map<String, Object>>> bySession = new LinkedHashMap<>();
+            List<String> messageIds = new ArrayList<>(batch.size());
+            for (EntityValue value : batch) {
+                String sessionId = value.getString("sessionId");
+                if (!canIndex(sessionId)) continue;
+                Map<String, Object> message = new HashMap<>();
+                for (String field : FIELDS) message.put(field, value.get(field));
+                message.put("processedDate", value.getTimestamp("processedDate"));
+                bySession.computeIfAbsent(sessionId, k -> new ArrayList<>()).add(message);
+                messageIds.add(value.getString("messageId"));
+            }
+            EntityValue last = batch.get(batch.size() - 1);
+            lastDate = last.getTimestamp("processedDate");
+            lastId = last.getString("messageId");
+
+            archive.append(bySession);
+            if (!messageIds.isEmpty()) {
+                ec.getTransaction().runRequireNew(60, "Error deleting archived dialog messages", () ->
+                        ec.getEntity().find(MESSAGE_ENTITY).condition("messageId", EntityCondition.IN, messageIds).deleteAll());
+            }
+            archivedCount += messageIds.size();
+            if (batch.size() < batchSize) break;
+        }
+
+        if (archivedCount > 0) logger.info("Archived {} dialog message(s) older than {}", archivedCount, cutoff);
+        Map<String, Object> result = new HashMap<>();
+        result.put("archivedCount", archivedCount);
+        return result;
+    }
+
+    void destroy() {
+        lock.writeLock().lock();
+        try {
+            if (currentChannel != null) {
+                currentChannel.force(true);
+                currentChannel.close();
+            }
+            index.force();
+            sessions.force();
+            for (FileChannel channel : readChannels.values()) channel.close();
+            indexChannel.close();
+            sessionsChannel.close();
+        } catch (IOException e) {
+            logger.warn("Error closing message archive: {}", e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private List<Map<String, Object>> readChunk(int segment, long offset, int length) throws IOException {
+        FileChannel channel = readChannels.computeIfAbsent(segment, s -> {
+            try {
+                return FileChannel.open(segmentPath(s), StandardOpenOption.READ);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Truncated archive segment " + segment + " at " + offset);
+            position += read;
+        }
+        buffer.flip();
+        if (buffer.getInt() != CHUNK_MAGIC) throw new IOException("Corrupt archive chunk in segment " + segment + " at " + offset);
+        int count = buffer.getInt();
+        int compressedLength = buffer.getInt();
+        byte[] compressed = new byte[compressedLength];
+        buffer.get(compressed);
+
+        List<Map<String, Object>> messages = new ArrayList<>(count);
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)))) {
+            for (int i = 0; i < count; i++) {
+                Map<String, Object> message = new HashMap<>();
+                for (String field : FIELDS) {
+                    String value = readString(in);
+                    if (value != null) message.put(field, value);
+                }
+                long seconds = in.readLong();
+                int nanos = in.readInt();
+                if (nanos >= 0) {
+                    Timestamp processedDate = new Timestamp(seconds * 1000L);
+                    processedDate.setNanos(nanos);
+                    message.put("processedDate", processedDate);
+                }
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    private static byte[] encode(List<Map<String, Object>> messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (Map<String, Object> message : messages) {
+                for (String field : FIELDS) writeString(out, message.get(field));
+                Object processedDate = message.get("processedDate");
+                if (processedDate instanceof Timestamp) {
+                    Timestamp ts = (Timestamp) processedDate;
+                    out.writeLong(Math.floorDiv(ts.getTime(), 1000L));
+                    out.writeInt(ts.getNanos());
+                } else {
+                    out.writeLong(0L);
+                    out.writeInt(-1);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] raw) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length / 3 + 64);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes)) {
+            out.write(raw);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long millisOf(Object value) {
+        return value instanceof java.util.Date ? ((java.util.Date) value).getTime() : 0L;
+    }
+
+    private void writeEntry(int entry, String sessionId, long[] info) {
+        int base = (entry + 1) * ENTRY_BYTES;
+        byte[] id = sessionId.getBytes(StandardCharsets.UTF_8);
+        index.putShort(base, (short) id.length);
+        ByteBuffer view = index.duplicate();
+        view.position(base + 2);
+        view.put(id);
+        index.putInt(base + 82, (int) info[0]);
+        index.putLong(base + 86, info[1]);
+        index.putInt(base + 94, (int) info[2]);
+        index.putInt(base + 98, (int) info[3]);
+        index.putLong(base + 102, info[4]);
+        index.putLong(base + 110, info[5]);
+    }
+
+    private String entrySessionId(int entry) {
+        int base = (entry + 1) * ENTRY_BYTES;
+        byte[] id = new byte[index.getShort(base)];
+        ByteBuffer view = index.duplicate();
+        view.position(base + 2);
+        view.get(id);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    private void ensureIndexCapacity(int entries) throws IOException {
+        long required = (long) (entries + 1) * ENTRY_BYTES;
+        if (required <= index.capacity()) return;
+        long capacity = index.capacity();
+        while (capacity < required) capacity *= 2;
+        index.force();
+        mapIndex(capacity);
+    }
+
+    private void mapIndex(long capacity) throws IOException {
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /** 会话表缺失、损坏或上次更新中断时从索引重建；只差最后几批条目时补登记 */
+    private void openSessions() throws IOException {
+        boolean valid = sessionsChannel.size() >= SESSIONS_HEADER;
+        if (valid) {
+            sessions = sessionsChannel.map(FileChannel.MapMode.READ_WRITE, 0, sessionsChannel.size());
+            valid = sessions.getInt(0) == SESSIONS_MAGIC && Integer.bitCount(sessions.getInt(4)) == 1
+                    && sessions.getInt(12) >= 0 && sessions.getInt(12) <= entryCount
+                    && sessionsChannel.size() == SESSIONS_HEADER + (long) sessions.getInt(4) * SESSION_SLOT_BYTES;
+        }
+        if (valid && sessions.getInt(12) < entryCount) valid = linkSessions(sessions.getInt(12));
+        if (!valid) {
+            logger.info("Rebuilding message archive session table from {} index entries", entryCount);
+            sessionsChannel.truncate(0);
+            sessions = sessionsChannel.map(FileChannel.MapMode.READ_WRITE, 0, SESSIONS_HEADER + (long) INITIAL_SESSION_SLOTS * SESSION_SLOT_BYTES);
+            for (int i = 0; i < INITIAL_SESSION_SLOTS; i++) sessions.putLong(SESSIONS_HEADER + i * SESSION_SLOT_BYTES, 0L);
+            sessions.putInt(0, SESSIONS_MAGIC);
+            sessions.putInt(4, INITIAL_SESSION_SLOTS);
+            sessions.putInt(8, 0);
+            sessions.putInt(12, 0);
+            linkSessions(0);
+        }
+    }
+
+    /**
+     * 把 from 之后的索引条目接到各自会话链的链头，完成后记录已登记的条目数；
+     * 链头不早于待登记条目说明会话表与索引不一致，返回 false 由调用方重建
+     */
+    private boolean linkSessions(int from) throws IOException {
+        sessions.putInt(12, -1);
+        sessions.force();
+        for (int entry = from; entry < entryCount; entry++) {
+            String sessionId = entrySessionId(entry);
+            int head = headEntry(sessionId);
+            if (head >= entry) return false;
+            index.putInt((entry + 1) * ENTRY_BYTES + 118, head + 1);
+            putHeadEntry(sessionId, entry);
+        }
+        index.force();
+        sessions.force();
+        sessions.putInt(12, entryCount);
+        sessions.force();
+        return true;
+    }
+
+    private int prevEntry(int entry) {
+        return index.getInt((entry + 1) * ENTRY_BYTES + 118) - 1;
+    }
+
+    /** 会话最新的索引条目，不存在时返回 -1 */
+    private int headEntry(String sessionId) {
+        int hash = sessionHash(sessionId);
+        int mask = sessions.getInt(4) - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int position = SESSIONS_HEADER + slot * SESSION_SLOT_BYTES;
+            int entry = sessions.getInt(position + 4) - 1;
+            if (entry < 0) return -1;
+            if (sessions.getInt(position) == hash && entrySessionId(entry).equals(sessionId)) return entry;
+        }
+    }
+
+    private void putHeadEntry(String sessionId, int entry) throws IOException {
+        int hash = sessionHash(sessionId);
+        int mask = sessions.getInt(4) - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int position = SESSIONS_HEADER + slot * SESSION_SLOT_BYTES;
+            int current = sessions.getInt(position + 4) - 1;
+            if (current < 0) break;
+            if (sessions.getInt(position) == hash && entrySessionId(current).equals(sessionId)) {
+                sessions.putInt(position + 4, entry + 1);
+                return;
+            }
+        }
+        // 新会话：负载超过一半时先扩容
+        if ((sessions.getInt(8) + 1) * 2 > sessions.getInt(4)) growSessions();
+        insertSlot(hash, entry);
+        sessions.putInt(8, sessions.getInt(8) + 1);
+    }
+
+    private void insertSlot(int hash, int entry) {
+        int mask = sessions.getInt(4) - 1;
+        int slot = hash & mask;
+        while (sessions.getInt(SESSIONS_HEADER + slot * SESSION_SLOT_BYTES + 4) != 0) slot = (slot + 1) & mask;
+        int position = SESSIONS_HEADER + slot * SESSION_SLOT_BYTES;
+        sessions.putInt(position, hash);
+        sessions.putInt(position + 4, entry + 1);
+    }
+
+    private void growSessions() throws IOException {
+        int oldSlots = sessions.getInt(4);
+        long[] used = new long[sessions.getInt(8)];
+        int count = 0;
+        for (int i = 0; i < oldSlots; i++) {
+            long slot = sessions.getLong(SESSIONS_HEADER + i * SESSION_SLOT_BYTES);
+            if (slot != 0L) used[count++] = slot;
+        }
+        int newSlots = oldSlots * 2;
+        sessions = sessionsChannel.map(FileChannel.MapMode.READ_WRITE, 0, SESSIONS_HEADER + (long) newSlots * SESSION_SLOT_BYTES);
+        for (int i = 0; i < oldSlots; i++) sessions.putLong(SESSIONS_HEADER + i * SESSION_SLOT_BYTES, 0L);
+        sessions.putInt(4, newSlots);
+        // 槽位按大端读出：高 32 位为哈希，低 32 位为链头条目+1
+        for (int i = 0; i < count; i++) insertSlot((int) (used[i] >>> 32), (int) used[i] - 1);
+    }
+
+    private static int sessionHash(String sessionId) {
+        int hash = sessionId.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private int lastSegmentNumber() throws IOException {
+        int last = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.dat")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                last = Math.max(last, Integer.parseInt(name.substring(8, name.length() - 4)));
+            }
+        }
+        return last;
+    }
+
+    private FileChannel openSegment(int segment) throws IOException {
+        return FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("segment-%06d.dat", segment));
+    }
+}
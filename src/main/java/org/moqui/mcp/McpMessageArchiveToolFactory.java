@@ -0,0 +1,33 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.context.ToolFactory;
+
+/**
+ * 在 MoquiConf tools 中注册，随运行时打开/关闭 McpMessageArchive 归档文件
+ */
+public class McpMessageArchiveToolFactory implements ToolFactory<McpMessageArchive> {
+    private McpMessageArchive archive = null;
+
+    public McpMessageArchiveToolFactory() { }
+
+    @Override
+    public String getName() { return McpMessageArchive.TOOL_NAME; }
+
+    @Override
+    public void init(ExecutionContextFactory ecf) {
+        archive = new McpMessageArchive(ecf);
+    }
+
+    @Override
+    public McpMessageArchive getInstance(Object... parameters) {
+        if (archive == null) throw new IllegalStateException("McpMessageArchiveToolFactory not initialized");
+        return archive;
+    }
+
+    @Override
+    public void destroy() {
+        if (archive != null) archive.destroy();
+        archive = null;
+    }
+}
@@ -0,0 +1,406 @@
+package org.moqui.mcp;
+
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.entity.EntityList;
+import org.moqui.entity.EntityValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * McpDialogMessage 异步批量写入器
+ * 对话记录先进入有界队列，由后台线程按批量大小或时间间隔批量插入；
+ * 失败重试、关闭时排空，并为上下文构建提供未落库记录的读己之写视图。
+ * 重试耗尽或无法重新入队的记录追加到本地溢出文件，下次启动时重新入队，数据库持续不可用时也不丢记录
+ */
+public class McpMessageWriter {
+    private static final Logger logger = LoggerFactory.getLogger(McpMessageWriter.class);
+
+    public static final String TOOL_NAME = "McpMessageWriter";
+    static final String MESSAGE_ENTITY = "mcp.dialog.McpDialogMessage";
+
+    private final ExecutionContextFactory ecf;
+    private final BlockingQueue<PendingMessage> queue;
+    private final Map<String, ConcurrentLinkedQueue<PendingMessage>> pendingBySession = new ConcurrentHashMap<>();
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final int maxAttempts;
+    private final long retryBackoffMillis;
+    private final Thread flusher;
+    private final Path spillFile;
+    private final Object spillLock = new Object();
+    private volatile boolean running = true;
+
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+    private final AtomicLong syncFallbackCount = new AtomicLong();
+
+    private static final class PendingMessage {
+        final String sessionId;
+        final Map<String, Object> fields;
+        int attempts;
+        long notBeforeMillis;
+
+        PendingMessage(Map<String, Object> fields) {
+            this.sessionId = (String) fields.get("sessionId");
+            this.fields = fields;
+        }
+    }
+
+    McpMessageWriter(ExecutionContextFactory ecf) {
+        this.ecf = ecf;
+        this.queue = new ArrayBlockingQueue<>(McpConfig.getInt(ecf, "mcp.message.writer.queue.size", 10000));
+        this.batchSize = McpConfig.getInt(ecf, "mcp.message.writer.batch.size", 200);
+        this.flushIntervalMillis = McpConfig.getLong(ecf, "mcp.message.writer.flush.millis", 500L);
+        this.maxAttempts = McpConfig.getInt(ecf, "mcp.message.writer.max.attempts", 5);
+        this.retryBackoffMillis = McpConfig.getLong(ecf, "mcp.message.writer.retry.backoff.millis", 1000L);
+        this.spillFile = Paths.get(McpConfig.get(ecf, "mcp.message.writer.spill.dir", ecf.getRuntimePath() + "/mcp/message-spill"))
+                .resolve("spilled.jsonl");
+        recoverSpilled();
+
+        this.flusher = new Thread(this::runFlusher, "McpMessageWriter");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /** 获取当前运行时的写入器实例 */
+    public static McpMessageWriter getInstance(ExecutionContext ec) {
+        return ec.getTool(TOOL_NAME, McpMessageWriter.class);
+    }
+
+    /**
+     * 提交一条对话记录；fields 必须包含 messageId 与 sessionId
+     * 队列已满时在调用线程同步写入，保证不丢消息
+     */
+    public void enqueue(Map<String, Object> fields) {
+        if (fields.get("messageId") == null || fields.get("sessionId") == null) {
+            throw new IllegalArgumentException("messageId and sessionId are required");
+        }
+        PendingMessage pending = new PendingMessage(new HashMap<>(fields));
+        if (pending.fields.get("merchantId") == null) {
+            // 会话已由 McpSessionBootstrap 解析时直接补齐商家，供活跃度汇总使用
+            McpSessionBootstrap.SessionRef ref = ecf.getExecutionContext().getCache()
+                    .<String, McpSessionBootstrap.SessionRef>getCache(McpSessionBootstrap.SESSION_CACHE_NAME).get(pending.sessionId);
+            if (ref != null && ref.merchantId != null) pending.fields.put("merchantId", ref.merchantId);
+        }
+        pendingBySession.computeIfAbsent(pending.sessionId, k -> new ConcurrentLinkedQueue<>()).add(pending);
+        ecf.getTool(McpRecentTurnStore.TOOL_NAME, McpRecentTurnStore.class).append(pending.sessionId, pending.fields);
+
+        if (!running || !queue.offer(pending)) {
+            syncFallbackCount.incrementAndGet();
+            writeBatch(Collections.singletonList(pending));
+        }
+    }
+
+    /**
+     * 指定会话中尚未落库的记录（按提交顺序），用于上下文构建时与数据库结果合并
+     */
+    public List<Map<String, Object>> pending(String sessionId) {
+        ConcurrentLinkedQueue<PendingMessage> sessionPending = pendingBySession.get(sessionId);
+        if (sessionPending == null || sessionPending.isEmpty()) return Collections.emptyList();
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (PendingMessage pending : sessionPending) result.add(Collections.unmodifiableMap(pending.fields));
+        return result;
+    }
+
+    /**
+     * 最近 limit 条对话（按 processedDate 倒序）：数据库结果合并尚未落库的记录，按 messageId 去重
+     */
+    public List<Map<String, Object>> recentMessages(ExecutionContext ec, String sessionId, int limit) {
+        List<Map<String, Object>> pendingList = pending(sessionId);
+        List<Map<String, Object>> result = new ArrayList<>(limit + pendingList.size());
+        Set<Object> seenIds = new HashSet<>();
+        for (int i = pendingList.size() - 1; i >= 0 && result.size() < limit; i--) {
+            Map<String, Object> fields = pendingList.get(i);
+            if (seenIds.add(fields.get("messageId"))) result.add(fields);
+        }
+        if (result.size() < limit) {
+            boolean alreadyDisabled = ec.getArtifactExecution().disableAuthz();
+            try {
+                EntityList stored = ec.getEntity().find(MESSAGE_ENTITY)
+                        .condition("sessionId", sessionId)
+                        .orderBy("-processedDate")
+                        .limit(limit)
+                        .list();
+                for (EntityValue value : stored) {
+                    if (result.size() >= limit) break;
+                    if (seenIds.add(value.get("messageId"))) result.add(value.getMap());
+                }
+            } finally {
+                if (!alreadyDisabled) ec.getArtifactExecution().enableAuthz();
+            }
+        }
+        return result;
+    }
+
+    public int getQueueDepth() { return queue.size(); }
+    public long getWrittenCount() { return writtenCount.get(); }
+    /** 无法落库也无法写入溢出文件、真正丢失的记录数 */
+    public long getFailedCount() { return failedCount.get(); }
+    /** 写入溢出文件、等待下次启动重新入队的记录数 */
+    public long getSpilledCount() { return spilledCount.get(); }
+    public long getSyncFallbackCount() { return syncFallbackCount.get(); }
+
+    private void runFlusher() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        try {
+            flushLoop(batch);
+        } finally {
+            ecf.getExecutionContext().destroy();
+        }
+    }
+
+    private void flushLoop(List<PendingMessage> batch) {
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingMessage first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + flushIntervalMillis;
+                while (batch.size() < batchSize) {
+                    long waitMillis = deadline - System.currentTimeMillis();
+                    if (waitMillis <= 0) break;
+                    PendingMessage next = queue.poll(waitMillis, TimeUnit.MILLISECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Throwable t) {
+                logger.error("Unexpected error in dialog message flusher", t);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingMessage> batch) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        List<PendingMessage> ready = new ArrayList<>(batch.size());
+        for (PendingMessage pending : batch) {
+            if (pending.notBeforeMillis > now && running) {
+                if (!queue.offer(pending)) ready.add(pending);
+            } else {
+                ready.add(pending);
+            }
+        }
+        if (ready.isEmpty()) {
+            Thread.sleep(Math.min(flushIntervalMillis, retryBackoffMillis));
+            return;
+        }
+        writeBatch(ready);
+    }
+
+    /** 整批写入失败时逐条重试，仍失败的记录按退避重新入队 */
+    private void writeBatch(List<PendingMessage> batch) {
+        if (insert(batch)) {
+            completed(batch);
+            return;
+        }
+        if (batch.size() > 1) {
+            for (PendingMessage pending : batch) {
+                if (insert(Collections.singletonList(pending))) completed(Collections.singletonList(pending));
+                else retryLater(pending);
+            }
+        } else {
+            retryLater(batch.get(0));
+        }
+    }
+
+    private boolean insert(List<PendingMessage> batch) {
+        ExecutionContext ec = ecf.getExecutionContext();
+        boolean alreadyDisabled = ec.getArtifactExecution().disableAuthz();
+        try {
+            ec.getTransaction().runRequireNew(60, "Error saving dialog messages", () -> {
+                if (batch.size() == 1) {
+                    // 逐条重试与溢出重放时可能已写入过（如提交超时），按主键幂等写入
+                    EntityValue value = ec.getEntity().makeValue(MESSAGE_ENTITY);
+                    value.setAll(batch.get(0).fields);
+                    value.createOrUpdate();
+                    return null;
+                }
+                List<EntityValue> values = new ArrayList<>(batch.size());
+                for (PendingMessage pending : batch) {
+                    EntityValue value = ec.getEntity().makeValue(MESSAGE_ENTITY);
+                    value.setAll(pending.fields);
+                    values.add(value);
+                }
+                ec.getEntity().createBulk(values);
+                return null;
+            });
+            return true;
+        } catch (Exception e) {
+            logger.warn("Failed to write {} dialog message(s): {}", batch.size(), e.getMessage());
+            return false;
+        } finally {
+            if (!alreadyDisabled) ec.getArtifactExecution().enableAuthz();
+        }
+    }
+
+    private void completed(List<PendingMessage> batch) {
+        writtenCount.addAndGet(batch.size());
+        for (PendingMessage pending : batch) forget(pending);
+
+        List<Map<String, Object>> written = new ArrayList<>(batch.size());
+        for (PendingMessage pending : batch) written.add(pending.fields);
+        try {
+            McpMerchantActivity.recordChatTurns(ecf.getExecutionContext(), written);
+        } catch (Exception e) {
+            logger.warn("Failed to update merchant activity for {} dialog message(s): {}", written.size(), e.getMessage());
+        }
+    }
+
+    private void forget(PendingMessage pending) {
+        ConcurrentLinkedQueue<PendingMessage> sessionPending = pendingBySession.get(pending.sessionId);
+        if (sessionPending == null) return;
+        sessionPending.remove(pending);
+        if (sessionPending.isEmpty()) pendingBySession.remove(pending.sessionId, sessionPending);
+    }
+
+    private void retryLater(PendingMessage pending) {
+        pending.attempts++;
+        pending.notBeforeMillis = System.currentTimeMillis() + retryBackoffMillis * (1L << Math.min(pending.attempts, 6));
+        if (pending.attempts >= maxAttempts || !running || !queue.offer(pending)) {
+            spill(pending);
+            forget(pending);
+        }
+    }
+
+    /** 追加到溢出文件并刷盘；溢出文件也写不进去时才真正丢弃 */
+    private void spill(PendingMessage pending) {
+        Map<String, Object> record = new HashMap<>();
+        Map<String, Object> fields = new HashMap<>();
+        List<String> timestampFields = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : pending.fields.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof java.util.Date) {
+                fields.put(entry.getKey(), ((java.util.Date) value).getTime());
+                timestampFields.add(entry.getKey());
+            } else {
+                fields.put(entry.getKey(), value);
+            }
+        }
+        record.put("fields", fields);
+        record.put("timestampFields", timestampFields);
+        byte[] line = (JsonOutput.toJson(record) + "\n").getBytes(StandardCharsets.UTF_8);
+        synchronized (spillLock) {
+            try {
+                Files.createDirectories(spillFile.getParent());
+                try (FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(line);
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    channel.force(false);
+                }
+                spilledCount.incrementAndGet();
+                logger.warn("Spilled dialog message {} for session {} to {} after {} attempt(s)",
+                        pending.fields.get("messageId"), pending.sessionId, spillFile, pending.attempts);
+            } catch (IOException e) {
+                failedCount.incrementAndGet();
+                logger.error("Dropping dialog message {} for session {}; spill failed: {} {}",
+                        pending.fields.get("messageId"), pending.sessionId, e.getMessage(), JsonOutput.toJson(fields));
+            }
+        }
+    }
+
+    /** 启动时把溢出文件中的记录重新入队；放不进队列的记录留在文件中等下次启动 */
+    private void recoverSpilled() {
+        if (!Files.exists(spillFile)) return;
+        List<String> remaining = new ArrayList<>();
+        int recovered = 0;
+        try (BufferedReader reader = Files.newBufferedReader(spillFile, StandardCharsets.UTF_8)) {
+            JsonSlurper slurper = new JsonSlurper();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                PendingMessage pending;
+                try {
+                    pending = new PendingMessage(restoreFields((Map<?, ?>) slurper.parseText(line)));
+                } catch (RuntimeException e) {
+                    // 崩溃时写了一半的行
+                    logger.warn("Skipping unreadable spilled dialog message: {}", e.getMessage());
+                    continue;
+                }
+                if (pending.sessionId != null && queue.offer(pending)) {
+                    pendingBySession.computeIfAbsent(pending.sessionId, k -> new ConcurrentLinkedQueue<>()).add(pending);
+                    recovered++;
+                } else {
+                    remaining.add(line);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to read spilled dialog messages from {}: {}", spillFile, e.getMessage());
+            return;
+        }
+        try {
+            if (remaining.isEmpty()) {
+                Files.delete(spillFile);
+            } else {
+                Path temp = spillFile.resolveSibling(spillFile.getFileName() + ".tmp");
+                Files.write(temp, remaining, StandardCharsets.UTF_8);
+                Files.move(temp, spillFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            // 文件保留原样，下次启动会再次重放，按主键幂等写入
+            logger.warn("Failed to rewrite spill file {}: {}", spillFile, e.getMessage());
+        }
+        if (recovered > 0) logger.info("Re-queued {} spilled dialog message(s) from {}; {} left", recovered, spillFile, remaining.size());
+    }
+
+    private static Map<String, Object> restoreFields(Map<?, ?> record) {
+        Map<String, Object> fields = new HashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) record.get("fields")).entrySet()) fields.put(entry.getKey().toString(), entry.getValue());
+        Object timestampFields = record.get("timestampFields");
+        if (timestampFields instanceof List) {
+            for (Object name : (List<?>) timestampFields) {
+                Object millis = fields.get(name.toString());
+                if (millis instanceof Number) fields.put(name.toString(), new Timestamp(((Number) millis).longValue()));
+            }
+        }
+        return fields;
+    }
+
+    /** 停止接收新记录并排空队列 */
+    void destroy() {
+        // 不中断刷新线程，避免打断进行中的JDBC写入；轮询超时后线程自行退出
+        running = false;
+        try {
+            flusher.join(30_000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<PendingMessage> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) writeBatch(remaining);
+        logger.info("McpMessageWriter stopped: written={}, spilled={}, failed={}, syncFallback={}",
+                writtenCount.get(), spilledCount.get(), failedCount.get(), syncFallbackCount.get());
+    }
+}
@@ -0,0 +1,32 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.context.ToolFactory;
+
+/**
+ * 在 MoquiConf tools 中注册，随运行时启动/关闭 McpMessageWriter
+ */
+public class McpMessageWriterToolFactory implements ToolFactory<McpMessageWriter> {
+    private McpMessageWriter writer = null;
+
+    public McpMessageWriterToolFactory() { }
+
+    @Override
+    public String getName() { return McpMessageWriter.TOOL_NAME; }
+
+    @Override
+    public void init(ExecutionContextFactory ecf) {
+        writer = new McpMessageWriter(ecf);
+    }
+
+    @Override
+    public McpMessageWriter getInstance(Object... parameters) {
+        if (writer == null) throw new IllegalStateException("McpMessageWriterToolFactory not initialized");
+        return writer;
+    }
+
+    @Override
+    public void destroy() {
+        if (writer != null) writer.destroy();
+    }
+}
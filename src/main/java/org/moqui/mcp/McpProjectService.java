@@ -33,11 +33,14 @@ public class McpProjectService {
                 String existingContext = (String) session.get("context");
                 String updatedContext = updateContextWithPhaseData(existingContext, phase, data);
 
+                Long contextVersion = session.getLong("contextVersion");
                 ec.getService().sync().name("update#McpDialogSession").parameters(Map.of(
                         "sessionId", sessionId,
                         "context", updatedContext,
+                        "contextVersion", contextVersion != null ? contextVersion + 1 : 1L,
                         "lastModifiedDate", ec.getUser().getNowTimestamp()
                 )).call();
+                McpSessionStateStore.invalidateAfterCommit(ec, sessionId);
 
                 // 如果完成了任务阶段，创建实际的项目工作项
                 if ("task".equals(phase)) {
@@ -62,7 +65,7 @@ public class McpProjectService {
                     .condition("sessionId", sessionId)
                     .one();
 
-            String projectId = ec.getEntity().sequencedIdPrimary("org.moqui.mcp.McpProject."+sessionId,null,10L);
+            String projectId = McpIdAllocator.nextId("PRJ");
 
             // 创建主项目
             ec.getService().sync().name("create#mantle.work.effort.WorkEffort").parameters(Map.of(
@@ -98,7 +101,7 @@ public class McpProjectService {
         for (int i = 0; i < tasks.length; i++) {
             String task = tasks[i].trim();
             if (!task.isEmpty() && !task.startsWith("#")) {
-                String taskId = ec.getEntity().sequencedIdPrimary("org.moqui.mcp.McpProject."+projectId,null,10L);
+                String taskId = McpIdAllocator.nextId("TSK");
 
                 ec.getService().sync().name("create#mantle.work.effort.WorkEffort").parameters(Map.of(
                         "workEffortId", taskId,
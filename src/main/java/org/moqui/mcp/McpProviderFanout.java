@@ -0,0 +1,213 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.ExecutionContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * 多个外部服务商的并发调用，取第一个可用结果
+ * 图片识别、语音识别等有多个可互相替代的服务商，逐个顺序尝试时每个失败或超时的服务商都会把整段等待时间叠加到用户的响应上。
+ * 这里按错开时间启动候选服务商（0 为同时启动，负数为前一个失败后才启动），第一个可用结果返回后取消其余调用；
+ * 每个服务商有自己的时间预算，超出预算即取消并启动下一个。
+ * 同一服务商的多种语言等需要比较结果的场景用 collect 同时启动，收集到足够的结果后取消其余调用
+ */
+public class McpProviderFanout {
+    private static final Logger logger = LoggerFactory.getLogger(McpProviderFanout.class);
+
+    public static final String TOOL_NAME = "McpProviderFanout";
+
+    private final ExecutorService workers;
+    private final Map<String, AtomicLong> winCounts = new ConcurrentHashMap<>();
+    private final AtomicLong fanoutCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    /** 一个候选服务商 */
+    public static final class Candidate<T> {
+        final String name;
+        final long budgetMillis;
+        final Callable<T> call;
+
+        public Candidate(String name, long budgetMillis, Callable<T> call) {
+            this.name = name;
+            this.budgetMillis = budgetMillis;
+            this.call = call;
+        }
+    }
+
+    McpProviderFanout(ExecutionContextFactory ecf) {
+        int threads = Math.max(2, McpConfig.getInt(ecf, "mcp.fanout.threads", 16));
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "McpProviderFanout-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static McpProviderFanout getInstance(ExecutionContext ec) {
+        return ec.getTool(TOOL_NAME, McpProviderFanout.class);
+    }
+
+    public long getFanoutCount() { return fanoutCount.get(); }
+    public long getTimeoutCount() { return timeoutCount.get(); }
+    public long getCancelledCount() { return cancelledCount.get(); }
+
+    public Map<String, Long> getWinCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        winCounts.forEach((name, count) -> counts.put(name, count.get()));
+        return counts;
+    }
+
+    /**
+     * 按顺序错开启动候选服务商，返回第一个满足 acceptable 的结果；全部失败、超出各自预算或超出总预算时返回 null。
+     * staggerMillis：0 同时启动全部；大于 0 每隔该时间启动下一个，前一个失败时立即启动；小于 0 只在前一个失败后启动
+     */
+    public <T> T firstSuccess(String label, List<Candidate<T>> candidates, Predicate<? super T> acceptable,
+                              long staggerMillis, long totalBudgetMillis) throws InterruptedException {
+        fanoutCount.incrementAndGet();
+        CompletionService<T> completion = new ExecutorCompletionService<>(workers);
+        Map<Future<T>, Candidate<T>> running = new HashMap<>();
+        Map<Future<T>, Long> deadlines = new HashMap<>();
+        long started = System.currentTimeMillis();
+        long totalDeadline = started + totalBudgetMillis;
+        long nextLaunch = started;
+        int next = 0;
+
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                while (next < candidates.size()
+                        && (staggerMillis == 0 || running.isEmpty() || (staggerMillis > 0 && now >= nextLaunch))) {
+                    Candidate<T> candidate = candidates.get(next++);
+                    Future<T> future = completion.submit(candidate.call);
+                    running.put(future, candidate);
+                    deadlines.put(future, now + candidate.budgetMillis);
+                    nextLaunch = now + Math.max(0L, staggerMillis);
+                }
+                if (running.isEmpty() || now >= totalDeadline) return null;
+
+                long wait = totalDeadline - now;
+                for (Map.Entry<Future<T>, Long> entry : deadlines.entrySet()) wait = Math.min(wait, entry.getValue() - now);
+                if (staggerMillis > 0 && next < candidates.size()) wait = Math.min(wait, nextLaunch - now);
+
+                Future<T> done = wait > 0 ? completion.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (done == null) {
+                    expire(running, deadlines, label);
+                    continue;
+                }
+                Candidate<T> candidate = running.remove(done);
+                deadlines.remove(done);
+                if (candidate == null) continue;
+                try {
+                    T result = done.get();
+                    if (acceptable.test(result)) {
+                        winCounts.computeIfAbsent(candidate.name, k -> new AtomicLong()).incrementAndGet();
+                        logger.info("{} answered by {} in {}ms", label, candidate.name, System.currentTimeMillis() - started);
+                        return result;
+                    }
+                } catch (ExecutionException e) {
+                    logger.warn("{} provider {} failed: {}", label, candidate.name, e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+                }
+                // 失败的服务商不再占用错开时间，下一个立即启动
+                nextLaunch = System.currentTimeMillis();
+            }
+        } finally {
+            for (Future<T> future : running.keySet()) {
+                if (future.cancel(true)) cancelledCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 同时启动全部候选，按名称收集结果，失败或超出预算的记为 null；每收到一个结果调用 enough 判断，
+     * 返回 true 时取消其余调用并返回已收集的结果。由调用方在多个结果之间挑选或合并
+     */
+    public <T> Map<String, T> collect(String label, List<Candidate<T>> candidates, Predicate<Map<String, T>> enough,
+                                      long totalBudgetMillis) throws InterruptedException {
+        fanoutCount.incrementAndGet();
+        CompletionService<T> completion = new ExecutorCompletionService<>(workers);
+        Map<Future<T>, Candidate<T>> running = new HashMap<>();
+        Map<Future<T>, Long> deadlines = new HashMap<>();
+        Map<String, T> results = new LinkedHashMap<>();
+        long started = System.currentTimeMillis();
+        long totalDeadline = started + totalBudgetMillis;
+        for (Candidate<T> candidate : candidates) {
+            Future<T> future = completion.submit(candidate.call);
+            running.put(future, candidate);
+            deadlines.put(future, started + candidate.budgetMillis);
+        }
+
+        try {
+            while (!running.isEmpty()) {
+                long now = System.currentTimeMillis();
+                if (now >= totalDeadline) break;
+                long wait = totalDeadline - now;
+                for (Long deadline : deadlines.values()) wait = Math.min(wait, deadline - now);
+
+                Future<T> done = wait > 0 ? completion.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (done == null) {
+                    for (Candidate<T> candidate : expire(running, deadlines, label)) results.put(candidate.name, null);
+                } else {
+                    Candidate<T> candidate = running.remove(done);
+                    deadlines.remove(done);
+                    if (candidate == null) continue;
+                    T result = null;
+                    try {
+                        result = done.get();
+                    } catch (ExecutionException e) {
+                        logger.warn("{} provider {} failed: {}", label, candidate.name, e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+                    }
+                    results.put(candidate.name, result);
+                }
+                if (enough.test(results)) break;
+            }
+            return results;
+        } finally {
+            for (Future<T> future : running.keySet()) {
+                if (future.cancel(true)) cancelledCount.incrementAndGet();
+            }
+        }
+    }
+
+    /** 取消超出预算的调用，返回被取消的候选 */
+    private <T> List<Candidate<T>> expire(Map<Future<T>, Candidate<T>> running, Map<Future<T>, Long> deadlines, String label) {
+        long now = System.currentTimeMillis();
+        List<Candidate<T>> expired = new ArrayList<>();
+        deadlines.entrySet().removeIf(entry -> {
+            if (entry.getValue() > now) return false;
+            Candidate<T> candidate = running.remove(entry.getKey());
+            entry.getKey().cancel(true);
+            timeoutCount.incrementAndGet();
+            expired.add(candidate);
+            logger.warn("{} provider {} exceeded its {}ms budget", label, candidate.name, candidate.budgetMillis);
+            return true;
+        });
+        return expired;
+    }
+
+    void destroy() {
+        workers.shutdownNow();
+        logger.info("McpProviderFanout stopped: fanouts={}, timeouts={}, cancelled={}, wins={}",
+                fanoutCount.get(), timeoutCount.get(), cancelledCount.get(), getWinCounts());
+    }
+}
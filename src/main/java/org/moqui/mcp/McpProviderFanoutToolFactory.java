@@ -0,0 +1,33 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.context.ToolFactory;
+
+/**
+ * 在 MoquiConf tools 中注册，随运行时启动 McpProviderFanout 线程池
+ */
+public class McpProviderFanoutToolFactory implements ToolFactory<McpProviderFanout> {
+    private McpProviderFanout fanout = null;
+
+    public McpProviderFanoutToolFactory() { }
+
+    @Override
+    public String getName() { return McpProviderFanout.TOOL_NAME; }
+
+    @Override
+    public void init(ExecutionContextFactory ecf) {
+        fanout = new McpProviderFanout(ecf);
+    }
+
+    @Override
+    public McpProviderFanout getInstance(Object... parameters) {
+        if (fanout == null) throw new IllegalStateException("McpProviderFanoutToolFactory not initialized");
+        return fanout;
+    }
+
+    @Override
+    public void destroy() {
+        if (fanout != null) fanout.destroy();
+        fanout = null;
+    }
+}
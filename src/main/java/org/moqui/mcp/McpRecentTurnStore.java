@@ -0,0 +1,470 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.ExecutionContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 会话最近对话的堆外环形存储
+ * 直接内存 slab 划分为定长小块（默认 128 字节），每个会话按实际字节数占用一条块链，
+ * 链内按时间顺序完整保存 UTF-8 编码的最近若干轮对话；每个会话平均只浪费半块。
+ * 总内存固定，块不足时按 LRU 淘汰空闲会话。写入时填充，构建上下文时无需访问数据库。
+ * 会话放不下请求的轮数（长对话被挤出）时按未命中处理，由调用方回源数据库，保证上下文与缓存状态无关。
+ * 容量估算：可保存的会话数约为 max.bytes / (会话平均字节数 + 64)，每轮约 12 字节编码开销加正文；
+ * 默认 128MB 下，只有几轮短对话（约 250 字节）的会话可保存约 50 万个，16 轮、每轮 250 字节的会话约 3 万个。
+ * 堆上每个会话另有约 100 字节的索引（会话 ID 与块链位置）
+ */
+public class McpRecentTurnStore {
+    private static final Logger logger = LoggerFactory.getLogger(McpRecentTurnStore.class);
+
+    public static final String TOOL_NAME = "McpRecentTurnStore";
+
+    /** 块头：链中下一块的编号 */
+    private static final int BLOCK_HEADER = 4;
+    private static final int NO_BLOCK = -1;
+    private static final String[] FIELD_NAMES = {"messageId", "messageType", "intent", "content", "aiResponse"};
+    /** 单个 ByteBuffer 的最大容量，超出时分多个段分配 */
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    private final int blockBytes;
+    private final int blockPayload;
+    private final int blockCount;
+    private final int blocksPerSegment;
+    private final int maxTurns;
+    private final int sessionBytes;
+    private final ByteBuffer[] segments;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Chain> chainBySession = new LinkedHashMap<>(1024, 0.75f, true);
+    private final Map<String, LoadWindow> loadsBySession = new HashMap<>();
+    /** 空闲块链表头，块回收后经块头串联；从未使用过的块由 nextFreshBlock 顺序分配 */
+    private int freeHead = NO_BLOCK;
+    private int nextFreshBlock = 0;
+    private int freeBlocks;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictCount = new AtomicLong();
+
+    /** 会话的块链：数据从 head 块的 start 偏移开始，到 tail 块的 end 偏移结束 */
+    static final class Chain {
+        int head = NO_BLOCK;
+        int tail = NO_BLOCK;
+        int start;
+        int end;
+        int used;
+        int count;
+        /** 链中包含会话的全部对话，轮数不足时也可直接返回 */
+        boolean complete;
+    }
+
+    /** 回源加载期间追加的对话，prime 时与加载结果合并，避免加载与回填之间的追加丢失 */
+    static final class LoadWindow {
+        final List<Map<String, Object>> appended = new ArrayList<>();
+        int loaders;
+    }
+
+    McpRecentTurnStore(ExecutionContextFactory ecf) {
+        long maxBytes = McpConfig.getLong(ecf, "mcp.turnstore.max.bytes", 128L * 1024 * 1024);
+        // 默认深度覆盖摘要折叠间隔与保留轮数（mcp.summary.interval.turns + mcp.summary.keep.recent）
+        this.maxTurns = Math.max(1, McpConfig.getInt(ecf, "mcp.turnstore.max.turns", 16));
+        this.blockBytes = Math.max(64, Math.min(MAX_SEGMENT_BYTES, McpConfig.getInt(ecf, "mcp.turnstore.block.bytes", 128)));
+        this.blockPayload = blockBytes - BLOCK_HEADER;
+        this.blockCount = (int) Math.max(4, Math.min(Integer.MAX_VALUE, maxBytes / blockBytes));
+        this.blocksPerSegment = MAX_SEGMENT_BYTES / blockBytes;
+        // 单个会话的字节上限，超出时丢弃最旧的轮次；不超过总容量的一半，保证淘汰其他会话后总能放下
+        long defaultSessionBytes = 32L * 1024;
+        this.sessionBytes = (int) Math.max(blockPayload, Math.min((long) blockCount / 2 * blockPayload,
+                McpConfig.getLong(ecf, "mcp.turnstore.session.bytes", defaultSessionBytes)));
+        this.freeBlocks = blockCount;
+
+        int segmentCount = (blockCount + blocksPerSegment - 1) / blocksPerSegment;
+        this.segments = new ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            int blocksInSegment = Math.min(blocksPerSegment, blockCount - i * blocksPerSegment);
+            segments[i] = ByteBuffer.allocateDirect(blocksInSegment * blockBytes);
+        }
+        logger.info("McpRecentTurnStore allocated {} blocks of {} bytes ({} turns, at most {} bytes per session)",
+                blockCount, blockBytes, maxTurns, sessionBytes);
+    }
+
+    public static McpRecentTurnStore getInstance(ExecutionContext ec) {
+        return ec.getTool(TOOL_NAME, McpRecentTurnStore.class);
+    }
+
+    public int getMaxTurns() { return maxTurns; }
+    public int getSessionCount() {
+        lock.lock();
+        try { return chainBySession.size(); } finally { lock.unlock(); }
+    }
+    public int getFreeBlocks() {
+        lock.lock();
+        try { return freeBlocks; } finally { lock.unlock(); }
+    }
+    public long getHitCount() { return hitCount.get(); }
+    public long getMissCount() { return missCount.get(); }
+    public long getEvictCount() { return evictCount.get(); }
+
+    /**
+     * 最近 limit 轮对话（新的在前）；会话不在存储中、limit 超出保存深度，
+     * 或链中的轮数少于 limit 且更早的对话已被挤出时返回 null，由调用方回源数据库
+     */
+    public List<Map<String, Object>> recent(String sessionId, int limit) {
+        if (limit > maxTurns) return null;
+        lock.lock();
+        try {
+            Chain chain = chainBySession.get(sessionId);
+            if (chain != null && (chain.count >= limit || chain.complete)) {
+                hitCount.incrementAndGet();
+                List<Map<String, Object>> turns = decodeChain(chain);
+                Collections.reverse(turns);
+                return turns.size() > limit ? new ArrayList<>(turns.subList(0, limit)) : turns;
+            }
+            missCount.incrementAndGet();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 追加一轮对话；仅对已在存储中的会话生效，避免在历史未加载时形成不完整的窗口。
+     * 会话正在回源加载时记入加载窗口，由 prime 合并
+     */
+    public void append(String sessionId, Map<String, Object> fields) {
+        byte[] encoded = encodeTurn(fields);
+        lock.lock();
+        try {
+            LoadWindow window = loadsBySession.get(sessionId);
+            if (window != null) window.appended.add(fields);
+            Chain chain = chainBySession.get(sessionId);
+            if (chain == null) return;
+            appendToChain(sessionId, chain, encoded);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 用数据库中的最近对话（新的在前）初始化会话窗口，新建会话传入空列表
+     */
+    public void prime(String sessionId, List<Map<String, Object>> newestFirst) {
+        prime(sessionId, newestFirst, null);
+    }
+
+    /** 开始回源加载；之后的 append 会记入返回的窗口，加载结束后必须调用 endLoad */
+    LoadWindow beginLoad(String sessionId) {
+        lock.lock();
+        try {
+            LoadWindow window = loadsBySession.computeIfAbsent(sessionId, k -> new LoadWindow());
+            window.loaders++;
+            return window;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 结束回源加载；newestFirst 非空时与加载期间的追加合并后回填，为 null 表示加载失败 */
+    void endLoad(String sessionId, LoadWindow window, List<Map<String, Object>> newestFirst) {
+        lock.lock();
+        try {
+            if (newestFirst != null) prime(sessionId, newestFirst, window);
+            if (--window.loaders == 0) loadsBySession.remove(sessionId, window);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void prime(String sessionId, List<Map<String, Object>> newestFirst, LoadWindow window) {
+        List<byte[]> encodedTurns = new ArrayList<>(newestFirst.size());
+        Set<Object> loadedIds = new HashSet<>();
+        for (int i = Math.min(newestFirst.size(), maxTurns) - 1; i >= 0; i--) {
+            Map<String, Object> turn = newestFirst.get(i);
+            loadedIds.add(turn.get("messageId"));
+            encodedTurns.add(encodeTurn(turn));
+        }
+        lock.lock();
+        try {
+            // 加载开始后追加、但加载结果中没有的对话比加载结果更新，按追加顺序接在后面
+            if (window != null) {
+                for (Map<String, Object> appended : window.appended) {
+                    if (!loadedIds.contains(appended.get("messageId"))) encodedTurns.add(encodeTurn(appended));
+                }
+            }
+            Chain chain = chainBySession.get(sessionId);
+            if (chain == null) {
+                chain = new Chain();
+                chainBySession.put(sessionId, chain);
+            } else {
+                releaseChain(chain);
+            }
+            // 加载结果不足 maxTurns 轮说明已是会话的全部对话
+            chain.complete = newestFirst.size() < maxTurns;
+            for (byte[] encoded : encodedTurns) appendToChain(sessionId, chain, encoded);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void remove(String sessionId) {
+        lock.lock();
+        try {
+            Chain chain = chainBySession.remove(sessionId);
+            if (chain != null) releaseChain(chain);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 构建上下文用的最近对话：先查堆外存储，未命中时从数据库（含未落库记录）加载并回填
+     */
+    public static List<Map<String, Object>> recentTurns(ExecutionContext ec, String sessionId, int limit) {
+        McpRecentTurnStore store = getInstance(ec);
+        List<Map<String, Object>> turns = store.recent(sessionId, limit);
+        if (turns != null) return turns;
+
+        McpMessageWriter writer = McpMessageWriter.getInstance(ec);
+        if (limit > store.maxTurns) return writer.recentMessages(ec, sessionId, limit);
+
+        LoadWindow window = store.beginLoad(sessionId);
+        List<Map<String, Object>> loaded = null;
+        try {
+            loaded = writer.recentMessages(ec, sessionId, store.maxTurns);
+        } finally {
+            store.endLoad(sessionId, window, loaded);
+        }
+        return loaded.size() > limit ? loaded.subList(0, limit) : loaded;
+    }
+
+    private void appendToChain(String sessionId, Chain chain, byte[] encoded) {
+        if (encoded.length > sessionBytes) {
+            // 单轮超过会话上限：清空并标记为不完整，之后的读取回源数据库
+            releaseChain(chain);
+            chain.complete = false;
+            return;
+        }
+        // 环形语义：超过轮数或字节上限时丢弃最旧的轮次，链中不再包含全部对话
+        while (chain.count > 0 && (chain.count >= maxTurns || chain.used + encoded.length > sessionBytes)) {
+            dropOldest(chain);
+            chain.complete = false;
+        }
+
+        int written = 0;
+        while (written < encoded.length) {
+            if (chain.tail == NO_BLOCK || chain.end == blockPayload) {
+                int block = allocateBlock(sessionId);
+                if (chain.tail == NO_BLOCK) {
+                    chain.head = block;
+                    chain.start = 0;
+                } else {
+                    setNext(chain.tail, block);
+                }
+                chain.tail = block;
+                chain.end = 0;
+            }
+            int length = Math.min(encoded.length - written, blockPayload - chain.end);
+            writeBytes(segmentFor(chain.tail), payloadOffset(chain.tail) + chain.end, encoded, written, length);
+            chain.end += length;
+            written += length;
+        }
+        chain.used += encoded.length;
+        chain.count++;
+    }
+
+    /** 丢弃最旧的一轮，释放已读过的块 */
+    private void dropOldest(Chain chain) {
+        byte[] header = new byte[Math.min(5, chain.used)];
+        readChain(chain, header);
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        int bodyLength = getVarInt(buffer);
+        int length = buffer.position() + bodyLength;
+        chain.used -= length;
+        chain.count--;
+        if (chain.used == 0) {
+            releaseChain(chain);
+            return;
+        }
+        chain.start += length;
+        while (chain.start >= blockPayload) {
+            int next = nextOf(chain.head);
+            freeBlock(chain.head);
+            chain.head = next;
+            chain.start -= blockPayload;
+        }
+    }
+
+    private void releaseChain(Chain chain) {
+        int block = chain.head;
+        while (block != NO_BLOCK) {
+            int next = block == chain.tail ? NO_BLOCK : nextOf(block);
+            freeBlock(block);
+            block = next;
+        }
+        chain.head = NO_BLOCK;
+        chain.tail = NO_BLOCK;
+        chain.start = 0;
+        chain.end = 0;
+        chain.used = 0;
+        chain.count = 0;
+    }
+
+    private int allocateBlock(String owner) {
+        while (freeHead == NO_BLOCK && nextFreshBlock == blockCount) {
+            // 淘汰最久未访问的其他会话；单会话不超过总容量的一半，总能腾出空间
+            Iterator<Map.Entry<String, Chain>> iterator = chainBySession.entrySet().iterator();
+            Map.Entry<String, Chain> eldest = iterator.next();
+            if (eldest.getKey().equals(owner)) eldest = iterator.next();
+            iterator.remove();
+            releaseChain(eldest.getValue());
+            evictCount.incrementAndGet();
+        }
+        int block;
+        if (freeHead != NO_BLOCK) {
+            block = freeHead;
+            freeHead = nextOf(block);
+        } else {
+            block = nextFreshBlock++;
+        }
+        freeBlocks--;
+        setNext(block, NO_BLOCK);
+        return block;
+    }
+
+    private void freeBlock(int block) {
+        setNext(block, freeHead);
+        freeHead = block;
+        freeBlocks++;
+    }
+
+    /** 从链首复制 target.length 字节，可跨块 */
+    private void readChain(Chain chain, byte[] target) {
+        int block = chain.head;
+        int offset = chain.start;
+        int copied = 0;
+        while (copied < target.length) {
+            int length = Math.min(target.length - copied, blockPayload - offset);
+            readBytes(segmentFor(block), payloadOffset(block) + offset, target, copied, length);
+            copied += length;
+            if (copied < target.length) {
+                block = nextOf(block);
+                offset = 0;
+            }
+        }
+    }
+
+    private List<Map<String, Object>> decodeChain(Chain chain) {
+        List<Map<String, Object>> turns = new ArrayList<>(chain.count);
+        if (chain.used == 0) return turns;
+        byte[] data = new byte[chain.used];
+        readChain(chain, data);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            int bodyLength = getVarInt(buffer);
+            int end = buffer.position() + bodyLength;
+            Map<String, Object> turn = new HashMap<>(8);
+            long processedMillis = buffer.getLong();
+            if (processedMillis != Long.MIN_VALUE) turn.put("processedDate", new Timestamp(processedMillis));
+            for (String name : FIELD_NAMES) {
+                int fieldLength = getVarInt(buffer) - 1;
+                if (fieldLength < 0) continue;
+                turn.put(name, new String(data, buffer.position(), fieldLength, StandardCharsets.UTF_8));
+                buffer.position(buffer.position() + fieldLength);
+            }
+            turns.add(turn);
+            buffer.position(end);
+        }
+        return turns;
+    }
+
+    /** 记录格式：变长整数的正文长度；正文为 8 字节处理时间，各字段为变长整数（长度 + 1，0 表示 null）加 UTF-8 字节 */
+    private byte[] encodeTurn(Map<String, Object> fields) {
+        Object content = fields.get("content") != null ? fields.get("content") : fields.get("message");
+        byte[][] values = {
+                utf8(fields.get("messageId")), utf8(fields.get("messageType")), utf8(fields.get("intent")),
+                utf8(content), utf8(fields.get("aiResponse"))
+        };
+        int bodyLength = 8;
+        for (byte[] value : values) {
+            int length = value != null ? value.length : 0;
+            bodyLength += varIntSize(value != null ? length + 1 : 0) + length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(varIntSize(bodyLength) + bodyLength);
+        putVarInt(buffer, bodyLength);
+        Object processedDate = fields.get("processedDate");
+        buffer.putLong(processedDate instanceof java.util.Date ? ((java.util.Date) processedDate).getTime() : Long.MIN_VALUE);
+        for (byte[] value : values) {
+            if (value == null) {
+                putVarInt(buffer, 0);
+            } else {
+                putVarInt(buffer, value.length + 1);
+                buffer.put(value);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    /** 完整 UTF-8 编码，不截断 */
+    private static byte[] utf8(Object value) {
+        return value != null ? value.toString().getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static void readBytes(ByteBuffer segment, int index, byte[] target, int targetOffset, int length) {
+        ByteBuffer view = segment.duplicate();
+        view.position(index);
+        view.get(target, targetOffset, length);
+    }
+
+    private static void writeBytes(ByteBuffer segment, int index, byte[] source, int sourceOffset, int length) {
+        ByteBuffer view = segment.duplicate();
+        view.position(index);
+        view.put(source, sourceOffset, length);
+    }
+
+    private int nextOf(int block) { return segmentFor(block).getInt(offsetFor(block)); }
+    private void setNext(int block, int next) { segmentFor(block).putInt(offsetFor(block), next); }
+    private ByteBuffer segmentFor(int block) { return segments[block / blocksPerSegment]; }
+    private int offsetFor(int block) { return (block % blocksPerSegment) * blockBytes; }
+    private int payloadOffset(int block) { return offsetFor(block) + BLOCK_HEADER; }
+}
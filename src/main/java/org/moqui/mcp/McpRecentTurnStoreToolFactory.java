@@ -0,0 +1,32 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.context.ToolFactory;
+
+/**
+ * 在 MoquiConf tools 中注册，随运行时分配 McpRecentTurnStore 堆外存储
+ */
+public class McpRecentTurnStoreToolFactory implements ToolFactory<McpRecentTurnStore> {
+    private McpRecentTurnStore store = null;
+
+    public McpRecentTurnStoreToolFactory() { }
+
+    @Override
+    public String getName() { return McpRecentTurnStore.TOOL_NAME; }
+
+    @Override
+    public void init(ExecutionContextFactory ecf) {
+        store = new McpRecentTurnStore(ecf);
+    }
+
+    @Override
+    public McpRecentTurnStore getInstance(Object... parameters) {
+        if (store == null) throw new IllegalStateException("McpRecentTurnStoreToolFactory not initialized");
+        return store;
+    }
+
+    @Override
+    public void destroy() {
+        store = null;
+    }
+}
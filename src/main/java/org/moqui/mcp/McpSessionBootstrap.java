@@ -0,0 +1,189 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContext;
+import org.moqui.entity.EntityValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.cache.Cache;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 会话引导服务
+ * 每条入站消息只解析/创建一次 Party 与 McpDialogSession，结果写入存在性缓存，
+ * 各渠道（Telegram、Rocket.Chat、Marketplace）将解析后的会话向下传递，不再重复查询
+ */
+public class McpSessionBootstrap {
+    private static final Logger logger = LoggerFactory.getLogger(McpSessionBootstrap.class);
+
+    public static final String SESSION_CACHE_NAME = "mcp.dialog.SessionExists";
+    public static final String PARTY_CACHE_NAME = "mcp.party.PartyExists";
+
+    private static final String SESSION_ENTITY = "mcp.dialog.McpDialogSession";
+    private static final String PARTY_ENTITY = "mantle.party.Party";
+    /** lastModifiedDate 最多每隔该时长刷新一次，避免每条消息都写会话行 */
+    private static final long TOUCH_INTERVAL_MILLIS = 5 * 60 * 1000L;
+
+    private final ExecutionContext ec;
+
+    public McpSessionBootstrap(ExecutionContext ec) {
+        this.ec = ec;
+    }
+
+    /**
+     * 缓存中的会话存在性记录
+     */
+    public static final class SessionRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final String sessionId;
+        public final String merchantId;
+        public final String sessionType;
+        public final long touchedMillis;
+
+        SessionRef(String sessionId, String merchantId, String sessionType, long touchedMillis) {
+            this.sessionId = sessionId;
+            this.merchantId = merchantId;
+            this.sessionType = sessionType;
+            this.touchedMillis = touchedMillis;
+        }
+    }
+
+    public EntityValue resolve(String sessionId, String merchantId, String sessionType) {
+        return resolve(sessionId, merchantId, sessionType, null, null);
+    }
+
+    /**
+     * 解析或创建会话；命中缓存时不访问数据库（仅按间隔刷新 lastModifiedDate）
+     * 返回的值只保证包含 sessionId、merchantId、sessionType 字段
+     */
+    public EntityValue resolve(String sessionId, String merchantId, String sessionType,
+                               String currentPhase, String initialContext) {
+        if (sessionId == null || sessionId.isEmpty()) {
+            throw new IllegalArgumentException("sessionId is required");
+        }
+        Cache<String, SessionRef> sessionCache = ec.getCache().getCache(SESSION_CACHE_NAME);
+        long now = System.currentTimeMillis();
+
+        boolean alreadyDisabled = ec.getArtifactExecution().disableAuthz();
+        try {
+            SessionRef ref = sessionCache.get(sessionId);
+            if (ref == null) {
+                EntityValue existing = ec.getEntity().find(SESSION_ENTITY)
+                        .condition("sessionId", sessionId)
+                        .one();
+                if (existing == null) {
+                    ensureParty(merchantId);
+                    existing = createSession(sessionId, merchantId, sessionType, currentPhase, initialContext);
+                    sessionCache.put(sessionId, new SessionRef(sessionId,
+                            existing.getString("merchantId"), existing.getString("sessionType"), now));
+                    return existing;
+                } else if (McpSessionJanitor.STATUS_EXPIRED.equals(existing.getString("status"))) {
+                    // 过期会话收到新消息时重新激活
+                    ec.getService().sync().name("update#" + SESSION_ENTITY).parameters(Map.of(
+                            "sessionId", sessionId,
+                            "status", McpSessionJanitor.STATUS_ACTIVE,
+                            "lastModifiedDate", ec.getUser().getNowTimestamp()
+                    )).call();
+                    ref = new SessionRef(sessionId, existing.getString("merchantId"),
+                            existing.getString("sessionType"), now);
+                } else {
+                    ref = new SessionRef(sessionId, existing.getString("merchantId"),
+                            existing.getString("sessionType"), 0L);
+                }
+            }
+
+            if (now - ref.touchedMillis >= TOUCH_INTERVAL_MILLIS) {
+                ec.getService().sync().name("update#" + SESSION_ENTITY).parameters(Map.of(
+                        "sessionId", sessionId,
+                        "lastModifiedDate", ec.getUser().getNowTimestamp()
+                )).call();
+                ref = new SessionRef(ref.sessionId, ref.merchantId, ref.sessionType, now);
+            }
+            sessionCache.put(sessionId, ref);
+            return toValue(ref);
+        } finally {
+            if (!alreadyDisabled) ec.getArtifactExecution().enableAuthz();
+        }
+    }
+
+    /**
+     * 确保 Party 存在，已确认存在的 partyId 记入缓存
+     */
+    public void ensureParty(String partyId) {
+        if (partyId == null || partyId.isEmpty()) return;
+        Cache<String, Boolean> partyCache = ec.getCache().getCache(PARTY_CACHE_NAME);
+        if (Boolean.TRUE.equals(partyCache.get(partyId))) return;
+
+        boolean alreadyDisabled = ec.getArtifactExecution().disableAuthz();
+        try {
+            EntityValue existingParty = ec.getEntity().find(PARTY_ENTITY)
+                    .condition("partyId", partyId)
+                    .one();
+            if (existingParty == null) {
+                logger.info("Creating Party for merchantId: {}", partyId);
+                ec.getService().sync().name("create#" + PARTY_ENTITY).parameters(Map.of(
+                        "partyId", partyId,
+                        "partyTypeEnumId", "PtyPerson",
+                        "disabled", "N"
+                )).call();
+            }
+            partyCache.put(partyId, Boolean.TRUE);
+        } catch (Exception e) {
+            logger.warn("Failed to ensure Party {}: {}", partyId, e.getMessage());
+        } finally {
+            if (!alreadyDisabled) ec.getArtifactExecution().enableAuthz();
+        }
+    }
+
+    /**
+     * 会话被删除或过期后调用，使下一条消息重新走创建路径
+     */
+    public static void evict(ExecutionContext ec, String sessionId) {
+        if (sessionId == null) return;
+        Cache<String, SessionRef> sessionCache = ec.getCache().getCache(SESSION_CACHE_NAME);
+        sessionCache.remove(sessionId);
+        McpRecentTurnStore.getInstance(ec).remove(sessionId);
+        McpSessionStateStore.getInstance(ec).remove(sessionId);
+    }
+
+    private EntityValue createSession(String sessionId, String merchantId, String sessionType,
+                                      String currentPhase, String initialContext) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("sessionId", sessionId);
+        params.put("customerId", merchantId);
+        params.put("merchantId", merchantId);
+        params.put("status", McpSessionJanitor.STATUS_ACTIVE);
+        params.put("createdDate", ec.getUser().getNowTimestamp());
+        params.put("lastModifiedDate", ec.getUser().getNowTimestamp());
+        if (sessionType != null) params.put("sessionType", sessionType);
+        if (currentPhase != null) params.put("currentPhase", currentPhase);
+        if (initialContext != null) params.put("context", initialContext);
+
+        try {
+            ec.getService().sync().name("create#" + SESSION_ENTITY).parameters(params).call();
+        } catch (Exception e) {
+            // 并发的首条消息可能已创建同一会话，回退为重新读取
+            logger.warn("Create session {} failed, re-reading: {}", sessionId, e.getMessage());
+            EntityValue concurrent = ec.getEntity().find(SESSION_ENTITY).condition("sessionId", sessionId).one();
+            // 重新读取仍不存在说明不是并发创建，而是创建本身失败
+            if (concurrent == null) throw e;
+            return concurrent;
+        }
+        // 新会话没有历史，直接建立空的最近对话窗口
+        McpRecentTurnStore.getInstance(ec).prime(sessionId, Collections.emptyList());
+        EntityValue created = ec.getEntity().makeValue(SESSION_ENTITY);
+        created.setAll(params);
+        return created;
+    }
+
+    private EntityValue toValue(SessionRef ref) {
+        EntityValue value = ec.getEntity().makeValue(SESSION_ENTITY);
+        value.set("sessionId", ref.sessionId);
+        value.set("merchantId", ref.merchantId);
+        value.set("sessionType", ref.sessionType);
+        return value;
+    }
+}
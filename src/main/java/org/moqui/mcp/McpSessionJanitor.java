@@ -0,0 +1,152 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContext;
+import org.moqui.entity.EntityCondition;
+import org.moqui.entity.EntityList;
+import org.moqui.entity.EntityValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 会话过期与清理
+ * 空闲超过 TTL 的会话标记为 EXPIRED，一次性的语音/图片会话连同消息分块删除；
+ * 每块一个短事务，块间暂停，消息写入队列积压时进一步退避，避免与 webhook 流量争用数据库
+ */
+public class McpSessionJanitor {
+    private static final Logger logger = LoggerFactory.getLogger(McpSessionJanitor.class);
+
+    private static final String SESSION_ENTITY = "mcp.dialog.McpDialogSession";
+    private static final String MESSAGE_ENTITY = "mcp.dialog.McpDialogMessage";
+    private static final String DECISION_ENTITY = "mcp.decision.McpAiDecision";
+    public static final String STATUS_ACTIVE = "ACTIVE";
+    public static final String STATUS_EXPIRED = "EXPIRED";
+    /** 旧版本为每条语音/图片消息创建的一次性会话 */
+    private static final String[] THROWAWAY_PREFIXES = {"voice_session_", "image_session_"};
+
+    private McpSessionJanitor() { }
+
+    /**
+     * moqui.mcp.expire#DialogSessions 服务实现
+     */
+    public static Map<String, Object> expireDialogSessions(ExecutionContext ec) {
+        Map<String, Object> parameters = ec.getContext();
+        int ttlHours = intParameter(parameters, "ttlHours", McpConfig.getInt(ec.getFactory(), "mcp.session.ttl.hours", 72));
+        int throwawayHours = intParameter(parameters, "throwawayHours",
+                McpConfig.getInt(ec.getFactory(), "mcp.session.throwaway.hours", 24));
+        int chunkSize = McpConfig.getInt(ec.getFactory(), "mcp.session.cleanup.chunk.size", 500);
+        int maxRows = intParameter(parameters, "maxRows", 50000);
+        long now = ec.getUser().getNowTimestamp().getTime();
+
+        Throttle throttle = new Throttle(ec);
+        int expiredCount = expireIdle(ec, new Timestamp(now - ttlHours * 3600000L), chunkSize, maxRows, throttle);
+        int[] purged = {0, 0};
+        for (String prefix : THROWAWAY_PREFIXES) {
+            if (purged[0] >= maxRows) break;
+            purgeThrowaway(ec, prefix, new Timestamp(now - throwawayHours * 3600000L), chunkSize, maxRows - purged[0], throttle, purged);
+        }
+
+        logger.info("Session cleanup: expired={}, purgedSessions={}, purgedMessages={}", expiredCount, purged[0], purged[1]);
+        Map<String, Object> result = new HashMap<>();
+        result.put("expiredCount", expiredCount);
+        result.put("purgedSessionCount", purged[0]);
+        result.put("purgedMessageCount", purged[1]);
+        return result;
+    }
+
+    private static int expireIdle(ExecutionContext ec, Timestamp cutoff, int chunkSize, int maxRows, Throttle throttle) {
+        int expired = 0;
+        while (expired < maxRows) {
+            EntityList chunk = ec.getEntity().find(SESSION_ENTITY)
+                    .condition("status", STATUS_ACTIVE)
+                    .condition("lastModifiedDate", EntityCondition.LESS_THAN, cutoff)
+                    .selectField("sessionId")
+                    .orderBy("lastModifiedDate")
+                    .limit(Math.min(chunkSize, maxRows - expired))
+                    .list();
+            if (chunk.isEmpty()) break;
+            List<String> sessionIds = idsOf(chunk);
+            long updated = (Long) ec.getTransaction().runRequireNew(60, "Error expiring dialog sessions", () ->
+                    ec.getEntity().find(SESSION_ENTITY)
+                            .condition("sessionId", EntityCondition.IN, sessionIds)
+                            .condition("status", STATUS_ACTIVE)
+                            .condition("lastModifiedDate", EntityCondition.LESS_THAN, cutoff)
+                            .updateAll(Map.of("status", STATUS_EXPIRED)));
+            for (String sessionId : sessionIds) McpSessionBootstrap.evict(ec, sessionId);
+            expired += (int) updated;
+            if (chunk.size() < chunkSize || updated == 0) break;
+            throttle.pause();
+        }
+        return expired;
+    }
+
+    private static void purgeThrowaway(ExecutionContext ec, String prefix, Timestamp cutoff, int chunkSize, int maxRows,
+                                       Throttle throttle, int[] purged) {
+        int sessionCount = 0;
+        while (sessionCount < maxRows) {
+            EntityList chunk = ec.getEntity().find(SESSION_ENTITY)
+                    .condition("sessionId", EntityCondition.LIKE, prefix + "%")
+                    .condition("lastModifiedDate", EntityCondition.LESS_THAN, cutoff)
+                    .selectField("sessionId")
+                    .orderBy("sessionId")
+                    .limit(Math.min(chunkSize, maxRows - sessionCount))
+                    .list();
+            if (chunk.isEmpty()) break;
+            List<String> sessionIds = idsOf(chunk);
+            long[] deleted = (long[]) ec.getTransaction().runRequireNew(60, "Error purging dialog sessions", () -> {
+                long messages = ec.getEntity().find(MESSAGE_ENTITY).condition("sessionId", EntityCondition.IN, sessionIds).deleteAll();
+                ec.getEntity().find(DECISION_ENTITY).condition("sessionId", EntityCondition.IN, sessionIds).deleteAll();
+                long sessions = ec.getEntity().find(SESSION_ENTITY).condition("sessionId", EntityCondition.IN, sessionIds).deleteAll();
+                return new long[]{sessions, messages};
+            });
+            for (String sessionId : sessionIds) McpSessionBootstrap.evict(ec, sessionId);
+            sessionCount += (int) deleted[0];
+            purged[0] += (int) deleted[0];
+            purged[1] += (int) deleted[1];
+            if (chunk.size() < chunkSize) break;
+            throttle.pause();
+        }
+    }
+
+    private static List<String> idsOf(EntityList chunk) {
+        List<String> ids = new ArrayList<>(chunk.size());
+        for (EntityValue value : chunk) ids.add(value.getString("sessionId"));
+        return ids;
+    }
+
+    private static int intParameter(Map<String, Object> parameters, String name, int defaultValue) {
+        Object value = parameters.get(name);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+
+    /**
+     * 块间暂停；对话消息写入队列有积压时说明前台流量较高，按积压程度延长暂停
+     */
+    private static final class Throttle {
+        private final ExecutionContext ec;
+        private final long pauseMillis;
+        private final int busyQueueDepth;
+
+        Throttle(ExecutionContext ec) {
+            this.ec = ec;
+            this.pauseMillis = McpConfig.getLong(ec.getFactory(), "mcp.session.cleanup.pause.millis", 200L);
+            this.busyQueueDepth = McpConfig.getInt(ec.getFactory(), "mcp.session.cleanup.busy.queue.depth", 100);
+        }
+
+        void pause() {
+            long wait = pauseMillis;
+            int depth = McpMessageWriter.getInstance(ec).getQueueDepth();
+            if (depth > busyQueueDepth) wait *= Math.min(20, depth / busyQueueDepth + 1);
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
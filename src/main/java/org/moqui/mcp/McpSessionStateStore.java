@@ -0,0 +1,313 @@
+package org.moqui.mcp;
+
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.entity.EntityValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 会话上下文状态存储
+ * McpDialogSession.context 解析后常驻内存，按字段增量修改；后台线程批量持久化，
+ * 以 contextVersion 做乐观并发控制，不再逐条消息解析 JSON，也不再为单个标志位加行锁重写整段上下文
+ */
+public class McpSessionStateStore {
+    private static final Logger logger = LoggerFactory.getLogger(McpSessionStateStore.class);
+
+    public static final String TOOL_NAME = "McpSessionStateStore";
+    private static final String SESSION_ENTITY = "mcp.dialog.McpDialogSession";
+    /** 增量中表示删除字段的标记 */
+    private static final Object REMOVED = new Object();
+
+    private final ExecutionContextFactory ecf;
+    private final Map<String, SessionState> states = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final long idleMillis;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    private final AtomicLong flushedCount = new AtomicLong();
+    private final AtomicLong conflictCount = new AtomicLong();
+
+    /** 单个会话的状态：base 为 version 时的持久化内容，delta 为尚未落库的字段修改 */
+    private static final class SessionState {
+        Map<String, Object> base = new LinkedHashMap<>();
+        Long version;
+        boolean loaded;
+        boolean missing;
+        /** 已从 states 中淘汰，持有旧引用的调用方需重新获取 */
+        boolean evicted;
+        final LinkedHashMap<String, Object> delta = new LinkedHashMap<>();
+        volatile long lastAccessMillis = System.currentTimeMillis();
+
+        Map<String, Object> merged() {
+            Map<String, Object> merged = new LinkedHashMap<>(base);
+            for (Map.Entry<String, Object> change : delta.entrySet()) {
+                if (change.getValue() == REMOVED) merged.remove(change.getKey());
+                else merged.put(change.getKey(), change.getValue());
+            }
+            return merged;
+        }
+    }
+
+    McpSessionStateStore(ExecutionContextFactory ecf) {
+        this.ecf = ecf;
+        this.batchSize = McpConfig.getInt(ecf, "mcp.sessionstate.batch.size", 200);
+        this.flushIntervalMillis = McpConfig.getLong(ecf, "mcp.sessionstate.flush.millis", 500L);
+        this.idleMillis = McpConfig.getLong(ecf, "mcp.sessionstate.idle.millis", 30 * 60 * 1000L);
+
+        this.flusher = new Thread(this::runFlusher, "McpSessionStateStore");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public static McpSessionStateStore getInstance(ExecutionContext ec) {
+        return ec.getTool(TOOL_NAME, McpSessionStateStore.class);
+    }
+
+    public int getSessionCount() { return states.size(); }
+    public int getDirtyCount() { return dirty.size(); }
+    public long getFlushedCount() { return flushedCount.get(); }
+    public long getConflictCount() { return conflictCount.get(); }
+
+    /**
+     * 当前上下文（含未落库的修改）的副本；会话不存在时返回空Map
+     */
+    public Map<String, Object> get(ExecutionContext ec, String sessionId) {
+        while (true) {
+            SessionState state = states.computeIfAbsent(sessionId, k -> new SessionState());
+            synchronized (state) {
+                if (state.evicted) continue;
+                if (!state.loaded || state.missing) load(ec, sessionId, state);
+                state.lastAccessMillis = System.currentTimeMillis();
+                return state.merged();
+            }
+        }
+    }
+
+    /**
+     * 按字段合并修改，值为 null 表示删除该字段；返回合并后的上下文副本，持久化由后台批量完成
+     */
+    public Map<String, Object> update(ExecutionContext ec, String sessionId, Map<String, ?> changes) {
+        while (true) {
+            SessionState state = states.computeIfAbsent(sessionId, k -> new SessionState());
+            synchronized (state) {
+                if (state.evicted) continue;
+                if (!state.loaded || state.missing) load(ec, sessionId, state);
+                for (Map.Entry<String, ?> change : changes.entrySet()) {
+                    state.delta.put(change.getKey(), change.getValue() != null ? change.getValue() : REMOVED);
+                }
+                state.lastAccessMillis = System.currentTimeMillis();
+                dirty.add(sessionId);
+                return state.merged();
+            }
+        }
+    }
+
+    /**
+     * 其他代码整体改写了 context 后调用，下次访问时重新读取；未落库的字段修改保留并在新内容上重放
+     */
+    public void invalidate(String sessionId) {
+        SessionState state = states.get(sessionId);
+        if (state == null) return;
+        synchronized (state) {
+            state.loaded = false;
+        }
+    }
+
+    /**
+     * 在当前事务结束后失效缓存：事务内失效时，并发读取可能在提交前把旧内容重新缓存并一直保留到过期
+     */
+    public static void invalidateAfterCommit(ExecutionContext ec, String sessionId) {
+        McpSessionStateStore store = getInstance(ec);
+        McpTransactions.afterCompletion(ec, () -> store.invalidate(sessionId));
+    }
+
+    /** 会话删除时调用，丢弃内存状态 */
+    public void remove(String sessionId) {
+        SessionState state = states.remove(sessionId);
+        if (state != null) {
+            synchronized (state) {
+                state.evicted = true;
+            }
+        }
+        dirty.remove(sessionId);
+    }
+
+    private void load(ExecutionContext ec, String sessionId, SessionState state) {
+        boolean alreadyDisabled = ec.getArtifactExecution().disableAuthz();
+        try {
+            EntityValue session = ec.getEntity().find(SESSION_ENTITY)
+                    .condition("sessionId", sessionId)
+                    .selectField("context")
+                    .selectField("contextVersion")
+                    .one();
+            state.base = session != null ? parse(sessionId, session.getString("context")) : new LinkedHashMap<>();
+            state.version = session != null ? session.getLong("contextVersion") : null;
+            state.missing = session == null;
+            state.loaded = true;
+        } finally {
+            if (!alreadyDisabled) ec.getArtifactExecution().enableAuthz();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> parse(String sessionId, String context) {
+        if (context == null || context.isEmpty()) return new LinkedHashMap<>();
+        try {
+            Object parsed = new JsonSlurper().parseText(context);
+            if (parsed instanceof Map) return new LinkedHashMap<>((Map<String, Object>) parsed);
+        } catch (Exception e) {
+            logger.warn("无法解析会话上下文 {}: {}", sessionId, e.getMessage());
+        }
+        return new LinkedHashMap<>();
+    }
+
+    private void runFlusher() {
+        try {
+            while (running) {
+                try {
+                    Thread.sleep(flushIntervalMillis);
+                    flushDirty();
+                    evictIdle();
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Throwable t) {
+                    logger.error("Unexpected error in session state flusher", t);
+                }
+            }
+        } finally {
+            ecf.getExecutionContext().destroy();
+        }
+    }
+
+    private void flushDirty() {
+        if (dirty.isEmpty()) return;
+        List<String> batch = new ArrayList<>(batchSize);
+        Iterator<String> iterator = dirty.iterator();
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+            iterator.remove();
+            if (batch.size() >= batchSize) {
+                flushBatch(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) flushBatch(batch);
+    }
+
+    /** 一个事务内按版本条件更新整批会话，版本不符的会话重新加载后留待下一轮 */
+    private void flushBatch(List<String> sessionIds) {
+        ExecutionContext ec = ecf.getExecutionContext();
+        Map<String, Map<String, Object>> snapshots = new HashMap<>();
+        Map<String, Map<String, Object>> mergedById = new HashMap<>();
+        Map<String, Long> versions = new HashMap<>();
+        for (String sessionId : sessionIds) {
+            SessionState state = states.get(sessionId);
+            if (state == null) continue;
+            synchronized (state) {
+                if (!state.loaded || state.missing) load(ec, sessionId, state);
+                if (state.missing) {
+                    logger.warn("Dropping context changes for missing session {}", sessionId);
+                    state.evicted = true;
+                    states.remove(sessionId, state);
+                    continue;
+                }
+                if (state.delta.isEmpty()) continue;
+                snapshots.put(sessionId, new HashMap<>(state.delta));
+                mergedById.put(sessionId, state.merged());
+                versions.put(sessionId, state.version);
+            }
+        }
+        if (snapshots.isEmpty()) return;
+
+        List<String> written = new ArrayList<>(snapshots.size());
+        boolean alreadyDisabled = ec.getArtifactExecution().disableAuthz();
+        try {
+            ec.getTransaction().runRequireNew(60, "Error saving session context", () -> {
+                for (String sessionId : snapshots.keySet()) {
+                    Long version = versions.get(sessionId);
+                    Map<String, Object> fields = new HashMap<>();
+                    fields.put("context", JsonOutput.toJson(mergedById.get(sessionId)));
+                    fields.put("contextVersion", version != null ? version + 1 : 1L);
+                    fields.put("lastModifiedDate", ec.getUser().getNowTimestamp());
+                    long updated = ec.getEntity().find(SESSION_ENTITY)
+                            .condition("sessionId", sessionId)
+                            .condition("contextVersion", version)
+                            .updateAll(fields);
+                    if (updated > 0) written.add(sessionId);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            logger.warn("Failed to save context for {} session(s): {}", snapshots.size(), e.getMessage());
+            dirty.addAll(snapshots.keySet());
+            return;
+        } finally {
+            if (!alreadyDisabled) ec.getArtifactExecution().enableAuthz();
+        }
+
+        for (String sessionId : snapshots.keySet()) {
+            SessionState state = states.get(sessionId);
+            if (state == null) continue;
+            synchronized (state) {
+                if (written.contains(sessionId)) {
+                    Long version = versions.get(sessionId);
+                    state.base = mergedById.get(sessionId);
+                    state.version = version != null ? version + 1 : 1L;
+                    // 只移除已写入的修改，刷写期间新到的修改留到下一轮
+                    for (Map.Entry<String, Object> flushed : snapshots.get(sessionId).entrySet()) {
+                        if (state.delta.get(flushed.getKey()) == flushed.getValue()) state.delta.remove(flushed.getKey());
+                    }
+                } else {
+                    conflictCount.incrementAndGet();
+                    state.loaded = false;
+                }
+                if (!state.delta.isEmpty()) dirty.add(sessionId);
+            }
+        }
+        flushedCount.addAndGet(written.size());
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        for (Map.Entry<String, SessionState> entry : states.entrySet()) {
+            SessionState state = entry.getValue();
+            if (state.lastAccessMillis >= cutoff) continue;
+            synchronized (state) {
+                if (state.delta.isEmpty() && !dirty.contains(entry.getKey())) {
+                    state.evicted = true;
+                    states.remove(entry.getKey(), state);
+                }
+            }
+        }
+    }
+
+    /** 停止刷新线程并写出剩余修改 */
+    void destroy() {
+        // 不中断刷新线程，避免打断进行中的JDBC写入；休眠结束后线程自行退出
+        running = false;
+        try {
+            flusher.join(30_000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushDirty();
+        logger.info("McpSessionStateStore stopped: flushed={}, conflicts={}, unsaved={}",
+                flushedCount.get(), conflictCount.get(), dirty.size());
+    }
+}
@@ -0,0 +1,33 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.context.ToolFactory;
+
+/**
+ * 在 MoquiConf tools 中注册，随运行时启动/关闭 McpSessionStateStore 并写出未落库的上下文
+ */
+public class McpSessionStateStoreToolFactory implements ToolFactory<McpSessionStateStore> {
+    private McpSessionStateStore stateStore = null;
+
+    public McpSessionStateStoreToolFactory() { }
+
+    @Override
+    public String getName() { return McpSessionStateStore.TOOL_NAME; }
+
+    @Override
+    public void init(ExecutionContextFactory ecf) {
+        stateStore = new McpSessionStateStore(ecf);
+    }
+
+    @Override
+    public McpSessionStateStore getInstance(Object... parameters) {
+        if (stateStore == null) throw new IllegalStateException("McpSessionStateStoreToolFactory not initialized");
+        return stateStore;
+    }
+
+    @Override
+    public void destroy() {
+        if (stateStore != null) stateStore.destroy();
+        stateStore = null;
+    }
+}
@@ -0,0 +1,143 @@
+package org.moqui.mcp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按键分条的执行器
+ * 同一个键（chatId/sessionId）的任务总是落在同一条带上由同一线程按提交顺序执行，
+ * 不同键分散到各条带并行执行；无全局锁，每条带一个有界队列，可读取各条带积压
+ */
+public class McpStripedExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(McpStripedExecutor.class);
+
+    private final String name;
+    private final Stripe[] stripes;
+    private volatile boolean running = true;
+
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final class Stripe implements Runnable {
+        final BlockingQueue<Runnable> queue;
+        final Thread thread;
+        volatile boolean busy;
+
+        Stripe(int index, int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this, name + "-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                Runnable task;
+                try {
+                    task = queue.poll(500, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (task == null) continue;
+                busy = true;
+                try {
+                    task.run();
+                    completedCount.incrementAndGet();
+                } catch (Throwable t) {
+                    failedCount.incrementAndGet();
+                    logger.error("Unexpected error in {}", thread.getName(), t);
+                } finally {
+                    busy = false;
+                }
+            }
+        }
+    }
+
+    public McpStripedExecutor(String name, int stripeCount, int stripeCapacity) {
+        if (stripeCount < 1) throw new IllegalArgumentException("stripeCount must be positive");
+        this.name = name;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) stripes[i] = new Stripe(i, Math.max(1, stripeCapacity));
+        for (Stripe stripe : stripes) stripe.thread.start();
+    }
+
+    public int getStripeCount() { return stripes.length; }
+    public long getCompletedCount() { return completedCount.get(); }
+    public long getFailedCount() { return failedCount.get(); }
+    public long getRejectedCount() { return rejectedCount.get(); }
+
+    /** 各条带排队中的任务数之和 */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Stripe stripe : stripes) depth += stripe.queue.size();
+        return depth;
+    }
+
+    /** 各条带排队中的任务数，用于发现热点会话 */
+    public int[] getStripeDepths() {
+        int[] depths = new int[stripes.length];
+        for (int i = 0; i < stripes.length; i++) depths[i] = stripes[i].queue.size();
+        return depths;
+    }
+
+    /** 正在执行任务的条带数 */
+    public int getActiveCount() {
+        int active = 0;
+        for (Stripe stripe : stripes) if (stripe.busy) active++;
+        return active;
+    }
+
+    /**
+     * 提交任务，条带队列已满时立即返回 false
+     */
+    public boolean offer(Object key, Runnable task) {
+        if (!running || !stripeFor(key).queue.offer(task)) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 提交任务，条带队列已满时阻塞等待，由调用方承受背压
+     */
+    public void submit(Object key, Runnable task) throws InterruptedException {
+        if (!running) throw new IllegalStateException(name + " is shut down");
+        stripeFor(key).queue.put(task);
+    }
+
+    private Stripe stripeFor(Object key) {
+        int hash = key != null ? key.hashCode() : 0;
+        // 打散低位相近的哈希值（连续的数字 chatId）
+        hash ^= (hash >>> 16);
+        return stripes[(hash & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * 停止接收新任务，等待各条带执行完已排队的任务；超时后剩余任务不再执行，返回未执行的任务数
+     */
+    public int shutdown(long timeoutMillis) {
+        running = false;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Stripe stripe : stripes) {
+            try {
+                stripe.thread.join(Math.max(1L, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int remaining = 0;
+        for (Stripe stripe : stripes) {
+            remaining += stripe.queue.size();
+            stripe.queue.clear();
+        }
+        return remaining;
+    }
+}
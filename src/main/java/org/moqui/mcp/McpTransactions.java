@@ -0,0 +1,48 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+/**
+ * 事务完成回调：内存缓存的失效、计数等副作用要等数据库改动真正提交后再生效
+ */
+final class McpTransactions {
+    private static final Logger logger = LoggerFactory.getLogger(McpTransactions.class);
+
+    private McpTransactions() { }
+
+    /** 当前事务提交后执行；没有事务时立即执行，回滚时不执行 */
+    static void afterCommit(ExecutionContext ec, Runnable action) {
+        register(ec, action, true);
+    }
+
+    /** 当前事务结束（提交或回滚）后执行；没有事务时立即执行 */
+    static void afterCompletion(ExecutionContext ec, Runnable action) {
+        register(ec, action, false);
+    }
+
+    private static void register(ExecutionContext ec, Runnable action, boolean commitOnly) {
+        if (!ec.getTransaction().isTransactionInPlace()) {
+            action.run();
+            return;
+        }
+        ec.getTransaction().registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() { }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (commitOnly && status != Status.STATUS_COMMITTED) return;
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    logger.warn("After-completion action failed: {}", e.getMessage(), e);
+                }
+            }
+        });
+    }
+}
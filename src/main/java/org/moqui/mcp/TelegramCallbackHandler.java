@@ -0,0 +1,237 @@
+package org.moqui.mcp;
+
+import groovy.json.JsonOutput;
+import org.moqui.context.ExecutionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Telegram 内联键盘回调处理
+ * 静态菜单回调（TelegramCommandRegistry.isStaticCallback）不解析 Party 和会话；
+ * 修改会话状态的回调只把改动的字段交给 McpSessionStateStore 合并
+ */
+final class TelegramCallbackHandler {
+    private static final Logger logger = LoggerFactory.getLogger(TelegramCallbackHandler.class);
+
+    private TelegramCallbackHandler() { }
+
+    static void handle(ExecutionContext ec, TelegramOutboundSender sender, TelegramUpdate.CallbackQuery callback) {
+        String chatId = callback.chatId;
+        Integer messageId = callback.messageId;
+        String data = callback.data;
+        logger.info("Telegram callback received chat={}, data={}", chatId, data);
+        if (chatId == null) {
+            sender.answerCallbackQuery(callback.id);
+            return;
+        }
+
+        String merchantId = callback.fromId != null ? callback.fromId : chatId;
+        String sessionId = "telegram_" + chatId;
+        if (!TelegramCommandRegistry.isStaticCallback(data)) {
+            ec.getTransaction().runUseOrBegin(30, "Error resolving Telegram session", () ->
+                    new McpSessionBootstrap(ec).resolve(sessionId, merchantId, "TELEGRAM", null, JsonOutput.toJson(Collections.emptyMap())));
+        }
+        // 只记录本次回调修改的字段，由会话状态存储合并并批量落库
+        Map<String, Object> stateChanges = new HashMap<>();
+
+        switch (data) {
+            case "category_construction":
+                send(sender, chatId, "🏗️ 建筑工程服务\n\n请选择您的需求类型：", TelegramMenus.CONSTRUCTION);
+                break;
+            case "category_supply_demand":
+                send(sender, chatId, "📊 智能供需匹配\n\n请选择需要的操作：", TelegramMenus.SUPPLY_DEMAND);
+                break;
+            case "category_hivemind":
+                send(sender, chatId, "🔧 蜂巢项目管理\n\n请选择需要的操作：", TelegramMenus.PROJECT);
+                break;
+            case "category_ecommerce":
+                send(sender, chatId, "🛒 流行电商\n\n请选择需要的操作：", TelegramMenus.ECOMMERCE);
+                break;
+            case "category_erp":
+                send(sender, chatId, "💼 大理石 ERP 正在集成中，稍后为您开放。", null);
+                break;
+            case "ec_search":
+                try {
+                    List<Map<String, Object>> products = TelegramCommandHandlers.fetchEcommerceProducts(ec, 5, Collections.emptyMap());
+                    sender.editMessageText(chatId, messageId, TelegramCommandHandlers.formatProductList(ec, products), TelegramMenus.ECOMMERCE);
+                } catch (Exception e) {
+                    logger.error("电商商品搜索回调异常", e);
+                    send(sender, chatId, "❌ 获取商品列表失败，请稍后再试。", null);
+                }
+                break;
+            case "ec_inventory":
+                try {
+                    List<Map<String, Object>> lowStock = new ArrayList<>();
+                    for (Map<String, Object> product : TelegramCommandHandlers.fetchEcommerceProducts(ec, 50, Collections.emptyMap())) {
+                        if (product.get("stockQuantity") instanceof Number && TelegramCommandHandlers.stockOf(product) < 5L) lowStock.add(product);
+                    }
+                    sender.editMessageText(chatId, messageId, TelegramCommandHandlers.formatLowStock(lowStock), TelegramMenus.ECOMMERCE);
+                } catch (Exception e) {
+                    logger.error("电商库存提醒回调异常", e);
+                    send(sender, chatId, "❌ 库存数据暂时不可用，请稍后重试。", null);
+                }
+                break;
+            case "ec_orders":
+                sender.editMessageText(chatId, messageId,
+                        "🛒 订单管理说明：\n" +
+                        "• 使用 `/order create` 指令可由AI助手引导创建订单\n" +
+                        "• REST接口：`POST /rest/s1/marketplace/ecommerce/orders`\n" +
+                        "• 查看状态：`GET /rest/s1/marketplace/ecommerce/orders/{ecommerceOrderId}`\n\n" +
+                        "请选择其他操作或输入订单编号获取详情。", TelegramMenus.ECOMMERCE);
+                break;
+            case "ec_customers":
+                sender.editMessageText(chatId, messageId,
+                        "👥 客户管理规划：\n" +
+                        "• 将同步HiveMind项目信息生成客户档案\n" +
+                        "• 支持从Telegram直接绑定客户意向\n" +
+                        "• Web控制台正在建设客户360视图。\n\n" +
+                        "欢迎先录入客户标签，方便后续联动推荐。", TelegramMenus.ECOMMERCE);
+                break;
+            case "ec_analytics":
+                sender.editMessageText(chatId, messageId,
+                        "📊 销售数据分析即将上线：\n" +
+                        "• 实时GMV与订单转化率\n" +
+                        "• 商品热度排行榜\n" +
+                        "• 客户复购与人群分层。\n\n" +
+                        "相关仪表板将同步至控制台 Dashboard。", TelegramMenus.ECOMMERCE);
+                break;
+            case "ec_recommend":
+                try {
+                    List<Map<String, Object>> recommendations = TelegramCommandHandlers.fetchEcommerceRecommendations(ec, 5);
+                    sender.editMessageText(chatId, messageId, TelegramCommandHandlers.formatRecommendations(ec, recommendations), TelegramMenus.ECOMMERCE);
+                } catch (Exception e) {
+                    logger.error("电商推荐回调异常", e);
+                    send(sender, chatId, "❌ 推荐功能暂时不可用，请稍后再试。", null);
+                }
+                break;
+            case "project_create":
+                send(sender, chatId,
+                        "📋 创建项目\n" +
+                        "1️⃣ 即将开放 `/project create 项目名称` 指令\n" +
+                        "2️⃣ 当前可在控制台新建项目，Telegram 会同步最新状态\n" +
+                        "3️⃣ 发送 `/project status [项目ID]` 可随时查询进度", null);
+                break;
+            case "project_list":
+                send(sender, chatId,
+                        "📊 项目概览功能开发中。\n" +
+                        "暂时可通过 `/project status [项目ID]` 或 Web 控制台查看项目列表。", null);
+                break;
+            case "project_sync":
+                send(sender, chatId,
+                        "🔄 状态同步\n" +
+                        "发送 `/project status [项目ID]` 将立即同步 HiveMind 状态。", null);
+                break;
+            case "project_tasks":
+                send(sender, chatId,
+                        "🗂️ 任务清单\n" +
+                        "使用 `/project tasks [项目ID]` 查看任务详情；若项目尚未同步，可先在控制台维护任务。", null);
+                break;
+            case "smart_classify":
+                stateChanges.put("smartMode", true);
+                send(sender, chatId, "🤖 智能识别模式已启用，请直接输入需求，我会自动识别业务类型并为您导航。", null);
+                break;
+            case "help_info":
+                send(sender, chatId, "ℹ️ 操作指南：\n1️⃣ 选择分类进入对应功能\n2️⃣ 使用智能识别模式直接描述需求\n3️⃣ 随时点击返回主菜单切换功能", null);
+                break;
+            case "main_menu":
+            case "back_to_main":
+                stateChanges.put("smartMode", false);
+                sender.editMessageText(chatId, messageId, "请选择业务分类：", TelegramMenus.MAIN);
+                break;
+            case "sd_discover":
+                send(sender, chatId, "🔍 正在为您查找匹配的供需信息……请稍候。", null);
+                break;
+            case "sd_publish":
+                send(sender, chatId, "📢 请直接输入要发布的供需内容，我会协助您完成。", null);
+                break;
+            case "sd_recommend":
+                send(sender, chatId, "🎯 正在根据您的历史记录准备推荐结果……", null);
+                break;
+            case "sd_track":
+                send(sender, chatId, "📈 项目跟踪功能即将开放，请持续关注。", null);
+                break;
+            case "sd_voice":
+                send(sender, chatId, "🎤 已切换语音输入模式，请直接发送语音消息。", null);
+                break;
+            case "sd_image":
+                send(sender, chatId, "📷 请上传相关图片，我会帮助识别并整理需求。", null);
+                break;
+            // 建筑工程需求
+            case "construction_demand_decoration":
+                send(sender, chatId, "🏠 装修需求登记\n\n请描述您的装修需求：\n• 房屋面积（平方米）\n• 预算范围\n• 装修风格偏好\n• 期望开工时间\n\n请直接输入详细需求，我会为您匹配合适的装修团队。", null);
+                break;
+            case "construction_demand_repair":
+                send(sender, chatId, "🔧 维修需求登记\n\n请描述您的维修需求：\n• 维修类型（水电/墙面/屋顶等）\n• 问题严重程度\n• 预算范围\n• 紧急程度\n\n请详细描述问题，我会为您匹配专业维修师傅。", null);
+                break;
+            case "construction_demand_construction":
+                send(sender, chatId, "🏗️ 新建工程需求\n\n请提供工程信息：\n• 建筑类型（住宅/商业/工业）\n• 建筑面积\n• 工程预算\n• 工期要求\n• 特殊要求\n\n请详细描述工程需求，我会为您匹配专业施工团队。", null);
+                break;
+            case "construction_demand_renovation":
+                send(sender, chatId, "🔄 改造工程需求\n\n请描述改造项目：\n• 改造类型（结构/功能/外观）\n• 改造面积\n• 预算范围\n• 工期要求\n\n请详细说明改造需求，我会为您匹配合适的改造团队。", null);
+                break;
+            // 建筑工程服务供应
+            case "construction_supply_engineer":
+                send(sender, chatId, "👷‍♂️ 工程师服务登记\n\n请提供您的专业信息：\n• 专业领域（结构/建筑/装修设计等）\n• 从业年限\n• 资质证书\n• 服务范围\n• 收费标准\n\n我会将您的信息匹配给需要专业工程师的客户。", null);
+                break;
+            case "construction_supply_team":
+                send(sender, chatId, "🏢 施工队服务登记\n\n请提供团队信息：\n• 施工类型（装修/维修/新建/改造）\n• 团队规模\n• 专业特长\n• 服务区域\n• 价格范围\n• 成功案例\n\n我会为您匹配合适的工程项目。", null);
+                break;
+            case "construction_matches":
+                constructionMatches(ec, sender, chatId, messageId);
+                break;
+            case "construction_reviews":
+                send(sender, chatId, "🏅 建筑工程服务评价\n\n功能开发中，即将支持：\n• 查看工程师和施工队评价\n• 项目完成度评分\n• 质量和时效性评估\n• 性价比分析\n\n请继续使用其他功能或稍后再试。", null);
+                break;
+            default:
+                send(sender, chatId, "⚙️ 功能开发中，敬请等待进一步更新。", null);
+                break;
+        }
+
+        if (!stateChanges.isEmpty()) McpSessionStateStore.getInstance(ec).update(ec, sessionId, stateChanges);
+        sender.answerCallbackQuery(callback.id);
+    }
+
+    private static void constructionMatches(ExecutionContext ec, TelegramOutboundSender sender, String chatId, Integer messageId) {
+        try {
+            Map<String, Object> params = new HashMap<>();
+            params.put("maxResults", 5);
+            params.put("minScore", 0.6);
+            Map<String, Object> matchResult = ec.getService().sync().name("marketplace.ConstructionServices.find#ConstructionMatches")
+                    .parameters(params).call();
+            List<Map<String, Object>> matches = TelegramCommandHandlers.mapList(matchResult != null ? matchResult.get("matches") : null);
+
+            StringBuilder text = new StringBuilder("📊 建筑工程匹配结果：\n\n");
+            if (matches.isEmpty()) {
+                text.append("暂无匹配项目，请先发布需求或服务信息。\n\n")
+                        .append("💡 提示：\n")
+                        .append("• 点击上方按钮发布需求\n")
+                        .append("• 提供更详细的项目信息\n")
+                        .append("• 适当调整预算或时间要求");
+            } else {
+                int idx = 0;
+                for (Map<String, Object> match : matches) {
+                    Object score = match.get("matchScore");
+                    int percent = score instanceof Number ? new BigDecimal(score.toString()).multiply(BigDecimal.valueOf(100)).intValue() : 0;
+                    text.append(++idx).append(". 匹配度：").append(percent).append("%\n");
+                    text.append("   ").append(TelegramCommandHandlers.first(match.get("matchReason"), "基于项目需求匹配")).append("\n\n");
+                }
+                text.append("📞 如需详细沟通，请联系客服获取联系方式。");
+            }
+            sender.editMessageText(chatId, messageId, text.toString(), TelegramMenus.CONSTRUCTION);
+        } catch (Exception e) {
+            logger.error("建筑工程匹配查询失败", e);
+            send(sender, chatId, "❌ 匹配查询暂时不可用，请稍后再试。", null);
+        }
+    }
+
+    static void send(TelegramOutboundSender sender, String chatId, String text, Map<String, Object> replyMarkup) {
+        sender.sendMessage(chatId, text, replyMarkup, TelegramOutboundSender.Priority.REPLY);
+    }
+}
@@ -0,0 +1,799 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContext;
+import org.moqui.entity.EntityFind;
+import org.moqui.entity.EntityValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Telegram 斜杠命令（/project、/product、/order）的处理，按 TelegramCommandRegistry 的路由结果调用；
+ * 电商商品、推荐与订单列表的格式化也在这里，供菜单回调共用
+ */
+final class TelegramCommandHandlers {
+    private static final Logger logger = LoggerFactory.getLogger(TelegramCommandHandlers.class);
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern ITEM_SEPARATOR = Pattern.compile("[;,，|]");
+    private static final Pattern QUANTITY_SEPARATOR = Pattern.compile("[:x*]");
+
+    private static final String PRODUCT_HELP = "🛍️ 商品命令用法：\n" +
+            "• `/product list limit=5 status=ACTIVE` 查看最近商品\n" +
+            "• `/product add name=商品名 price=99.9 stock=10 category=CAT100`\n" +
+            "• `/product update 商品ID price=199 stock=5 status=INACTIVE`\n\n" +
+            "示例：\n" +
+            "`/product add name=智能投影仪 price=2299 stock=12 category=EC_CAT_DIGITAL`\n";
+    private static final String ORDER_HELP = "🧾 订单命令用法：\n" +
+            "• `/order create customer=EC_CUST_001 items=ECP1001:2,ECP1004:1 address=东莞松山湖`\n" +
+            "• `/order list status=CREATED limit=5`\n" +
+            "• `/order status EC_ORDER_001`\n\n" +
+            "示例：\n" +
+            "`/order create customer=EC_CUST_001 product=ECP1001 qty=1 address=\"东莞松山湖\"`\n";
+    private static final String PROJECT_HELP = "⚙️ 项目命令用法:\n" +
+            "/project status [项目ID]  查看项目状态\n" +
+            "/project tasks [项目ID]   查看任务列表\n" +
+            "/project list             最近项目概览\n" +
+            "/project create 名称      新建项目\n\n" +
+            "示例:\n/project status PROJECT-1001\n/project tasks WORK1003";
+
+    /** 命令的处理结果 */
+    static final class Result {
+        final boolean success;
+        final String intent;
+        final String message;
+
+        Result(boolean success, String intent, String message) {
+            this.success = success;
+            this.intent = intent;
+            this.message = message;
+        }
+    }
+
+    private TelegramCommandHandlers() { }
+
+    /** 调用路由到的命令，并补齐默认回复与意图 */
+    static Result dispatch(ExecutionContext ec, TelegramCommandRegistry.Route route, String merchantId) {
+        Result result;
+        String defaultMessage;
+        String defaultIntent;
+        switch (route.command) {
+            case TelegramCommandRegistry.PROJECT:
+                result = project(ec, route, merchantId);
+                defaultMessage = "项目命令已处理";
+                defaultIntent = "project_command";
+                break;
+            case TelegramCommandRegistry.PRODUCT:
+                result = product(ec, route);
+                defaultMessage = "商品命令已处理";
+                defaultIntent = "ecommerce_command";
+                break;
+            default:
+                result = order(ec, route, merchantId);
+                defaultMessage = "订单命令已处理";
+                defaultIntent = "ecommerce_order_command";
+                break;
+        }
+        return new Result(result.success,
+                result.intent != null ? result.intent : defaultIntent,
+                result.message != null && !result.message.isEmpty() ? result.message : defaultMessage);
+    }
+
+    // ---------- /project ----------
+
+    private static Result project(ExecutionContext ec, TelegramCommandRegistry.Route route, String merchantId) {
+        String action = route.action;
+        String identifier = route.firstToken();
+
+        if ("create".equals(action)) {
+            String name = route.payload;
+            if (name.isEmpty()) {
+                return new Result(false, null, "📋 创建项目\n请使用 `/project create 项目名称`，例如：`/project create 装修项目A`");
+            }
+            try {
+                Map<String, Object> params = new HashMap<>();
+                params.put("projectName", name);
+                params.put("projectType", "GENERAL");
+                Map<String, Object> createResult = ec.getService().sync().name("marketplace.ProjectServices.create#Project")
+                        .parameters(params).call();
+                Object projectId = createResult != null ? createResult.get("projectId") : null;
+                return new Result(true, null, "✅ 已创建项目：" + name + "\n项目ID: " + projectId +
+                        "\n可使用 `/project status " + projectId + "` 查看进度。");
+            } catch (Exception e) {
+                return new Result(false, null, "⚠️ 创建项目失败：" + orDefault(e.getMessage(), "请稍后再试"));
+            }
+        }
+
+        if ("list".equals(action)) {
+            try {
+                Map<String, Object> listResult = ec.getService().sync().name("marketplace.ProjectServices.get#ProjectList")
+                        .parameters(Collections.singletonMap("limit", 5)).call();
+                List<Map<String, Object>> projects = mapList(listResult != null ? listResult.get("projects") : null);
+                if (projects.isEmpty()) {
+                    return new Result(true, null, "🗂️ 目前没有项目记录，使用 `/project create 项目名称` 开始一个新项目。");
+                }
+                StringBuilder sb = new StringBuilder("🗂️ 最近项目：\n");
+                int idx = 0;
+                for (Map<String, Object> proj : projects) {
+                    sb.append(++idx).append(". ").append(first(proj.get("projectName"), proj.get("projectId"))).append('\n');
+                    sb.append("   ID: ").append(proj.get("projectId")).append(" | 状态: ")
+                            .append(first(proj.get("status"), "PLANNING")).append('\n');
+                }
+                sb.append("\n使用 `/project status [项目ID]` 查看详细状态。");
+                return new Result(true, null, sb.toString());
+            } catch (Exception e) {
+                return new Result(false, null, "⚠️ 无法获取项目列表：" + orDefault(e.getMessage(), "请稍后再试"));
+            }
+        }
+
+        if (TelegramCommandRegistry.HELP.equals(action)) return new Result(true, null, PROJECT_HELP);
+
+        Map<String, Object> projectRecord = resolveHiveMindProjectRecord(ec, identifier, merchantId);
+        if (projectRecord == null) {
+            String hint = identifier != null ? "未找到ID为 " + identifier + " 的 HiveMind 项目" : "未找到和您账户关联的项目";
+            String advice = identifier != null ? "请确认项目ID是否正确，或先在控制台创建项目" : "可以在控制台创建供需项目后再试";
+            return new Result(false, null, "⚠️ " + hint + "\n" + advice);
+        }
+
+        if ("tasks".equals(action)) return projectTasks(ec, projectRecord);
+        return projectStatus(ec, projectRecord);
+    }
+
+    private static Result projectStatus(ExecutionContext ec, Map<String, Object> projectRecord) {
+        Map<String, Object> syncParams = new HashMap<>();
+        if (truthy(projectRecord.get("hiveMindProjectId"))) {
+            syncParams.put("hiveMindProjectId", projectRecord.get("hiveMindProjectId"));
+        } else if (truthy(projectRecord.get("workEffortId"))) {
+            syncParams.put("workEffortId", projectRecord.get("workEffortId"));
+        }
+
+        Map<String, Object> syncResult = Collections.emptyMap();
+        boolean syncSuccess = false;
+        String syncError = null;
+        if (!syncParams.isEmpty()) {
+            try {
+                Map<String, Object> called = ec.getService().sync()
+                        .name("marketplace.MarketplaceServices.sync#HiveMindProjectStatus")
+                        .parameters(syncParams)
+                        .call();
+                if (called != null) syncResult = called;
+                syncSuccess = !Boolean.FALSE.equals(syncResult.get("success"));
+            } catch (Exception e) {
+                logger.warn("同步HiveMind项目状态失败: {}", e.getMessage());
+                syncError = e.getMessage();
+            }
+        }
+
+        String messageErrors = ec.getMessage().getErrorsString();
+        ec.getMessage().clearErrors();
+        if (truthy(messageErrors)) syncError = messageErrors;
+
+        Object latestStatus = first(syncResult.get("projectStatus"), projectRecord.get("syncStatus"), "UNKNOWN");
+        Object lastSyncTs = truthy(syncResult.get("success")) ? ec.getUser().getNowTimestamp() : projectRecord.get("lastSyncDate");
+        String lastSyncText = formatTimestamp(ec, lastSyncTs);
+        Object listingName = first(projectRecord.get("listingTitle"), projectRecord.get("listingId"), "—");
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("📌 HiveMind 项目状态\n");
+        if (truthy(projectRecord.get("projectName"))) sb.append("• 项目名称: ").append(projectRecord.get("projectName")).append('\n');
+        sb.append("• 项目ID: ").append(first(projectRecord.get("hiveMindProjectId"), "尚未同步")).append('\n');
+        if (truthy(projectRecord.get("workEffortId"))) sb.append("• WorkEffort: ").append(projectRecord.get("workEffortId")).append('\n');
+        sb.append("• 关联需求: ").append(listingName).append('\n');
+        sb.append("• 当前状态: ").append(latestStatus).append('\n');
+        sb.append("• 上次同步: ").append(first(lastSyncText, "未同步")).append('\n');
+
+        Map<?, ?> response = syncResult.get("response") instanceof Map ? (Map<?, ?>) syncResult.get("response") : null;
+        if (response != null && truthy(response.get("updatedAt"))) {
+            sb.append("• HiveMind更新时间: ").append(response.get("updatedAt")).append('\n');
+        }
+        if (response != null && truthy(response.get("owner"))) {
+            sb.append("• 负责人: ").append(response.get("owner")).append('\n');
+        }
+        if (!syncSuccess) {
+            sb.append("\n⚠️ 同步未成功: ").append(first(syncError, "暂时无法连接HiveMind，请稍后重试"));
+        }
+        return new Result(true, "project_status_command", sb.toString());
+    }
+
+    private static Result projectTasks(ExecutionContext ec, Map<String, Object> projectRecord) {
+        Map<String, Object> taskParams = new HashMap<>();
+        if (truthy(projectRecord.get("hiveMindProjectId"))) {
+            taskParams.put("hiveMindProjectId", projectRecord.get("hiveMindProjectId"));
+        } else if (truthy(projectRecord.get("workEffortId"))) {
+            taskParams.put("workEffortId", projectRecord.get("workEffortId"));
+        }
+        taskParams.put("maxResults", 6);
+
+        Map<String, Object> taskResult = Collections.emptyMap();
+        boolean fetchSuccess = false;
+        try {
+            Map<String, Object> called = ec.getService().sync()
+                    .name("marketplace.MarketplaceServices.fetch#HiveMindProjectTasks")
+                    .parameters(taskParams)
+                    .call();
+            if (called != null) taskResult = called;
+            fetchSuccess = !Boolean.FALSE.equals(taskResult.get("success"));
+        } catch (Exception e) {
+            logger.warn("获取项目任务失败: {}", e.getMessage());
+        }
+
+        String messageErrors = ec.getMessage().getErrorsString();
+        ec.getMessage().clearErrors();
+        if (truthy(messageErrors) && !fetchSuccess) return new Result(false, null, "⚠️ " + messageErrors);
+
+        List<Map<String, Object>> tasks = mapList(taskResult.get("tasks"));
+        StringBuilder sb = new StringBuilder();
+        sb.append("🗂️ 项目任务列表\n");
+        sb.append("• 项目ID: ").append(first(projectRecord.get("hiveMindProjectId"), "尚未同步")).append('\n');
+        if (truthy(projectRecord.get("workEffortId"))) sb.append("• WorkEffort: ").append(projectRecord.get("workEffortId")).append('\n');
+        sb.append("• 数据来源: ").append(first(taskResult.get("source"), fetchSuccess ? "HIVEMIND" : "LOCAL")).append("\n\n");
+
+        if (tasks.isEmpty()) {
+            sb.append("暂无任务记录，您可以在控制台中创建任务或稍后再试。");
+            return new Result(fetchSuccess, "project_tasks_command", sb.toString());
+        }
+
+        int idx = 0;
+        for (Map<String, Object> task : tasks) {
+            sb.append(++idx).append(". ").append(first(task.get("name"), "未命名任务")).append('\n');
+            sb.append("   状态: ").append(first(task.get("status"), "UNKNOWN"))
+                    .append(" | 负责人: ").append(first(task.get("assignedTo"), "--")).append('\n');
+            if (truthy(task.get("dueDate"))) sb.append("   截止: ").append(task.get("dueDate")).append('\n');
+            if (truthy(task.get("description"))) sb.append("   描述: ").append(task.get("description")).append('\n');
+        }
+        sb.append("\n提示: 可在控制台更新任务状态，也可稍后再使用 /project status 查看最新进度。");
+        return new Result(true, "project_tasks_command", sb.toString());
+    }
+
+    /** 按项目ID、WorkEffort ID 或商户最近发布的需求查找 HiveMind 项目 */
+    private static Map<String, Object> resolveHiveMindProjectRecord(ExecutionContext ec, String identifier, String merchantId) {
+        EntityFind projectFind = ec.getEntity().find("marketplace.project.HiveMindProject");
+        if (identifier != null) {
+            projectFind.condition("hiveMindProjectId", identifier);
+        } else if (merchantId != null) {
+            EntityValue latestListing = ec.getEntity().find("marketplace.listing.Listing")
+                    .condition("publisherId", merchantId)
+                    .orderBy("-createdDate")
+                    .limit(1)
+                    .disableAuthz()
+                    .one();
+            if (latestListing != null) projectFind.condition("listingId", latestListing.get("listingId"));
+        }
+        EntityValue projectValue = projectFind.orderBy("-lastSyncDate").limit(1).disableAuthz().one();
+
+        if (projectValue == null && identifier != null) {
+            projectValue = ec.getEntity().find("marketplace.project.HiveMindProject")
+                    .condition("workEffortId", identifier)
+                    .orderBy("-lastSyncDate")
+                    .limit(1)
+                    .disableAuthz()
+                    .one();
+        }
+        if (projectValue == null) return null;
+
+        Map<String, Object> projectMap = new HashMap<>();
+        projectMap.put("workEffortId", projectValue.get("workEffortId"));
+        projectMap.put("projectId", projectValue.get("projectId"));
+        projectMap.put("hiveMindProjectId", projectValue.get("hiveMindProjectId"));
+        projectMap.put("listingId", projectValue.get("listingId"));
+        projectMap.put("syncStatus", projectValue.get("syncStatus"));
+        projectMap.put("lastSyncDate", projectValue.get("lastSyncDate"));
+
+        if (truthy(projectValue.get("projectId"))) {
+            EntityValue projectInfo = ec.getEntity().find("marketplace.project.ProjectInfo")
+                    .condition("projectId", projectValue.get("projectId"))
+                    .disableAuthz()
+                    .one();
+            if (projectInfo != null) {
+                projectMap.put("projectName", projectInfo.get("projectName"));
+                projectMap.put("projectDescription", projectInfo.get("description"));
+            }
+        }
+        if (truthy(projectMap.get("listingId"))) {
+            EntityValue listing = ec.getEntity().find("marketplace.listing.Listing")
+                    .condition("listingId", projectMap.get("listingId"))
+                    .disableAuthz()
+                    .one();
+            if (listing != null) {
+                projectMap.put("listingTitle", first(listing.get("title"), listing.get("listingId")));
+                projectMap.put("publisherId", listing.get("publisherId"));
+            }
+        }
+        return projectMap;
+    }
+
+    // ---------- /product ----------
+
+    private static Result product(ExecutionContext ec, TelegramCommandRegistry.Route route) {
+        switch (route.action) {
+            case "add": return productAdd(ec, route.args());
+            case "update": return productUpdate(ec, route.payload);
+            case "list": return productList(ec, route.args());
+            default: return new Result(true, "ecommerce_command_help", PRODUCT_HELP);
+        }
+    }
+
+    private static Result productAdd(ExecutionContext ec, Map<String, String> args) {
+        String intent = "ecommerce_product_add";
+        String name = arg(args, "name", "title");
+        if (name == null) {
+            return new Result(false, intent, "🛍️ 请提供商品名称，例如：`/product add name=夏季T恤 price=89 stock=50 category=EC_CAT_APPAREL`");
+        }
+
+        BigDecimal price = null;
+        if (arg(args, "price") != null) {
+            try {
+                price = new BigDecimal(args.get("price"));
+            } catch (NumberFormatException e) {
+                return new Result(false, intent, "⚠️ 价格格式无效，请使用数字，例如 `price=99.9`");
+            }
+        }
+        Long stockQty = null;
+        String stockRaw = arg(args, "stock", "quantity", "qty");
+        if (stockRaw != null) {
+            try {
+                stockQty = Long.parseLong(stockRaw);
+            } catch (NumberFormatException e) {
+                return new Result(false, intent, "⚠️ 库存需为整数，例如 `stock=20`");
+            }
+        }
+
+        Map<String, Object> serviceParams = new HashMap<>();
+        serviceParams.put("productName", name);
+        serviceParams.put("productCategoryId", arg(args, "category", "categoryid", "cat"));
+        serviceParams.put("description", arg(args, "desc", "description"));
+        serviceParams.put("imageUrl", arg(args, "image", "imageurl"));
+        serviceParams.put("status", orDefault(arg(args, "status"), "ACTIVE").toUpperCase());
+        if (price != null) serviceParams.put("price", price);
+        if (stockQty != null) {
+            serviceParams.put("stockQuantity", stockQty);
+        } else if (!args.containsKey("stock") && !args.containsKey("quantity") && !args.containsKey("qty")) {
+            serviceParams.put("stockQuantity", 0L);
+        }
+
+        try {
+            Map<String, Object> serviceResult = ec.getService().sync()
+                    .name("marketplace.EcommerceServices.create#Product")
+                    .parameters(serviceParams)
+                    .call();
+            ec.getMessage().clearErrors();
+            Object productId = serviceResult != null ? first(serviceResult.get("ecommerceProductId"), serviceResult.get("productId")) : null;
+            StringBuilder sb = new StringBuilder("✅ 已创建商品：").append(name).append('\n');
+            if (price != null) sb.append("• 价格：").append(price).append('\n');
+            if (stockQty != null) sb.append("• 库存：").append(stockQty).append('\n');
+            if (serviceParams.get("productCategoryId") != null) sb.append("• 分类：").append(serviceParams.get("productCategoryId")).append('\n');
+            sb.append("ID: ").append(productId).append("\n可通过 `/product list` 查看。");
+            return new Result(true, intent, sb.toString());
+        } catch (Exception e) {
+            return new Result(false, intent, "⚠️ 创建商品失败：" + orDefault(takeErrors(ec, e), "请稍后重试"));
+        }
+    }
+
+    private static Result productUpdate(ExecutionContext ec, String payload) {
+        String intent = "ecommerce_product_update";
+        if (payload.isEmpty()) {
+            return new Result(false, intent, "请提供商品ID，例如：`/product update ECP1001 price=188 stock=20`");
+        }
+        String[] parts = WHITESPACE.split(payload, 2);
+        String productId = parts[0];
+        if (productId.isEmpty()) return new Result(false, intent, "请在 `/product update` 后提供商品ID。");
+        Map<String, String> args = TelegramCommandRegistry.parseArgs(parts.length > 1 ? parts[1] : "");
+        if (args.isEmpty()) {
+            return new Result(false, intent, "请提供需要更新的字段，例如：`/product update " + productId + " price=199 stock=8 status=INACTIVE`");
+        }
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("ecommerceProductId", productId);
+        putIfPresent(params, "productName", arg(args, "name", "title"));
+        putIfPresent(params, "productCategoryId", arg(args, "category", "categoryid", "cat"));
+        putIfPresent(params, "description", arg(args, "desc", "description"));
+        putIfPresent(params, "imageUrl", arg(args, "image", "imageurl"));
+        String status = arg(args, "status");
+        if (status != null) params.put("status", status.toUpperCase());
+        if (arg(args, "price") != null) {
+            try {
+                params.put("price", new BigDecimal(args.get("price")));
+            } catch (NumberFormatException e) {
+                return new Result(false, intent, "⚠️ price 需为数字，例如 `price=1299.99`");
+            }
+        }
+        String stockRaw = arg(args, "stock", "quantity", "qty");
+        if (stockRaw != null) {
+            try {
+                params.put("stockQuantity", Long.parseLong(stockRaw));
+            } catch (NumberFormatException e) {
+                return new Result(false, intent, "⚠️ stock 需为整数，例如 `stock=50`");
+            }
+        }
+        if (params.size() == 1) return new Result(false, intent, "未检测到可更新字段，请添加 price、stock、status 等参数。");
+
+        try {
+            ec.getService().sync().name("marketplace.EcommerceServices.update#Product").parameters(params).call();
+            ec.getMessage().clearErrors();
+            return new Result(true, intent, "✅ 已更新商品 " + productId + "。\n使用 `/product list` 查看最新信息。");
+        } catch (Exception e) {
+            return new Result(false, intent, "⚠️ 更新失败：" + orDefault(takeErrors(ec, e), "请稍后再试"));
+        }
+    }
+
+    private static Result productList(ExecutionContext ec, Map<String, String> args) {
+        int limit = Math.max(1, Math.min(parseLimit(args, 5), 20));
+        Map<String, Object> filters = new HashMap<>();
+        putIfPresent(filters, "productCategoryId", arg(args, "category", "categoryid", "cat"));
+        String status = arg(args, "status");
+        if (status != null) filters.put("status", status.toUpperCase());
+        String keyword = arg(args, "keyword", "q", "name");
+        putIfPresent(filters, "keyword", keyword);
+
+        String text = formatProductList(ec, fetchEcommerceProducts(ec, limit, filters));
+        if (keyword != null) text = text + "\n🔎 关键字: " + keyword;
+        return new Result(true, "ecommerce_product_list", text);
+    }
+
+    // ---------- /order ----------
+
+    private static Result order(ExecutionContext ec, TelegramCommandRegistry.Route route, String merchantId) {
+        switch (route.action) {
+            case "create": return orderCreate(ec, route.args());
+            case "status": return orderStatus(ec, route.payload);
+            case "list": return orderList(ec, route.args());
+            default: return new Result(true, "ecommerce_order_help", ORDER_HELP);
+        }
+    }
+
+    private static Result orderCreate(ExecutionContext ec, Map<String, String> args) {
+        String intent = "ecommerce_order_create";
+        String customerId = firstArg(args, "customer", "customerid", "cust", "cid");
+        if (customerId == null) {
+            return new Result(false, intent, "请提供客户ID，例如：`/order create customer=EC_CUST_001 product=ECP1001 qty=1 address=东莞松山湖`");
+        }
+        List<String> parseErrors = new ArrayList<>();
+        List<Map<String, Object>> orderItems = buildOrderItems(args, parseErrors);
+        if (orderItems.isEmpty()) {
+            return new Result(false, intent, "请通过 `items=ECP1001:2,ECP1004:1` 或 `product=ECP1001 qty=2` 指定商品明细");
+        }
+        if (!parseErrors.isEmpty()) return new Result(false, intent, "⚠️ " + String.join("\n", parseErrors));
+
+        String shippingAddress = firstArg(args, "address", "addr", "shipping", "shipto");
+        Map<String, Object> serviceParams = new HashMap<>();
+        serviceParams.put("ecommerceCustomerId", customerId);
+        serviceParams.put("cartId", firstArg(args, "cart", "cartid"));
+        serviceParams.put("shippingAddress", shippingAddress);
+        serviceParams.put("orderItems", orderItems);
+        try {
+            Map<String, Object> serviceResult = ec.getService().sync()
+                    .name("marketplace.EcommerceServices.create#Order")
+                    .parameters(serviceParams)
+                    .call();
+            ec.getMessage().clearErrors();
+            Object orderId = serviceResult != null ? serviceResult.get("ecommerceOrderId") : null;
+            Object total = serviceResult != null ? serviceResult.get("orderTotal") : null;
+            StringBuilder sb = new StringBuilder("✅ 订单已创建\n");
+            sb.append("• 订单号: ").append(orderId).append('\n');
+            sb.append("• 客户: ").append(customerId).append('\n');
+            sb.append("• 金额: ").append(truthy(total) ? ec.getL10n().formatCurrency(total, "CNY") : "--").append('\n');
+            if (shippingAddress != null) sb.append("• 地址: ").append(shippingAddress).append('\n');
+            sb.append("\n使用 `/order status ").append(orderId).append("` 查看配送状态。");
+            return new Result(true, intent, sb.toString());
+        } catch (Exception e) {
+            return new Result(false, intent, "⚠️ 创建订单失败：" + orDefault(takeErrors(ec, e), "请稍后再试"));
+        }
+    }
+
+    private static Result orderStatus(ExecutionContext ec, String payload) {
+        String intent = "ecommerce_order_status";
+        if (payload.isEmpty()) return new Result(false, intent, "请提供订单号，例如：`/order status EC_ORDER_001`");
+        String orderId = WHITESPACE.split(payload, 2)[0];
+        if (orderId.isEmpty()) return new Result(false, intent, "请提供正确的订单ID，例如 EC_ORDER_001。");
+        try {
+            Map<String, Object> statusResult = ec.getService().sync()
+                    .name("marketplace.EcommerceServices.get#OrderStatus")
+                    .parameters(Collections.singletonMap("ecommerceOrderId", orderId))
+                    .call();
+            Map<?, ?> order = statusResult != null && statusResult.get("order") instanceof Map ? (Map<?, ?>) statusResult.get("order") : null;
+            if (order == null || order.isEmpty()) {
+                return new Result(false, intent, "未找到订单 " + orderId + "，请确认编号是否正确。");
+            }
+            Object total = first(order.get("orderTotal"), statusResult.get("orderTotal"));
+            StringBuilder sb = new StringBuilder("🧾 订单状态\n");
+            sb.append("• 订单号: ").append(orderId).append('\n');
+            sb.append("• 状态: ").append(first(statusResult.get("orderStatus"), order.get("orderStatus"))).append('\n');
+            sb.append("• 支付: ").append(first(statusResult.get("paymentStatus"), order.get("paymentStatus"))).append('\n');
+            sb.append("• 金额: ").append(truthy(total)
+                    ? ec.getL10n().formatCurrency(total, String.valueOf(first(order.get("currencyUomId"), "CNY"))) : "--").append('\n');
+            if (truthy(order.get("createdDate"))) {
+                sb.append("• 创建时间: ").append(ec.getL10n().format(order.get("createdDate"), "yyyy-MM-dd HH:mm")).append('\n');
+            }
+            if (truthy(order.get("shippingAddress"))) sb.append("• 地址: ").append(order.get("shippingAddress")).append('\n');
+            return new Result(true, intent, sb.toString());
+        } catch (Exception e) {
+            return new Result(false, intent, "⚠️ 查询失败：" + orDefault(takeErrors(ec, e), "请稍后尝试"));
+        }
+    }
+
+    private static Result orderList(ExecutionContext ec, Map<String, String> args) {
+        String intent = "ecommerce_order_list";
+        Map<String, Object> params = new HashMap<>();
+        params.put("limit", Math.max(1, Math.min(parseLimit(args, 5), 10)));
+        String statusFilter = firstArg(args, "status", "orderstatus", "state");
+        if (statusFilter != null) params.put("orderStatus", statusFilter.toUpperCase());
+        String customerFilter = firstArg(args, "customer", "customerid", "cust", "cid");
+        if (customerFilter != null) params.put("ecommerceCustomerId", customerFilter);
+        try {
+            Map<String, Object> listResult = ec.getService().sync()
+                    .name("marketplace.EcommerceServices.get#OrderList")
+                    .parameters(params)
+                    .call();
+            List<Map<String, Object>> orders = mapList(listResult != null ? listResult.get("orders") : null);
+            return new Result(true, intent, formatOrderList(ec, orders, statusFilter, customerFilter));
+        } catch (Exception e) {
+            return new Result(false, intent, "⚠️ 获取订单列表失败：" + orDefault(takeErrors(ec, e), "请稍后重试"));
+        }
+    }
+
+    /** items=ECP1001:2,ECP1004:1 或 product=ECP1001 qty=2 */
+    private static List<Map<String, Object>> buildOrderItems(Map<String, String> args, List<String> parseErrors) {
+        List<Map<String, Object>> orderItems = new ArrayList<>();
+        String rawItems = firstArg(args, "items", "lines");
+        if (rawItems != null) {
+            String[] tokens = ITEM_SEPARATOR.split(rawItems);
+            for (int idx = 0; idx < tokens.length; idx++) {
+                String entry = tokens[idx].trim();
+                if (entry.isEmpty()) continue;
+                String[] pair = QUANTITY_SEPARATOR.split(entry);
+                if (pair.length == 0 || pair[0].trim().isEmpty()) continue;
+                int qty = 1;
+                if (pair.length > 1) {
+                    try {
+                        qty = Integer.parseInt(pair[1].trim());
+                    } catch (NumberFormatException e) {
+                        parseErrors.add("第 " + (idx + 1) + " 个商品数量无效: " + pair[1]);
+                    }
+                }
+                orderItems.add(orderItem(pair[0].trim(), qty));
+            }
+        }
+        if (orderItems.isEmpty()) {
+            String singleProduct = firstArg(args, "product", "productid", "pid");
+            if (singleProduct != null) {
+                int qty = 1;
+                String qtyRaw = firstArg(args, "quantity", "qty", "count");
+                if (qtyRaw != null) {
+                    try {
+                        qty = Integer.parseInt(qtyRaw);
+                    } catch (NumberFormatException e) {
+                        parseErrors.add("数量 " + qtyRaw + " 不是有效数字，已采用 1 件");
+                    }
+                }
+                orderItems.add(orderItem(singleProduct, qty));
+            }
+        }
+        return orderItems;
+    }
+
+    private static Map<String, Object> orderItem(String productId, int qty) {
+        Map<String, Object> item = new HashMap<>();
+        item.put("ecommerceProductId", productId);
+        item.put("quantity", Math.max(1, qty));
+        return item;
+    }
+
+    // ---------- 电商数据与格式化（命令与菜单回调共用） ----------
+
+    static List<Map<String, Object>> fetchEcommerceProducts(ExecutionContext ec, int limit, Map<String, Object> filters) {
+        EntityFind find = ec.getEntity().find("marketplace.ecommerce.EcommerceProduct");
+        if (filters.get("productCategoryId") != null) find.condition("productCategoryId", filters.get("productCategoryId"));
+        if (filters.get("status") != null) find.condition("status", filters.get("status"));
+        String keyword = filters.get("keyword") != null ? filters.get("keyword").toString().toLowerCase() : null;
+        find.orderBy("-lastUpdatedDate").limit(keyword != null ? Math.max(limit * 3, 20) : limit).disableAuthz();
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (EntityValue value : find.list()) {
+            if (results.size() >= limit) break;
+            if (keyword != null) {
+                String name = value.get("productName") != null ? value.get("productName").toString().toLowerCase() : "";
+                String desc = value.get("description") != null ? value.get("description").toString().toLowerCase() : "";
+                if (!name.contains(keyword) && !desc.contains(keyword)) continue;
+            }
+            results.add(value.getMap());
+        }
+        return results;
+    }
+
+    static List<Map<String, Object>> fetchEcommerceRecommendations(ExecutionContext ec, int limit) {
+        try {
+            Map<String, Object> serviceResult = ec.getService().sync()
+                    .name("marketplace.EcommerceServices.get#ProductRecommendations")
+                    .parameters(Collections.singletonMap("limit", limit))
+                    .call();
+            return mapList(serviceResult != null ? serviceResult.get("recommendations") : null);
+        } catch (Exception e) {
+            logger.warn("电商推荐服务调用失败: {}", e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    static String formatProductList(ExecutionContext ec, List<Map<String, Object>> products) {
+        if (products.isEmpty()) return "🛍️ 当前尚未创建商品，请先通过 Web 控制台或调用 REST API 新增商品。";
+        StringBuilder sb = new StringBuilder("🛍️ 最新商品列表：\n");
+        int idx = 0;
+        for (Map<String, Object> prod : products) {
+            sb.append(++idx).append(". ").append(productName(prod)).append('\n');
+            sb.append("   价格：").append(priceText(ec, prod)).append(" | 库存：").append(stockOf(prod)).append('\n');
+            if (truthy(prod.get("productCategoryId"))) sb.append("   分类：").append(prod.get("productCategoryId")).append('\n');
+        }
+        sb.append("\n📍 更多操作可在智能推荐控制台中完成。");
+        return sb.toString();
+    }
+
+    static String formatLowStock(List<Map<String, Object>> products) {
+        if (products.isEmpty()) return "📦 所有商品库存充足，暂无低库存提醒。";
+        StringBuilder sb = new StringBuilder("📦 低库存提醒：\n");
+        int idx = 0;
+        for (Map<String, Object> prod : products) {
+            sb.append(++idx).append(". ").append(productName(prod)).append(" - 剩余 ").append(stockOf(prod)).append(" 件\n");
+        }
+        sb.append("\n建议尽快补货或调整库存。");
+        return sb.toString();
+    }
+
+    static String formatRecommendations(ExecutionContext ec, List<Map<String, Object>> recommendations) {
+        if (recommendations.isEmpty()) return "🎯 暂无推荐结果，请先录入商品、评价或订单信息后再试。";
+        StringBuilder sb = new StringBuilder("🎯 精选推荐商品：\n");
+        int idx = 0;
+        for (Map<String, Object> rec : recommendations) {
+            sb.append(++idx).append(". ").append(productName(rec)).append(" - ").append(priceText(ec, rec)).append('\n');
+            BigDecimal rating = decimal(rec.get("avgRating"));
+            if (truthy(rec.get("avgRating")) && rating != null) {
+                sb.append("   ⭐️ ").append(rating.setScale(1, RoundingMode.HALF_UP))
+                        .append(" /5 · 评价 ").append(first(rec.get("reviewCount"), 0)).append('\n');
+            }
+            if (truthy(rec.get("orderCount"))) sb.append("   📦 累计订单 ").append(rec.get("orderCount")).append('\n');
+            if (truthy(rec.get("recommendationSource"))) sb.append("   来源：").append(rec.get("recommendationSource")).append('\n');
+        }
+        sb.append("\n可继续描述客户需求，AI 将输出更精确推荐。");
+        return sb.toString();
+    }
+
+    private static String formatOrderList(ExecutionContext ec, List<Map<String, Object>> orders, String statusFilter, String customerFilter) {
+        if (orders.isEmpty()) return "🧾 当前没有符合条件的订单记录，可使用 `/order create` 新建。";
+        StringBuilder sb = new StringBuilder("🧾 最近订单：\n");
+        if (statusFilter != null || customerFilter != null) {
+            sb.append("筛选");
+            if (statusFilter != null) sb.append(" 状态=").append(statusFilter.toUpperCase());
+            if (customerFilter != null) sb.append(statusFilter != null ? "，" : " ").append("客户=").append(customerFilter);
+            sb.append('\n');
+        }
+        int idx = 0;
+        for (Map<String, Object> order : orders) {
+            Object total = order.get("orderTotal");
+            String currency = String.valueOf(first(order.get("currencyUomId"), "CNY"));
+            sb.append(++idx).append(". ").append(first(order.get("ecommerceOrderId"), "N/A"))
+                    .append(" (").append(first(order.get("orderStatus"), "UNKNOWN")).append(")\n");
+            sb.append("   金额: ").append(truthy(total) ? ec.getL10n().formatCurrency(total, currency) : "--")
+                    .append(" | 客户: ").append(first(order.get("ecommerceCustomerId"), "--")).append('\n');
+            sb.append("   创建: ").append(truthy(order.get("createdDate"))
+                    ? ec.getL10n().format(order.get("createdDate"), "MM-dd HH:mm") : "--").append('\n');
+        }
+        sb.append("\n使用 `/order status 订单号` 查看详细信息。");
+        return sb.toString();
+    }
+
+    static long stockOf(Map<String, Object> prod) {
+        Object stock = prod.get("stockQuantity");
+        return stock instanceof Number ? ((Number) stock).longValue() : 0L;
+    }
+
+    private static Object productName(Map<String, Object> prod) {
+        return first(prod.get("productName"), prod.get("ecommerceProductId"), "未命名商品");
+    }
+
+    private static String priceText(ExecutionContext ec, Map<String, Object> prod) {
+        BigDecimal price = decimal(prod.get("price"));
+        return price != null ? ec.getL10n().formatCurrency(price, String.valueOf(first(prod.get("currencyUomId"), "CNY"))) : "未定价";
+    }
+
+    // ---------- 通用 ----------
+
+    static String formatTimestamp(ExecutionContext ec, Object ts) {
+        if (!truthy(ts)) return null;
+        try {
+            return ec.getL10n().format(ts, "yyyy-MM-dd HH:mm");
+        } catch (Exception e) {
+            logger.debug("无法格式化时间: {}", e.getMessage());
+            return ts.toString();
+        }
+    }
+
+    /** 取出并清除服务调用留下的错误消息，没有时使用异常信息 */
+    private static String takeErrors(ExecutionContext ec, Exception e) {
+        String errors = ec.getMessage().getErrorsString();
+        ec.getMessage().clearErrors();
+        return truthy(errors) ? errors : e.getMessage();
+    }
+
+    private static int parseLimit(Map<String, String> args, int defaultLimit) {
+        String limitRaw = arg(args, "limit", "top", "size");
+        if (limitRaw == null) return defaultLimit;
+        try {
+            return Integer.parseInt(limitRaw);
+        } catch (NumberFormatException e) {
+            return defaultLimit;
+        }
+    }
+
+    /** 第一个非空的参数值（原样） */
+    private static String arg(Map<String, String> args, String... keys) {
+        for (String key : keys) {
+            String value = args.get(key);
+            if (value != null && !value.isEmpty()) return value;
+        }
+        return null;
+    }
+
+    /** 第一个去掉空白后非空的参数值 */
+    private static String firstArg(Map<String, String> args, String... keys) {
+        for (String key : keys) {
+            String value = args.get(key);
+            if (value != null && !value.trim().isEmpty()) return value.trim();
+        }
+        return null;
+    }
+
+    private static void putIfPresent(Map<String, Object> map, String key, Object value) {
+        if (value != null) map.put(key, value);
+    }
+
+    private static BigDecimal decimal(Object value) {
+        if (value instanceof BigDecimal) return (BigDecimal) value;
+        if (value == null) return null;
+        try {
+            return new BigDecimal(value.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<Map<String, Object>> mapList(Object value) {
+        if (!(value instanceof List)) return Collections.emptyList();
+        List<Map<String, Object>> maps = new ArrayList<>();
+        for (Object item : (List<Object>) value) {
+            if (item instanceof Map) maps.add((Map<String, Object>) item);
+        }
+        return maps;
+    }
+
+    /** 第一个“有值”的参数，对应 Groovy 的 ?: 链 */
+    static Object first(Object... values) {
+        for (Object value : values) {
+            if (truthy(value)) return value;
+        }
+        return values[values.length - 1];
+    }
+
+    static String orDefault(String value, String defaultValue) {
+        return value != null && !value.isEmpty() ? value : defaultValue;
+    }
+
+    /** Groovy 真值：null、空字符串、空集合、0 和 false 为假 */
+    static boolean truthy(Object value) {
+        if (value == null) return false;
+        if (value instanceof Boolean) return (Boolean) value;
+        if (value instanceof CharSequence) return ((CharSequence) value).length() > 0;
+        if (value instanceof Collection) return !((Collection<?>) value).isEmpty();
+        if (value instanceof Map) return !((Map<?, ?>) value).isEmpty();
+        if (value instanceof BigDecimal) return ((BigDecimal) value).signum() != 0;
+        if (value instanceof Number) return ((Number) value).doubleValue() != 0;
+        return true;
+    }
+}
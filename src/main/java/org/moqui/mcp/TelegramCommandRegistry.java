@@ -0,0 +1,152 @@
+package org.moqui.mcp;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Telegram 斜杠命令与回调数据的路由表
+ * 命令前缀（/project、/product、/order）编成字典树，一次扫描即确定命令，子命令及其别名查表归一为固定的 action，
+ * 不是命令的文本在第一个不匹配的字符处就返回；key=value 参数使用预编译的正则解析。
+ * 只发送固定内容、不读写会话状态的回调列为静态回调，处理时不必解析 Party 和会话
+ */
+public final class TelegramCommandRegistry {
+    public static final String PROJECT = "project";
+    public static final String PRODUCT = "product";
+    public static final String ORDER = "order";
+    /** 未知子命令统一路由到 help，由各命令返回用法说明 */
+    public static final String HELP = "help";
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern KEY_VALUE = Pattern.compile("([A-Za-z0-9_]+)=(\"([^\"]*)\"|'([^']*)'|[^\\s]+)");
+
+    private static final Node ROOT = new Node();
+    private static final Map<String, Map<String, String>> ACTIONS = new HashMap<>();
+    private static final Map<String, String> DEFAULT_ACTIONS = new HashMap<>();
+    private static final Set<String> STATIC_CALLBACKS;
+
+    static {
+        register(PROJECT, "status",
+                "create", "create",
+                "list", "list", "overview", "list", "projectlist", "list", "列表", "list",
+                "status", "status", "sync", "status", "状态", "status", "tongbu", "status", "同步", "status",
+                "tasks", "tasks", "task", "tasks", "renwu", "tasks", "任务", "tasks");
+        register(PRODUCT, "list",
+                "add", "add",
+                "update", "update",
+                "list", "list", "search", "list");
+        register(ORDER, "status",
+                "create", "create",
+                "status", "status", "track", "status",
+                "list", "list");
+
+        // smart_classify、main_menu、back_to_main 会修改 smartMode，需要会话
+        STATIC_CALLBACKS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+                "category_construction", "category_supply_demand", "category_hivemind", "category_ecommerce", "category_erp",
+                "ec_search", "ec_inventory", "ec_orders", "ec_customers", "ec_analytics", "ec_recommend",
+                "project_create", "project_list", "project_sync", "project_tasks", "help_info",
+                "sd_discover", "sd_publish", "sd_recommend", "sd_track", "sd_voice", "sd_image",
+                "construction_demand_decoration", "construction_demand_repair", "construction_demand_construction",
+                "construction_demand_renovation", "construction_supply_engineer", "construction_supply_team",
+                "construction_matches", "construction_reviews")));
+    }
+
+    /** 字典树节点，command 非空表示到此为一个完整的命令前缀 */
+    private static final class Node {
+        final Map<Character, Node> children = new HashMap<>(4);
+        String command;
+    }
+
+    /** 一次路由的结果：命令、归一后的子命令以及子命令之后的参数文本 */
+    public static final class Route {
+        public final String command;
+        public final String action;
+        public final String payload;
+
+        Route(String command, String action, String payload) {
+            this.command = command;
+            this.action = action;
+            this.payload = payload;
+        }
+
+        /** 参数文本的第一个词（项目ID、订单号等），没有时返回 null */
+        public String firstToken() {
+            if (payload.isEmpty()) return null;
+            return WHITESPACE.split(payload, 2)[0];
+        }
+
+        public Map<String, String> args() { return parseArgs(payload); }
+
+        @Override
+        public String toString() { return command + ":" + action; }
+    }
+
+    private TelegramCommandRegistry() { }
+
+    private static void register(String command, String defaultAction, String... aliases) {
+        Node node = ROOT;
+        for (char c : ("/" + command).toCharArray()) node = node.children.computeIfAbsent(c, k -> new Node());
+        node.command = command;
+        Map<String, String> actions = new HashMap<>();
+        for (int i = 0; i + 1 < aliases.length; i += 2) actions.put(aliases[i], aliases[i + 1]);
+        ACTIONS.put(command, actions);
+        DEFAULT_ACTIONS.put(command, defaultAction);
+    }
+
+    /**
+     * 路由一条文本消息；不是已注册的命令时返回 null。命令前缀不区分大小写，与原先的 startsWith 判断一致
+     */
+    public static Route route(String text) {
+        if (text == null) return null;
+        int start = 0;
+        int length = text.length();
+        while (start < length && Character.isWhitespace(text.charAt(start))) start++;
+        if (start >= length || text.charAt(start) != '/') return null;
+
+        Node node = ROOT;
+        int i = start;
+        while (node.command == null) {
+            if (i >= length) return null;
+            node = node.children.get(Character.toLowerCase(text.charAt(i++)));
+            if (node == null) return null;
+        }
+
+        String rest = text.substring(i).trim();
+        if (rest.isEmpty()) return new Route(node.command, DEFAULT_ACTIONS.get(node.command), "");
+        String[] parts = WHITESPACE.split(rest, 2);
+        String action = ACTIONS.get(node.command).getOrDefault(parts[0].toLowerCase(), HELP);
+        return new Route(node.command, action, parts.length > 1 ? parts[1] : "");
+    }
+
+    /**
+     * 解析 key=value 参数，值可用单引号或双引号包含空格；键统一为小写，同名键以后出现的为准
+     */
+    public static Map<String, String> parseArgs(String payload) {
+        Map<String, String> args = new LinkedHashMap<>();
+        if (payload == null || payload.isEmpty()) return args;
+        Matcher matcher = KEY_VALUE.matcher(payload);
+        while (matcher.find()) {
+            String value = matcher.group(3) != null ? matcher.group(3) : matcher.group(4);
+            if (value == null) {
+                value = matcher.group(2);
+                // 未闭合的引号：与原先的解析一致，去掉首尾各一个字符
+                if (value.length() >= 2 && (value.charAt(0) == '"' || value.charAt(0) == '\'')) {
+                    value = value.substring(1, value.length() - 1);
+                }
+            }
+            args.put(matcher.group(1).toLowerCase(), value);
+        }
+        return args;
+    }
+
+    /** 只发送固定内容或查询公共数据的回调，处理前无需解析 Party 和会话 */
+    public static boolean isStaticCallback(String data) {
+        return data != null && STATIC_CALLBACKS.contains(data);
+    }
+}
@@ -0,0 +1,240 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.ExecutionContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 图片识别上传前的预处理
+ * Telegram 为每张照片提供多个尺寸，先按服务商的目标分辨率挑选够用的最小尺寸；
+ * 挑出的图片仍超过目标边长或字节预算时，用 ImageIO 缩小并重新压缩为 JPEG。
+ * 目标按服务商配置：mcp.image.target.<provider>.max.side / mcp.image.target.<provider>.max.bytes
+ */
+public class TelegramImagePreprocessor {
+    private static final Logger logger = LoggerFactory.getLogger(TelegramImagePreprocessor.class);
+
+    public static final String TOOL_NAME = "TelegramImagePreprocessor";
+    private static final float[] QUALITIES = { 0.85f, 0.75f, 0.6f, 0.45f };
+
+    private final ExecutionContextFactory ecf;
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+
+    private final AtomicLong preparedCount = new AtomicLong();
+    private final AtomicLong reencodedCount = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    /** 服务商的目标分辨率（最长边）与上传字节预算 */
+    public static final class Target {
+        final int maxSide;
+        final long maxBytes;
+
+        Target(int maxSide, long maxBytes) {
+            this.maxSide = maxSide;
+            this.maxBytes = maxBytes;
+        }
+
+        public int getMaxSide() { return maxSide; }
+        public long getMaxBytes() { return maxBytes; }
+    }
+
+    TelegramImagePreprocessor(ExecutionContextFactory ecf) {
+        this.ecf = ecf;
+        // 不使用磁盘缓存，解码临时数据留在内存
+        ImageIO.setUseCache(false);
+    }
+
+    public static TelegramImagePreprocessor getInstance(ExecutionContext ec) {
+        return ec.getTool(TOOL_NAME, TelegramImagePreprocessor.class);
+    }
+
+    public long getPreparedCount() { return preparedCount.get(); }
+    public long getReencodedCount() { return reencodedCount.get(); }
+    public long getUploadedBytes() { return uploadedBytes.get(); }
+    public long getSavedBytes() { return savedBytes.get(); }
+
+    public Target target(String provider) {
+        return targets.computeIfAbsent(provider, p -> {
+            // 智普多模态模型需要看清文字细节；百度、Google 的标签识别 800px 已足够
+            int defaultSide = "zhipu".equals(p) ? 1280 : 800;
+            long defaultBytes = "zhipu".equals(p) ? 1024L * 1024 : 512L * 1024;
+            return new Target(McpConfig.getInt(ecf, "mcp.image.target." + p + ".max.side", defaultSide),
+                    McpConfig.getLong(ecf, "mcp.image.target." + p + ".max.bytes", defaultBytes));
+        });
+    }
+
+    /**
+     * 从 Telegram photo 尺寸列表中挑选最长边不小于目标的最小尺寸；都不够大时取最大的一个
+     */
+    public static Map<?, ?> selectPhotoSize(List<?> photoSizes, int maxSide) {
+        Map<?, ?> best = null;
+        Map<?, ?> largest = null;
+        for (Object item : photoSizes != null ? photoSizes : List.of()) {
+            if (!(item instanceof Map)) continue;
+            Map<?, ?> size = (Map<?, ?>) item;
+            int side = longestSide(size);
+            if (largest == null || side > longestSide(largest)) largest = size;
+            if (side >= maxSide && (best == null || side < longestSide(best))) best = size;
+        }
+        return best != null ? best : largest;
+    }
+
+    private static int longestSide(Map<?, ?> size) {
+        Object width = size.get("width");
+        Object height = size.get("height");
+        return Math.max(width instanceof Number ? ((Number) width).intValue() : 0,
+                height instanceof Number ? ((Number) height).intValue() : 0);
+    }
+
+    /**
+     * 保证图片不超过目标边长与字节预算，接管 source：需要重新编码时关闭 source 并返回新的临时 JPEG，否则原样返回。
+     * originalBytes 为用户发送的原图（最大尺寸）大小，用于统计节省的上传字节
+     */
+    public McpMediaFile prepare(McpMediaFile source, Target target, long originalBytes) {
+        if (source == null) return null;
+        McpMediaFile result = source;
+        try {
+            int[] dimensions = readDimensions(source.getPath());
+            boolean oversized = dimensions != null && Math.max(dimensions[0], dimensions[1]) > target.maxSide;
+            if (dimensions != null && (oversized || source.getSize() > target.maxBytes)) {
+                Path encoded = reencode(source.getPath(), dimensions, target);
+                if (encoded != null) {
+                    result = McpMediaFile.temporary(encoded);
+                    source.close();
+                    reencodedCount.incrementAndGet();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // 无法解码的图片按原样上传，由服务商自行处理
+            logger.warn("Image preprocessing failed, uploading original: {}", e.getMessage());
+        }
+
+        preparedCount.incrementAndGet();
+        uploadedBytes.addAndGet(result.getSize());
+        long original = Math.max(originalBytes, source.getSize());
+        if (original > result.getSize()) savedBytes.addAndGet(original - result.getSize());
+        if (logger.isDebugEnabled()) logger.debug("Image prepared for upload: {} -> {} bytes", original, result.getSize());
+        return result;
+    }
+
+    /** 只读图片头获取宽高，不解码像素；不是可识别的图片时返回 null */
+    private static int[] readDimensions(Path path) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(path.toFile())) {
+            ImageReader reader = firstReader(input);
+            if (reader == null) return null;
+            try {
+                reader.setInput(input, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageReader firstReader(ImageInputStream input) {
+        if (input == null) return null;
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        return readers.hasNext() ? readers.next() : null;
+    }
+
+    /**
+     * 缩小到目标边长内并逐级降低 JPEG 质量直到满足字节预算；最低质量仍超预算时再缩小边长
+     */
+    private Path reencode(Path source, int[] dimensions, Target target) throws IOException {
+        int longest = Math.max(dimensions[0], dimensions[1]);
+        int side = Math.min(longest, target.maxSide);
+        BufferedImage decoded = decode(source, longest / Math.max(1, side));
+        if (decoded == null) return null;
+
+        Path output = Files.createTempFile("mcp-image-", ".jpg");
+        try {
+            for (int attempt = 0; attempt < 4; attempt++) {
+                BufferedImage scaled = scale(decoded, side);
+                for (float quality : QUALITIES) {
+                    writeJpeg(scaled, quality, output);
+                    if (Files.size(output) <= target.maxBytes) return output;
+                }
+                side = Math.max(64, side * 3 / 4);
+            }
+            // 仍超预算时上传最后一次的结果，已是能做到的最小
+            return output;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(output);
+            throw e;
+        }
+    }
+
+    /** 按整数倍隔行隔列采样解码，大图不必完整展开到内存 */
+    private static BufferedImage decode(Path source, int subsampling) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(source.toFile())) {
+            ImageReader reader = firstReader(input);
+            if (reader == null) return null;
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (subsampling > 1) param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /** 等比缩放到最长边为 side，同时去掉透明通道（JPEG 不支持） */
+    private static BufferedImage scale(BufferedImage image, int side) {
+        int longest = Math.max(image.getWidth(), image.getHeight());
+        double ratio = Math.min(1.0, (double) side / longest);
+        int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, java.awt.Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private static void writeJpeg(BufferedImage image, float quality, Path output) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        Files.deleteIfExists(output);
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(output.toFile())) {
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    void destroy() {
+        logger.info("TelegramImagePreprocessor stopped: prepared={}, reencoded={}, uploaded={} bytes, saved={} bytes",
+                preparedCount.get(), reencodedCount.get(), uploadedBytes.get(), savedBytes.get());
+    }
+}
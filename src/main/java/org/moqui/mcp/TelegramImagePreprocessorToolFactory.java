@@ -0,0 +1,33 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.context.ToolFactory;
+
+/**
+ * 在 MoquiConf tools 中注册，随运行时加载 TelegramImagePreprocessor
+ */
+public class TelegramImagePreprocessorToolFactory implements ToolFactory<TelegramImagePreprocessor> {
+    private TelegramImagePreprocessor preprocessor = null;
+
+    public TelegramImagePreprocessorToolFactory() { }
+
+    @Override
+    public String getName() { return TelegramImagePreprocessor.TOOL_NAME; }
+
+    @Override
+    public void init(ExecutionContextFactory ecf) {
+        preprocessor = new TelegramImagePreprocessor(ecf);
+    }
+
+    @Override
+    public TelegramImagePreprocessor getInstance(Object... parameters) {
+        if (preprocessor == null) throw new IllegalStateException("TelegramImagePreprocessorToolFactory not initialized");
+        return preprocessor;
+    }
+
+    @Override
+    public void destroy() {
+        if (preprocessor != null) preprocessor.destroy();
+        preprocessor = null;
+    }
+}
@@ -0,0 +1,344 @@
+package org.moqui.mcp;
+
+import groovy.json.JsonSlurper;
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.ExecutionContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Telegram 媒体缓存，以 file_unique_id 为键
+ * getFile 的解析结果在文件链接有效期内复用；文件内容只从 Telegram 下载一次，保存在本地磁盘，
+ * 之后语音识别、图片识别等各个服务商都从本地读取（内存映射或流式读取）。磁盘占用按最近最少使用淘汰
+ */
+public class TelegramMediaCache {
+    private static final Logger logger = LoggerFactory.getLogger(TelegramMediaCache.class);
+
+    public static final String TOOL_NAME = "TelegramMediaCache";
+    private static final Pattern SAFE_KEY = Pattern.compile("[A-Za-z0-9_-]{1,128}");
+    private static final String SUFFIX = ".media";
+
+    private final ExecutionContextFactory ecf;
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final long resolveTtlMillis;
+    private final HttpClient httpClient;
+
+    private final Map<String, Resolved> resolved = new ConcurrentHashMap<>();
+    private final Map<String, String> keysByUrl = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<String>> resolving = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Path>> downloads = new ConcurrentHashMap<>();
+    /** 本地文件 → 字节数，按访问顺序排列，最久未用的在前 */
+    private final LinkedHashMap<String, Long> lru = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong downloadCount = new AtomicLong();
+    private final AtomicLong resolveCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    /** getFile 解析结果 */
+    private static final class Resolved {
+        final String fileId;
+        final String url;
+        final long resolvedAt;
+
+        Resolved(String fileId, String url, long resolvedAt) {
+            this.fileId = fileId;
+            this.url = url;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+
+    TelegramMediaCache(ExecutionContextFactory ecf) {
+        this.ecf = ecf;
+        this.directory = Paths.get(McpConfig.get(ecf, "mcp.telegram.media.dir", ecf.getRuntimePath() + "/mcp/media-cache"));
+        this.maxBytes = McpConfig.getLong(ecf, "mcp.telegram.media.cache.bytes", 512L * 1024 * 1024);
+        // Bot API getFile 最大支持 20MB
+        this.maxFileBytes = McpConfig.getLong(ecf, "mcp.telegram.media.max.file.bytes", 20L * 1024 * 1024);
+        // Telegram 保证文件链接至少一小时有效
+        this.resolveTtlMillis = McpConfig.getLong(ecf, "mcp.telegram.media.resolve.ttl.seconds", 3000L) * 1000L;
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(20))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        try {
+            Files.createDirectories(directory);
+            loadExisting();
+        } catch (IOException e) {
+            logger.warn("Cannot open Telegram media cache at {}: {}", directory, e.getMessage());
+        }
+    }
+
+    public static TelegramMediaCache getInstance(ExecutionContext ec) {
+        return ec.getTool(TOOL_NAME, TelegramMediaCache.class);
+    }
+
+    public long getHitCount() { return hitCount.get(); }
+    public long getDownloadCount() { return downloadCount.get(); }
+    public long getResolveCount() { return resolveCount.get(); }
+    public long getEvictedCount() { return evictedCount.get(); }
+    public synchronized long getTotalBytes() { return totalBytes; }
+
+    /**
+     * 文件下载链接；同一 file_unique_id 在有效期内只调用一次 getFile。fileUniqueId 为空时以 fileId 为键
+     */
+    public String fileUrl(String fileId, String fileUniqueId) {
+        if (fileId == null || fileId.isEmpty()) return null;
+        return resolve(keyOf(fileId, fileUniqueId), fileId);
+    }
+
+    private String resolve(String key, String fileId) {
+        Resolved cached = resolved.get(key);
+        if (cached != null && System.currentTimeMillis() - cached.resolvedAt < resolveTtlMillis) return cached.url;
+
+        // 同一文件的并发解析共用一次 getFile
+        CompletableFuture<String> resolution = new CompletableFuture<>();
+        CompletableFuture<String> existing = resolving.putIfAbsent(key, resolution);
+        if (existing != null) return existing.join();
+        try {
+            String url = callGetFile(key, fileId, cached);
+            resolution.complete(url);
+            return url;
+        } finally {
+            resolving.remove(key, resolution);
+            if (!resolution.isDone()) resolution.complete(null);
+        }
+    }
+
+    private String callGetFile(String key, String fileId, Resolved cached) {
+        String botToken = TelegramOutboundSender.botToken(ecf);
+        if (botToken == null || botToken.isEmpty()) {
+            logger.warn("Telegram bot token not configured");
+            return null;
+        }
+        try {
+            String apiBase = TelegramOutboundSender.apiBase(ecf);
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(apiBase + "/bot" + botToken + "/getFile?file_id=" + URLEncoder.encode(fileId, StandardCharsets.UTF_8)))
+                    .GET()
+                    .timeout(Duration.ofSeconds(30))
+                    .build();
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            resolveCount.incrementAndGet();
+            if (response.statusCode() != 200) {
+                logger.warn("Failed to get file info: HTTP {}", response.statusCode());
+                return null;
+            }
+            Object parsed = new JsonSlurper().parseText(response.body());
+            Object result = parsed instanceof Map ? ((Map<?, ?>) parsed).get("result") : null;
+            Object filePath = result instanceof Map ? ((Map<?, ?>) result).get("file_path") : null;
+            if (filePath == null) {
+                logger.warn("Could not extract file path from response: {}", response.body());
+                return null;
+            }
+            String url = apiBase + "/file/bot" + botToken + "/" + filePath;
+            if (cached != null) keysByUrl.remove(cached.url);
+            if (resolved.size() >= 10000) pruneResolved();
+            resolved.put(key, new Resolved(fileId, url, System.currentTimeMillis()));
+            keysByUrl.put(url, key);
+            return url;
+        } catch (Exception e) {
+            logger.error("Error resolving Telegram file {}", fileId, e);
+            return null;
+        }
+    }
+
+    /** 丢弃已过期的解析结果 */
+    private void pruneResolved() {
+        long cutoff = System.currentTimeMillis() - resolveTtlMillis;
+        for (Iterator<Map.Entry<String, Resolved>> iterator = resolved.entrySet().iterator(); iterator.hasNext(); ) {
+            Resolved entry = iterator.next().getValue();
+            if (entry.resolvedAt < cutoff) {
+                keysByUrl.remove(entry.url);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 本地缓存文件；未缓存时下载一次，并发请求同一文件时共用同一次下载
+     */
+    public Path fetch(String fileId, String fileUniqueId) {
+        if (fileId == null || fileId.isEmpty()) return null;
+        return fetchKey(keyOf(fileId, fileUniqueId), fileId);
+    }
+
+    /**
+     * 按 fileUrl 返回的链接取本地文件；不是本缓存解析出的链接时返回 null，由调用方自行下载
+     */
+    public Path pathForUrl(String url) {
+        String key = url != null ? keysByUrl.get(url) : null;
+        if (key == null) return null;
+        Resolved entry = resolved.get(key);
+        return entry != null ? fetchKey(key, entry.fileId) : null;
+    }
+
+    /** 只读内存映射，文件被淘汰删除后已映射的内容仍可读 */
+    public static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private Path fetchKey(String key, String fileId) {
+        Path path = directory.resolve(key + SUFFIX);
+        if (touch(key) && Files.exists(path)) {
+            hitCount.incrementAndGet();
+            return path;
+        }
+        CompletableFuture<Path> download = new CompletableFuture<>();
+        CompletableFuture<Path> existing = downloads.putIfAbsent(key, download);
+        if (existing != null) return existing.join();
+        try {
+            Path result = download(key, fileId, path);
+            download.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            download.complete(null);
+            throw e;
+        } finally {
+            downloads.remove(key, download);
+        }
+    }
+
+    private Path download(String key, String fileId, Path path) {
+        String url = resolve(key, fileId);
+        if (url == null) return null;
+        Path temp = directory.resolve(key + ".part-" + Thread.currentThread().getId());
+        try {
+            HttpRequest request = HttpRequest.newBuilder().uri(URI.create(url)).GET().timeout(Duration.ofSeconds(60)).build();
+            HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            try (InputStream in = response.body()) {
+                if (response.statusCode() != 200) {
+                    logger.warn("Failed to download Telegram file {}: HTTP {}", fileId, response.statusCode());
+                    return null;
+                }
+                long size = 0;
+                byte[] buffer = new byte[64 * 1024];
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        size += read;
+                        if (size > maxFileBytes) {
+                            logger.warn("Telegram file {} exceeds {} bytes, not cached", fileId, maxFileBytes);
+                            return null;
+                        }
+                        out.write(buffer, 0, read);
+                    }
+                }
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                downloadCount.incrementAndGet();
+                record(key, size);
+                return path;
+            }
+        } catch (Exception e) {
+            logger.error("Error downloading Telegram file {}", fileId, e);
+            return null;
+        } finally {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) { }
+        }
+    }
+
+    private synchronized boolean touch(String key) {
+        return lru.get(key) != null;
+    }
+
+    private synchronized void record(String key, long size) {
+        Long previous = lru.put(key, size);
+        totalBytes += size - (previous != null ? previous : 0L);
+        evict(key);
+    }
+
+    /** 超出容量时从最久未用的文件开始删除，刚写入的文件保留 */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> iterator = lru.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            if (eldest.getKey().equals(keep)) continue;
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.getKey() + SUFFIX));
+            } catch (IOException e) {
+                logger.warn("Cannot delete cached Telegram media {}: {}", eldest.getKey(), e.getMessage());
+                continue;
+            }
+            totalBytes -= eldest.getValue();
+            iterator.remove();
+            evictedCount.incrementAndGet();
+        }
+    }
+
+    /** 启动时按最后修改时间恢复 LRU 顺序，清理残留的临时文件 */
+    private void loadExisting() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SUFFIX)) files.add(file);
+                else if (name.contains(".part-")) Files.deleteIfExists(file);
+            }
+        }
+        files.sort((a, b) -> {
+            try {
+                return Files.getLastModifiedTime(a).compareTo(Files.getLastModifiedTime(b));
+            } catch (IOException e) {
+                return 0;
+            }
+        });
+        synchronized (this) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long size = Files.size(file);
+                lru.put(name.substring(0, name.length() - SUFFIX.length()), size);
+                totalBytes += size;
+            }
+            evict(null);
+        }
+    }
+
+    /** file_unique_id 只含 URL 安全字符，直接作为文件名；没有时用 fileId 的摘要 */
+    static String keyOf(String fileId, String fileUniqueId) {
+        if (fileUniqueId != null && SAFE_KEY.matcher(fileUniqueId).matches()) return fileUniqueId;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(fileId.getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder("id-");
+            for (int i = 0; i < 16; i++) key.append(String.format("%02x", digest[i]));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.context.ToolFactory;
+
+/**
+ * 在 MoquiConf tools 中注册，随运行时加载 TelegramMediaCache 本地缓存目录
+ */
+public class TelegramMediaCacheToolFactory implements ToolFactory<TelegramMediaCache> {
+    private TelegramMediaCache cache = null;
+
+    public TelegramMediaCacheToolFactory() { }
+
+    @Override
+    public String getName() { return TelegramMediaCache.TOOL_NAME; }
+
+    @Override
+    public void init(ExecutionContextFactory ecf) {
+        cache = new TelegramMediaCache(ecf);
+    }
+
+    @Override
+    public TelegramMediaCache getInstance(Object... parameters) {
+        if (cache == null) throw new IllegalStateException("TelegramMediaCacheToolFactory not initialized");
+        return cache;
+    }
+
+    @Override
+    public void destroy() {
+        cache = null;
+    }
+}
@@ -0,0 +1,61 @@
+package org.moqui.mcp;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Telegram 内联键盘菜单；内容固定，类加载时构建一次，各次回复共享同一个不可变实例
+ */
+final class TelegramMenus {
+    static final Map<String, Object> MAIN = keyboard(
+            row(button("🏗️ 建筑工程", "category_construction"), button("🔧 蜂巢项目管理", "category_hivemind")),
+            row(button("🛒 流行电商", "category_ecommerce"), button("💼 大理石ERP", "category_erp")),
+            row(button("🤖 智能识别模式", "smart_classify"), button("ℹ️ 帮助说明", "help_info")));
+
+    /** 建筑工程子菜单 */
+    static final Map<String, Object> CONSTRUCTION = keyboard(
+            row(button("🏠 我要装修", "construction_demand_decoration"), button("🔧 我要维修", "construction_demand_repair")),
+            row(button("🏗️ 我要新建", "construction_demand_construction"), button("🔄 我要改造", "construction_demand_renovation")),
+            row(button("👷‍♂️ 我是工程师", "construction_supply_engineer"), button("🏢 我是施工队", "construction_supply_team")),
+            row(button("📊 查看匹配", "construction_matches"), button("🏅 服务评价", "construction_reviews")),
+            row(button("🔙 返回主菜单", "back_to_main")));
+
+    static final Map<String, Object> SUPPLY_DEMAND = keyboard(
+            row(button("🔍 发现匹配", "sd_discover"), button("📢 发布信息", "sd_publish")),
+            row(button("🎯 精准推荐", "sd_recommend"), button("📈 交易跟踪", "sd_track")),
+            row(button("🎤 语音输入", "sd_voice"), button("📷 图像识别", "sd_image")),
+            row(button("⬅️ 返回主菜单", "main_menu")));
+
+    static final Map<String, Object> PROJECT = keyboard(
+            row(button("📋 创建项目", "project_create"), button("📊 项目概览", "project_list")),
+            row(button("🔄 同步状态", "project_sync"), button("🗂️ 任务清单", "project_tasks")),
+            row(button("⬅️ 返回主菜单", "main_menu")));
+
+    static final Map<String, Object> ECOMMERCE = keyboard(
+            row(button("🛍️ 商品搜索", "ec_search"), button("📦 库存管理", "ec_inventory")),
+            row(button("🛒 订单查询", "ec_orders"), button("👥 客户管理", "ec_customers")),
+            row(button("📊 销售统计", "ec_analytics"), button("🎯 智能推荐", "ec_recommend")),
+            row(button("⬅️ 返回主菜单", "main_menu")));
+
+    private TelegramMenus() { }
+
+    @SafeVarargs
+    private static Map<String, Object> keyboard(List<Map<String, Object>>... rows) {
+        return Collections.singletonMap("inline_keyboard", Collections.unmodifiableList(Arrays.asList(rows)));
+    }
+
+    @SafeVarargs
+    private static List<Map<String, Object>> row(Map<String, Object>... buttons) {
+        return Collections.unmodifiableList(Arrays.asList(buttons));
+    }
+
+    private static Map<String, Object> button(String text, String callbackData) {
+        Map<String, Object> button = new LinkedHashMap<>();
+        button.put("text", text);
+        button.put("callback_data", callbackData);
+        return Collections.unmodifiableMap(button);
+    }
+}
@@ -0,0 +1,338 @@
+package org.moqui.mcp;
+
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.WebFacade;
+import org.moqui.entity.EntityValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Telegram 消息处理流程（moqui.mcp.handle#TelegramMessage 服务实现）
+ * update 解析为 TelegramUpdate 后按类型分派：按钮回调、/start、语音与图片、斜杠命令、智能识别模式和普通供需对话。
+ * 会话只在短事务中解析一次；LLM、语音/图片识别和 Telegram 发送都在事务之外，回复经 TelegramOutboundSender 排队发送
+ */
+public class TelegramMessageHandler {
+    private static final Logger logger = LoggerFactory.getLogger(TelegramMessageHandler.class);
+
+    private final ExecutionContext ec;
+    private final TelegramOutboundSender sender;
+    private final Map<String, Object> out;
+    private MarketplaceMcpService marketplaceService = null;
+
+    private TelegramMessageHandler(ExecutionContext ec, Map<String, Object> out) {
+        this.ec = ec;
+        this.sender = TelegramOutboundSender.getInstance(ec);
+        this.out = out;
+    }
+
+    /**
+     * moqui.mcp.handle#TelegramMessage 服务实现；输入 update（或单独的 message、callback_query），
+     * 输出 success、aiResponse、chatId、intent、matches、error、response
+     */
+    public static Map<String, Object> handleTelegramMessage(ExecutionContext ec) {
+        Map<String, Object> out = new HashMap<>();
+        if (ec.getTransaction().isTransactionInPlace()) {
+            logger.warn("handle#TelegramMessage called inside a transaction; external calls will hold the database connection");
+        }
+        try {
+            TelegramUpdate update = parseUpdate(ec);
+            new TelegramMessageHandler(ec, out).handle(update);
+        } catch (Exception e) {
+            logger.error("Telegram message processing failed", e);
+            out.put("success", false);
+            out.put("error", "Telegram message processing failed: " + e.getMessage());
+            out.put("response", response(false));
+        }
+        return out;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static TelegramUpdate parseUpdate(ExecutionContext ec) {
+        Map<String, Object> parameters = ec.getContext();
+        Map<?, ?> update = parameters.get("update") instanceof Map ? (Map<?, ?>) parameters.get("update") : parameters;
+        Map<?, ?> message = parameters.get("message") instanceof Map ? (Map<?, ?>) parameters.get("message") : null;
+        Map<?, ?> callbackQuery = parameters.get("callback_query") instanceof Map ? (Map<?, ?>) parameters.get("callback_query") : null;
+
+        // 直接以 webhook 方式调用时参数可能未解析，回退到请求体
+        WebFacade web = ec.getWeb();
+        if (callbackQuery == null && !(update.get("callback_query") instanceof Map) && web != null) {
+            String body = web.getRequestBodyText();
+            if (body != null && !body.isEmpty()) {
+                try {
+                    Object raw = new JsonSlurper().parseText(body);
+                    if (raw instanceof Map) {
+                        if (update.isEmpty()) update = (Map<?, ?>) raw;
+                        Object rawCallback = ((Map<?, ?>) raw).get("callback_query");
+                        if (rawCallback instanceof Map) callbackQuery = (Map<?, ?>) rawCallback;
+                    }
+                } catch (Exception ignored) { }
+            }
+        }
+        if (logger.isDebugEnabled()) logger.debug("Telegram update: {}", update);
+        return TelegramUpdate.parse(update, message, callbackQuery);
+    }
+
+    private void handle(TelegramUpdate update) {
+        if (update.getCallbackQuery() != null) {
+            TelegramCallbackHandler.handle(ec, sender, update.getCallbackQuery());
+            out.put("success", true);
+            out.put("response", response(true));
+            return;
+        }
+
+        TelegramUpdate.Message message = update.getMessage();
+        if (message == null) {
+            logger.warn("Telegram update missing message field");
+            fail("Invalid Telegram message payload");
+            return;
+        }
+        String chatId = message.chatId;
+        if (chatId == null) {
+            logger.warn("Telegram message missing chat.id");
+            fail("Cannot parse chat ID");
+            return;
+        }
+
+        String incomingText = message.text;
+        String messageType = message.messageType;
+        String merchantId = message.fromId != null ? message.fromId : "telegram_" + chatId;
+        String sessionId = "telegram_" + chatId;
+
+        // 会话只解析一次，之后传给各处理方法；短事务，外部调用都在事务之外
+        EntityValue[] dialogSession = new EntityValue[1];
+        Map<?, ?>[] sessionContext = new Map<?, ?>[1];
+        ec.getTransaction().runUseOrBegin(30, "Error resolving Telegram session", () -> {
+            dialogSession[0] = new McpSessionBootstrap(ec).resolve(sessionId, merchantId, "TELEGRAM", null, JsonOutput.toJson(Collections.emptyMap()));
+            sessionContext[0] = McpSessionStateStore.getInstance(ec).get(ec, sessionId);
+            return null;
+        });
+        out.put("chatId", chatId);
+
+        if ("/start".equalsIgnoreCase(incomingText)) {
+            Map<String, Object> result;
+            try {
+                result = marketplace().processMarketplaceMessage(marketplaceParams(sessionId, "帮助", merchantId, null, null, dialogSession[0]));
+            } catch (Exception e) {
+                logger.error("Failed to process /start command", e);
+                result = new HashMap<>();
+                result.put("aiResponse", "👋 欢迎加入智能推荐平台！\n\n请选择或直接告诉我您的需求：");
+                result.put("intent", "welcome");
+            }
+            String aiResponse = String.valueOf(TelegramCommandHandlers.first(result.get("aiResponse"), "欢迎使用智能推荐！"));
+            TelegramCallbackHandler.send(sender, chatId, aiResponse, TelegramMenus.MAIN);
+            reply(true, aiResponse, TelegramCommandHandlers.first(result.get("intent"), "welcome"));
+            out.put("matches", matchesOf(result));
+            logger.info("Telegram welcome message sent to chat: {}", chatId);
+            return;
+        }
+
+        if (TelegramUpdate.TYPE_VOICE.equals(messageType) || TelegramUpdate.TYPE_AUDIO.equals(messageType)) {
+            mediaReply(chatId, messageType, message, dialogSession[0], "voice_message");
+            return;
+        }
+        if (TelegramUpdate.TYPE_PHOTO.equals(messageType)) {
+            mediaReply(chatId, messageType, message, dialogSession[0], "image_message");
+            return;
+        }
+
+        TelegramCommandRegistry.Route commandRoute = TelegramUpdate.TYPE_TEXT.equals(messageType) ? TelegramCommandRegistry.route(incomingText) : null;
+        if (commandRoute != null) {
+            TelegramCommandHandlers.Result commandResult = TelegramCommandHandlers.dispatch(ec, commandRoute, merchantId);
+            TelegramCallbackHandler.send(sender, chatId, commandResult.message, null);
+            reply(commandResult.success, commandResult.message, commandResult.intent);
+            return;
+        }
+
+        if (sessionContext[0] != null && Boolean.TRUE.equals(sessionContext[0].get("smartMode")) && TelegramUpdate.TYPE_TEXT.equals(messageType)) {
+            smartClassification(chatId, incomingText, sessionId, merchantId);
+            out.put("success", true);
+            out.put("intent", "smart_classify");
+            out.put("response", response(true));
+            return;
+        }
+
+        Map<String, Object> result;
+        try {
+            result = marketplace().processMarketplaceMessage(marketplaceParams(sessionId, incomingText, merchantId,
+                    messageType, message.attachmentInfo, dialogSession[0]));
+        } catch (Exception e) {
+            logger.error("Failed to process marketplace message", e);
+            result = new HashMap<>();
+            result.put("success", false);
+            result.put("error", "Error processing supply-demand information, please try again later.");
+        }
+
+        String aiResponse = String.valueOf(TelegramCommandHandlers.first(result.get("aiResponse"), result.get("error"),
+                "Sorry, the system cannot process your request at the moment, please try again later."));
+        TelegramCallbackHandler.send(sender, chatId, aiResponse, null);
+
+        boolean success = !Boolean.FALSE.equals(result.get("success"));
+        reply(success, aiResponse, result.get("intent"));
+        out.put("matches", matchesOf(result));
+        if (!success && TelegramCommandHandlers.truthy(result.get("error"))) out.put("error", result.get("error"));
+        logger.info("Telegram message processed successfully, chat: {}, response length: {}", chatId, aiResponse.length());
+    }
+
+    /** 语音、图片消息交给 MarketplaceMcpService 识别后回复；识别不可用时提示用户改用文字 */
+    private void mediaReply(String chatId, String messageType, TelegramUpdate.Message message, EntityValue dialogSession, String intent) {
+        boolean voice = !TelegramUpdate.TYPE_PHOTO.equals(messageType);
+        Map<String, Object> attachmentInfo = message.attachmentInfo;
+        boolean success = false;
+        String text;
+        try {
+            logger.info("Processing {} message with fileId: {}", messageType, attachmentInfo.get("fileId"));
+            // 复用聊天会话，不再为每条语音、图片创建一次性会话和Party
+            Map<String, Object> serviceResponse = marketplace().processMarketplaceMessage(marketplaceParams(
+                    dialogSession.getString("sessionId"), voice ? "[Voice Message]" : message.text,
+                    dialogSession.getString("merchantId"), voice ? TelegramUpdate.TYPE_VOICE : TelegramUpdate.TYPE_PHOTO,
+                    attachmentInfo, dialogSession));
+            if (TelegramCommandHandlers.truthy(serviceResponse.get("aiResponse"))) {
+                success = true;
+                text = serviceResponse.get("aiResponse").toString();
+            } else {
+                logger.warn("{} message processing returned empty response", messageType);
+                text = voice
+                        ? "🎙️ 收到您的语音消息（时长: " + attachmentInfo.get("duration") + "秒），但语音转文字服务暂时不可用。\n\n" +
+                          "请您用文字重新描述一下：\n" +
+                          "• 您要发布供应信息吗？\n" +
+                          "• 您要采购某种产品吗？\n" +
+                          "• 您想查看匹配建议吗？\n\n" +
+                          "💡 提示：直接说出您的需求，比如\"我要采购100吨钢材\""
+                        : "📷 收到您的图片，但图片识别服务暂时不可用。\n\n" +
+                          "请您用文字补充一些信息：\n" +
+                          "• 这是什么产品的图片？\n" +
+                          "• 您想要供应还是采购这个产品？\n" +
+                          "• 需要什么规格和数量？\n\n" +
+                          "💡 提示：结合图片内容，用文字详细描述您的需求";
+            }
+        } catch (Exception e) {
+            logger.error("Error processing " + messageType + " message", e);
+            text = voice ? "🎙️ 语音消息处理出错，请用文字描述您的需求。" : "📷 图片处理出错，请用文字描述您的需求。";
+        }
+
+        TelegramCallbackHandler.send(sender, chatId, text, null);
+        reply(success, text, intent);
+        logger.info("{} message processed for chat: {}", messageType, chatId);
+    }
+
+    /** 智能识别模式：分类用户意图后路由到对应业务模块，并附上该模块的菜单 */
+    private void smartClassification(String chatId, String messageText, String sessionId, String merchantId) {
+        Map<String, Object> classifyParams = new HashMap<>();
+        classifyParams.put("userMessage", messageText);
+        classifyParams.put("chatId", chatId);
+        Map<String, Object> classifyResult = ec.getService().sync().name("mcp.routing.classify#UserIntent").parameters(classifyParams).call();
+
+        String category = String.valueOf(TelegramCommandHandlers.first(classifyResult.get("businessCategory"), "SUPPLY_DEMAND_MATCHING"));
+        Object rawConfidence = classifyResult.get("confidence");
+        BigDecimal confidence = rawConfidence instanceof BigDecimal ? (BigDecimal) rawConfidence
+                : new BigDecimal(rawConfidence != null ? rawConfidence.toString() : "0");
+        confidence = confidence.max(BigDecimal.ZERO).min(BigDecimal.ONE);
+        BigDecimal percent = confidence.multiply(BigDecimal.valueOf(100)).setScale(0, RoundingMode.HALF_UP);
+
+        String categoryName;
+        String followupDefault;
+        String menuAction;
+        switch (category) {
+            case "HIVEMIND_PROJECT":
+                categoryName = "蜂巢项目管理";
+                followupDefault = "蜂巢项目管理将帮助您独立跟踪项目，请使用 `/project` 指令继续。";
+                menuAction = "PROJECT_MENU";
+                break;
+            case "ECOMMERCE":
+                categoryName = "流行电商";
+                followupDefault = "电商模块将协助处理商品、库存与订单。";
+                menuAction = "ECOMMERCE_MENU";
+                break;
+            case "ERP":
+                categoryName = "大理石 ERP";
+                followupDefault = "大理石 ERP 正在准备更多功能，稍后为您开放。";
+                menuAction = "ERP_MENU";
+                break;
+            default:
+                categoryName = "智能供需匹配";
+                category = "SUPPLY_DEMAND_MATCHING";
+                followupDefault = "我已记录您的供需需求，可使用菜单继续操作。";
+                menuAction = "SUPPLY_MENU";
+                break;
+        }
+
+        TelegramCallbackHandler.send(sender, chatId,
+                "🤖 智能识别结果：" + categoryName + " (置信度 " + percent.toPlainString() + "%)\n\n正在为您处理后续操作……", null);
+
+        Map<String, Object> routeResult = Collections.emptyMap();
+        try {
+            Map<String, Object> routeParams = new HashMap<>();
+            routeParams.put("businessCategory", category);
+            routeParams.put("specificFunction", classifyResult.get("specificFunction"));
+            routeParams.put("userMessage", messageText);
+            routeParams.put("chatId", chatId);
+            routeParams.put("sessionId", sessionId);
+            routeParams.put("merchantId", merchantId != null ? merchantId : chatId);
+            routeParams.put("extractedParameters", classifyResult.get("extractedParameters"));
+            Map<String, Object> called = ec.getService().sync().name("mcp.routing.route#ToBusinessModule").parameters(routeParams).call();
+            if (called != null) routeResult = called;
+        } catch (Exception e) {
+            logger.error("业务路由服务调用失败: " + e.getMessage(), e);
+        }
+
+        String followup = String.valueOf(TelegramCommandHandlers.first(routeResult.get("responseMessage"), followupDefault));
+        String nextAction = String.valueOf(TelegramCommandHandlers.first(routeResult.get("nextAction"), menuAction));
+        Map<String, Object> keyboard;
+        switch (nextAction) {
+            case "SUPPLY_MENU": keyboard = TelegramMenus.SUPPLY_DEMAND; break;
+            case "PROJECT_MENU": keyboard = TelegramMenus.PROJECT; break;
+            case "ECOMMERCE_MENU": keyboard = TelegramMenus.ECOMMERCE; break;
+            case "MAIN_MENU": keyboard = TelegramMenus.MAIN; break;
+            default: keyboard = null; break;
+        }
+        TelegramCallbackHandler.send(sender, chatId, followup, keyboard);
+    }
+
+    /** 同一次处理只创建一个 MarketplaceMcpService（其 HttpClient 为全局共享） */
+    private MarketplaceMcpService marketplace() {
+        if (marketplaceService == null) marketplaceService = new MarketplaceMcpService(ec);
+        return marketplaceService;
+    }
+
+    private static Map<String, Object> marketplaceParams(String sessionId, String message, String merchantId, String messageType,
+                                                         Map<String, Object> attachmentInfo, EntityValue session) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("sessionId", sessionId);
+        params.put("message", message);
+        params.put("merchantId", merchantId);
+        if (messageType != null) params.put("messageType", messageType);
+        if (attachmentInfo != null) params.put("attachmentInfo", attachmentInfo);
+        params.put("session", session);
+        return params;
+    }
+
+    private void reply(boolean success, String aiResponse, Object intent) {
+        out.put("success", success);
+        out.put("aiResponse", aiResponse);
+        out.put("intent", intent);
+        out.put("response", response(true));
+    }
+
+    private void fail(String error) {
+        out.put("success", false);
+        out.put("error", error);
+        out.put("response", response(false));
+    }
+
+    private static Object matchesOf(Map<String, Object> result) {
+        Object matches = result.get("matches");
+        return TelegramCommandHandlers.truthy(matches) ? matches : Collections.emptyList();
+    }
+
+    private static Map<String, Object> response(boolean ok) {
+        return Collections.singletonMap("ok", ok);
+    }
+}
@@ -0,0 +1,459 @@
+package org.moqui.mcp;
+
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.ExecutionContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Telegram 出站消息发送器
+ * 所有 Bot API 调用先入队，按全局令牌桶（默认 30 条/秒）和每个聊天的令牌桶（私聊 1 条/秒、群组 20 条/分钟）放行；
+ * 同一聊天按提交顺序逐条发送，不同聊天之间按优先级（回调应答 &gt; 对话回复 &gt; 批量通知）选取；
+ * 回调应答和不属于任何聊天的调用无需保序，可并发发送，失败时只推迟该请求本身。
+ * 分发线程每轮取出一批可发送的请求交给少量发送线程；遇到 429 按 retry_after 暂停该聊天后重发，突发的通知以允许的最大速率送达而不是被丢弃
+ */
+public class TelegramOutboundSender {
+    private static final Logger logger = LoggerFactory.getLogger(TelegramOutboundSender.class);
+
+    public static final String TOOL_NAME = "TelegramOutboundSender";
+    /** 回调应答及无聊天的调用：不受单聊天限速，也不逐条串行 */
+    private static final String CALLBACK_LANE = "";
+
+    public enum Priority { CALLBACK, REPLY, BULK }
+
+    private final ExecutionContextFactory ecf;
+    private final HttpClient httpClient;
+    private final ExecutorService senders;
+    private final Thread dispatcher;
+    private final int capacity;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final double chatPerSecond;
+    private final double groupPerMinute;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<String, Lane> lanes = new HashMap<>();
+    private final TokenBucket global;
+    private int pendingCount;
+    private long nextSeq;
+    private volatile boolean running = true;
+    private volatile long drainDeadline = Long.MAX_VALUE;
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    /** 令牌桶：按速率补充，容量即允许的突发量 */
+    static final class TokenBucket {
+        final double perMillis;
+        final double burst;
+        double tokens;
+        long lastRefill;
+
+        TokenBucket(double perSecond, double burst) {
+            this.perMillis = perSecond / 1000.0;
+            this.burst = Math.max(1.0, burst);
+            this.tokens = this.burst;
+            this.lastRefill = System.currentTimeMillis();
+        }
+
+        /** 距离拿到下一个令牌还需等待的毫秒数 */
+        long waitMillis(long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(burst, tokens + (now - lastRefill) * perMillis);
+                lastRefill = now;
+            }
+            return tokens >= 1.0 ? 0L : (long) Math.ceil((1.0 - tokens) / perMillis);
+        }
+
+        void take() { tokens -= 1.0; }
+
+        boolean full() { return tokens >= burst; }
+    }
+
+    /** 单个聊天的发送通道；ordered 为 false 的通道不保序，请求各自并发、各自退避 */
+    private static final class Lane {
+        final ArrayDeque<Request> pending = new ArrayDeque<>();
+        final TokenBucket bucket;
+        final boolean ordered;
+        long blockedUntil;
+        boolean inFlight;
+
+        Lane(TokenBucket bucket, boolean ordered) {
+            this.bucket = bucket;
+            this.ordered = ordered;
+        }
+
+        long waitMillis(long now) {
+            long bucketWait = bucket != null ? bucket.waitMillis(now) : 0L;
+            return Math.max(bucketWait, blockedUntil - now);
+        }
+    }
+
+    /** 一次 Bot API 调用 */
+    private static final class Request implements Comparable<Request> {
+        final String laneKey;
+        final String method;
+        final Map<String, Object> payload;
+        final Priority priority;
+        final long seq;
+        final CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        /** editMessageText 失败时改为发送新消息 */
+        boolean fallbackToSend;
+        int attempts;
+        /** 不保序通道中该请求的退避截止时间 */
+        long notBeforeMillis;
+
+        Request(String laneKey, String method, Map<String, Object> payload, Priority priority, long seq) {
+            this.laneKey = laneKey;
+            this.method = method;
+            this.payload = payload;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            int compare = priority.compareTo(other.priority);
+            return compare != 0 ? compare : Long.compare(seq, other.seq);
+        }
+    }
+
+    TelegramOutboundSender(ExecutionContextFactory ecf) {
+        this.ecf = ecf;
+        this.capacity = McpConfig.getInt(ecf, "mcp.telegram.outbound.capacity", 50000);
+        this.batchSize = McpConfig.getInt(ecf, "mcp.telegram.outbound.batch.size", 10);
+        this.maxAttempts = McpConfig.getInt(ecf, "mcp.telegram.outbound.max.attempts", 3);
+        double globalPerSecond = McpConfig.getDouble(ecf, "mcp.telegram.rate.global.per.second", 30.0);
+        this.chatPerSecond = McpConfig.getDouble(ecf, "mcp.telegram.rate.chat.per.second", 1.0);
+        this.groupPerMinute = McpConfig.getDouble(ecf, "mcp.telegram.rate.group.per.minute", 20.0);
+        this.global = new TokenBucket(globalPerSecond, globalPerSecond);
+        this.httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(20)).build();
+
+        int threads = McpConfig.getInt(ecf, "mcp.telegram.outbound.threads", 4);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "TelegramOutboundSender-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.dispatcher = new Thread(this::runDispatcher, "TelegramOutboundDispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    public static TelegramOutboundSender getInstance(ExecutionContext ec) {
+        return ec.getTool(TOOL_NAME, TelegramOutboundSender.class);
+    }
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return pendingCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+    public long getSentCount() { return sentCount.get(); }
+    public long getFailedCount() { return failedCount.get(); }
+    public long getThrottledCount() { return throttledCount.get(); }
+
+    public CompletableFuture<Map<String, Object>> sendMessage(String chatId, String text, Map<String, Object> replyMarkup, Priority priority) {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("chat_id", chatId);
+        payload.put("text", text);
+        payload.put("parse_mode", "Markdown");
+        if (replyMarkup != null && !replyMarkup.isEmpty()) payload.put("reply_markup", replyMarkup);
+        return enqueue(chatId, "sendMessage", payload, priority, false);
+    }
+
+    /**
+     * 编辑消息；Telegram 返回 400（消息过旧、已删除等）时改为发送新消息，与原实现一致
+     */
+    public CompletableFuture<Map<String, Object>> editMessageText(String chatId, Object messageId, String text, Map<String, Object> replyMarkup) {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("chat_id", chatId);
+        payload.put("message_id", messageId);
+        payload.put("text", text);
+        payload.put("parse_mode", "Markdown");
+        if (replyMarkup != null && !replyMarkup.isEmpty()) payload.put("reply_markup", replyMarkup);
+        return enqueue(chatId, "editMessageText", payload, Priority.REPLY, true);
+    }
+
+    public CompletableFuture<Map<String, Object>> answerCallbackQuery(String callbackQueryId) {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("callback_query_id", callbackQueryId);
+        return enqueue(CALLBACK_LANE, "answerCallbackQuery", payload, Priority.CALLBACK, false);
+    }
+
+    /**
+     * 调用任意 Bot API 方法；chatId 为空的调用只受全局限速
+     */
+    public CompletableFuture<Map<String, Object>> call(String chatId, String method, Map<String, Object> payload, Priority priority) {
+        return enqueue(chatId != null ? chatId : CALLBACK_LANE, method, payload, priority, false);
+    }
+
+    private CompletableFuture<Map<String, Object>> enqueue(String laneKey, String method, Map<String, Object> payload,
+                                                           Priority priority, boolean fallbackToSend) {
+        lock.lock();
+        try {
+            if (!running || pendingCount >= capacity) {
+                failedCount.incrementAndGet();
+                logger.warn("Telegram outbound queue {}; dropping {} to chat {}", running ? "full" : "stopped", method, laneKey);
+                return CompletableFuture.completedFuture(result(false, 0, null, "Outbound queue unavailable"));
+            }
+            Request request = new Request(laneKey, method, payload, priority, nextSeq++);
+            request.fallbackToSend = fallbackToSend;
+            lanes.computeIfAbsent(laneKey, this::newLane).pending.addLast(request);
+            pendingCount++;
+            changed.signal();
+            return request.result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Lane newLane(String laneKey) {
+        if (CALLBACK_LANE.equals(laneKey)) return new Lane(null, false);
+        // 群组/频道的 chat_id 为负数
+        if (laneKey.startsWith("-")) return new Lane(new TokenBucket(groupPerMinute / 60.0, 1.0), true);
+        return new Lane(new TokenBucket(chatPerSecond, 1.0), true);
+    }
+
+    private void runDispatcher() {
+        List<Request> batch = new ArrayList<>(batchSize);
+        lock.lock();
+        try {
+            while (running || (pendingCount > 0 && System.currentTimeMillis() < drainDeadline)) {
+                long now = System.currentTimeMillis();
+                long wait = 1000L;
+                while (batch.size() < batchSize) {
+                    long globalWait = global.waitMillis(now);
+                    if (globalWait > 0) {
+                        wait = Math.min(wait, globalWait);
+                        break;
+                    }
+                    Lane bestLane = null;
+                    Request request = null;
+                    Iterator<Lane> iterator = lanes.values().iterator();
+                    while (iterator.hasNext()) {
+                        Lane lane = iterator.next();
+                        if (lane.pending.isEmpty()) {
+                            if (!lane.inFlight && lane.blockedUntil <= now && (lane.bucket == null || lane.bucket.full())) iterator.remove();
+                            continue;
+                        }
+                        Request head = null;
+                        if (lane.ordered) {
+                            if (lane.inFlight) continue;
+                            long laneWait = lane.waitMillis(now);
+                            if (laneWait > 0) {
+                                wait = Math.min(wait, laneWait);
+                                continue;
+                            }
+                            head = lane.pending.peekFirst();
+                        } else {
+                            for (Request candidate : lane.pending) {
+                                if (candidate.notBeforeMillis > now) {
+                                    wait = Math.min(wait, candidate.notBeforeMillis - now);
+                                } else if (head == null || candidate.compareTo(head) < 0) {
+                                    head = candidate;
+                                }
+                            }
+                            if (head == null) continue;
+                        }
+                        if (request == null || head.compareTo(request) < 0) {
+                            request = head;
+                            bestLane = lane;
+                        }
+                    }
+                    if (request == null) break;
+                    if (bestLane.ordered) {
+                        bestLane.pending.pollFirst();
+                        bestLane.inFlight = true;
+                    } else {
+                        bestLane.pending.remove(request);
+                    }
+                    if (bestLane.bucket != null) bestLane.bucket.take();
+                    global.take();
+                    pendingCount--;
+                    batch.add(request);
+                }
+                if (!batch.isEmpty()) {
+                    for (Request request : batch) senders.execute(() -> send(request));
+                    batch.clear();
+                    continue;
+                }
+                changed.await(Math.max(1L, wait), TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void send(Request request) {
+        Map<String, Object> outcome;
+        long retryAfterMillis = -1L;
+        String botToken = botToken(ecf);
+        if (botToken == null || botToken.isEmpty()) {
+            logger.warn("Telegram Bot Token未配置，无法调用 {}。仅记录日志: {}", request.method, request.payload);
+            outcome = result(false, 0, null, "Bot token not configured");
+        } else {
+            request.attempts++;
+            try {
+                HttpRequest httpRequest = HttpRequest.newBuilder()
+                        .uri(URI.create(apiBase(ecf) + "/bot" + botToken + "/" + request.method))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(JsonOutput.toJson(request.payload)))
+                        .timeout(Duration.ofSeconds(30))
+                        .build();
+                HttpResponse<String> response = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+                int status = response.statusCode();
+                outcome = result(status == 200, status, response.body(), null);
+                if (status == 429) {
+                    retryAfterMillis = retryAfterSeconds(response.body()) * 1000L;
+                } else if (status >= 500 && request.attempts < maxAttempts) {
+                    retryAfterMillis = 1000L * request.attempts;
+                }
+            } catch (Exception e) {
+                outcome = result(false, 0, null, e.getMessage());
+                if (request.attempts < maxAttempts) retryAfterMillis = 1000L * request.attempts;
+            }
+        }
+
+        lock.lock();
+        try {
+            Lane lane = lanes.get(request.laneKey);
+            if (lane != null) lane.inFlight = false;
+            if (retryAfterMillis >= 0 && running) {
+                // 不保序通道可能在请求发送期间已被回收
+                if (lane == null) lane = lanes.computeIfAbsent(request.laneKey, this::newLane);
+                if (lane.ordered) {
+                    // 暂停该聊天并把请求放回通道头部，保持同一聊天的发送顺序
+                    lane.blockedUntil = System.currentTimeMillis() + retryAfterMillis;
+                    lane.pending.addFirst(request);
+                } else {
+                    // 只推迟这一个请求，其他回调照常发送
+                    request.notBeforeMillis = System.currentTimeMillis() + retryAfterMillis;
+                    lane.pending.addLast(request);
+                }
+                pendingCount++;
+                throttledCount.incrementAndGet();
+            }
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (retryAfterMillis >= 0 && running) {
+            logger.info("Telegram {} to chat {} deferred {} ms (HTTP {})", request.method, request.laneKey, retryAfterMillis, outcome.get("statusCode"));
+            return;
+        }
+        complete(request, outcome);
+    }
+
+    private void complete(Request request, Map<String, Object> outcome) {
+        if (Boolean.TRUE.equals(outcome.get("ok"))) {
+            sentCount.incrementAndGet();
+            request.result.complete(outcome);
+            return;
+        }
+        int status = (Integer) outcome.get("statusCode");
+        String body = (String) outcome.get("body");
+        if (request.fallbackToSend && !(body != null && body.contains("message is not modified"))) {
+            logger.info("编辑Telegram消息失败，回退为新消息: HTTP {} {}", status, body != null ? body : outcome.get("error"));
+            Map<String, Object> markup = castMap(request.payload.get("reply_markup"));
+            sendMessage(request.laneKey, (String) request.payload.get("text"), markup, Priority.REPLY)
+                    .whenComplete((value, error) -> request.result.complete(value != null ? value : outcome));
+            return;
+        }
+        failedCount.incrementAndGet();
+        if (status == 400 && body != null && body.contains("chat not found")) {
+            logger.info("Telegram聊天 {} 不可达，已忽略 {}: {}", request.laneKey, request.method, body);
+        } else {
+            logger.warn("Telegram {} 调用失败: HTTP {}, 响应: {}", request.method, status, body != null ? body : outcome.get("error"));
+        }
+        request.result.complete(outcome);
+    }
+
+    static String botToken(ExecutionContextFactory ecf) {
+        String token = McpConfig.get(ecf, "telegram.bot.token", null);
+        return token != null && !token.isEmpty() ? token : McpConfig.get(ecf, "mcp.telegram.bot.token", null);
+    }
+
+    static String apiBase(ExecutionContextFactory ecf) {
+        return McpConfig.get(ecf, "mcp.telegram.api.base", "https://api.telegram.org");
+    }
+
+    private static long retryAfterSeconds(String body) {
+        try {
+            Object parsed = new JsonSlurper().parseText(body);
+            if (parsed instanceof Map) {
+                Object parameters = ((Map<?, ?>) parsed).get("parameters");
+                if (parameters instanceof Map && ((Map<?, ?>) parameters).get("retry_after") instanceof Number) {
+                    return Math.max(1L, ((Number) ((Map<?, ?>) parameters).get("retry_after")).longValue());
+                }
+            }
+        } catch (Exception ignored) { }
+        return 1L;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> castMap(Object value) {
+        return value instanceof Map ? (Map<String, Object>) value : null;
+    }
+
+    private static Map<String, Object> result(boolean ok, int statusCode, String body, String error) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("ok", ok);
+        result.put("statusCode", statusCode);
+        result.put("body", body);
+        if (error != null) result.put("error", error);
+        return result;
+    }
+
+    /** 停止接收新请求，最多等待 10 秒把已排队的消息发完 */
+    void destroy() {
+        drainDeadline = System.currentTimeMillis() + 10_000L;
+        running = false;
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            dispatcher.join(15_000L);
+            senders.shutdown();
+            senders.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("TelegramOutboundSender stopped: sent={}, failed={}, throttled={}, unsent={}",
+                sentCount.get(), failedCount.get(), throttledCount.get(), getQueueDepth());
+    }
+}
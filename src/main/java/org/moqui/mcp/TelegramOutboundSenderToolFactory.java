@@ -0,0 +1,33 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.context.ToolFactory;
+
+/**
+ * 在 MoquiConf tools 中注册，随运行时启动/停止 TelegramOutboundSender 分发与发送线程
+ */
+public class TelegramOutboundSenderToolFactory implements ToolFactory<TelegramOutboundSender> {
+    private TelegramOutboundSender sender = null;
+
+    public TelegramOutboundSenderToolFactory() { }
+
+    @Override
+    public String getName() { return TelegramOutboundSender.TOOL_NAME; }
+
+    @Override
+    public void init(ExecutionContextFactory ecf) {
+        sender = new TelegramOutboundSender(ecf);
+    }
+
+    @Override
+    public TelegramOutboundSender getInstance(Object... parameters) {
+        if (sender == null) throw new IllegalStateException("TelegramOutboundSenderToolFactory not initialized");
+        return sender;
+    }
+
+    @Override
+    public void destroy() {
+        if (sender != null) sender.destroy();
+        sender = null;
+    }
+}
@@ -0,0 +1,209 @@
+package org.moqui.mcp;
+
+import groovy.json.JsonSlurper;
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.ExecutionContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Telegram getUpdates 长轮询接入
+ * 作为 webhook 之外的接入方式，适合没有公网 HTTPS 入口的内部部署，也可以对接本地 Telegram 桩服务做全链路测试。
+ * 拉到的一批更新整体写入 TelegramUpdateQueue 后才推进 offset，offset 持久化在本地文件，重启后从上次位置继续；
+ * 由 mcp.telegram.polling.enabled 开启，开启时 Telegram 不允许同时设置 webhook
+ */
+public class TelegramPollingIngester {
+    private static final Logger logger = LoggerFactory.getLogger(TelegramPollingIngester.class);
+
+    public static final String TOOL_NAME = "TelegramPollingIngester";
+
+    private final ExecutionContextFactory ecf;
+    private final boolean enabled;
+    private final int batchSize;
+    private final int timeoutSeconds;
+    private final Path offsetFile;
+    private final HttpClient httpClient;
+    private Thread poller;
+    private volatile boolean running;
+    private volatile CompletableFuture<HttpResponse<String>> inFlight;
+    private volatile long offset;
+
+    private final AtomicLong polledCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    TelegramPollingIngester(ExecutionContextFactory ecf) {
+        this.ecf = ecf;
+        this.enabled = McpConfig.getBoolean(ecf, "mcp.telegram.polling.enabled", false);
+        this.batchSize = Math.max(1, Math.min(100, McpConfig.getInt(ecf, "mcp.telegram.polling.batch.size", 100)));
+        this.timeoutSeconds = McpConfig.getInt(ecf, "mcp.telegram.polling.timeout.seconds", 30);
+        this.offsetFile = Paths.get(McpConfig.get(ecf, "mcp.telegram.polling.offset.file",
+                ecf.getRuntimePath() + "/mcp/telegram-queue/polling.offset"));
+        this.httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(20)).build();
+        if (!enabled) return;
+
+        this.offset = readOffset();
+        this.running = true;
+        this.poller = new Thread(this::runPoller, "TelegramPollingIngester");
+        this.poller.setDaemon(true);
+        this.poller.start();
+        logger.info("Telegram long polling started at offset {}", offset);
+    }
+
+    public static TelegramPollingIngester getInstance(ExecutionContext ec) {
+        return ec.getTool(TOOL_NAME, TelegramPollingIngester.class);
+    }
+
+    public boolean isEnabled() { return enabled; }
+    public long getOffset() { return offset; }
+    public long getPolledCount() { return polledCount.get(); }
+    public long getErrorCount() { return errorCount.get(); }
+
+    private void runPoller() {
+        long backoffMillis = 0L;
+        if (McpConfig.getBoolean(ecf, "mcp.telegram.polling.delete.webhook", true)) deleteWebhook();
+        while (running) {
+            try {
+                if (backoffMillis > 0) Thread.sleep(backoffMillis);
+                backoffMillis = pollOnce() ? 0L : Math.min(30_000L, Math.max(1_000L, backoffMillis * 2));
+            } catch (InterruptedException e) {
+                break;
+            } catch (CancellationException e) {
+                // destroy 取消了进行中的请求
+            } catch (Throwable t) {
+                errorCount.incrementAndGet();
+                logger.warn("Telegram getUpdates failed: {}", t.getMessage());
+                backoffMillis = Math.min(30_000L, Math.max(1_000L, backoffMillis * 2));
+            }
+        }
+    }
+
+    /**
+     * 拉取并入队一批更新；返回 false 表示需要退避（接口出错或队列已满）
+     */
+    boolean pollOnce() throws InterruptedException, ExecutionException {
+        long started = System.currentTimeMillis();
+        Map<?, ?> response = call("getUpdates?offset=" + offset + "&limit=" + batchSize + "&timeout=" + timeoutSeconds,
+                Duration.ofSeconds(timeoutSeconds + 15L));
+        if (response == null) return false;
+        if (!Boolean.TRUE.equals(response.get("ok"))) {
+            errorCount.incrementAndGet();
+            // 409：webhook 仍在生效或另一个实例也在轮询
+            logger.warn("Telegram getUpdates returned error: {}", response);
+            return false;
+        }
+        Object result = response.get("result");
+        if (!(result instanceof List) || ((List<?>) result).isEmpty()) {
+            // 不支持长轮询挂起的桩服务会立即返回空结果，稍作停顿避免空转
+            long elapsed = System.currentTimeMillis() - started;
+            if (elapsed < 1000L) Thread.sleep(1000L - elapsed);
+            return true;
+        }
+
+        List<Map<?, ?>> updates = new ArrayList<>();
+        List<Long> updateIds = new ArrayList<>();
+        for (Object update : (List<?>) result) {
+            if (!(update instanceof Map) || !(((Map<?, ?>) update).get("update_id") instanceof Number)) continue;
+            updates.add((Map<?, ?>) update);
+            updateIds.add(((Number) ((Map<?, ?>) update).get("update_id")).longValue());
+        }
+        if (updates.isEmpty()) return true;
+
+        int accepted = ecf.getTool(TelegramUpdateQueue.TOOL_NAME, TelegramUpdateQueue.class).offerAll(updates);
+        if (accepted > 0) {
+            // 只越过已入队的更新，其余的下一轮由 Telegram 重新返回
+            offset = updateIds.get(accepted - 1) + 1;
+            writeOffset(offset);
+            polledCount.addAndGet(accepted);
+        }
+        if (accepted < updates.size()) {
+            logger.warn("Telegram update queue full, {} polled update(s) will be fetched again", updates.size() - accepted);
+            return false;
+        }
+        return true;
+    }
+
+    private void deleteWebhook() {
+        try {
+            Map<?, ?> response = call("deleteWebhook", Duration.ofSeconds(30));
+            if (response != null && !Boolean.TRUE.equals(response.get("ok"))) logger.warn("Telegram deleteWebhook failed: {}", response);
+        } catch (Exception e) {
+            logger.warn("Telegram deleteWebhook failed: {}", e.getMessage());
+        }
+    }
+
+    private Map<?, ?> call(String methodAndQuery, Duration timeout) throws InterruptedException, ExecutionException {
+        String botToken = TelegramOutboundSender.botToken(ecf);
+        if (botToken == null || botToken.isEmpty()) {
+            logger.warn("Telegram Bot Token未配置，无法轮询更新");
+            return null;
+        }
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(TelegramOutboundSender.apiBase(ecf) + "/bot" + botToken + "/" + methodAndQuery))
+                .GET()
+                .timeout(timeout)
+                .build();
+        CompletableFuture<HttpResponse<String>> future = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+        inFlight = future;
+        try {
+            String body = future.get().body();
+            Object parsed = body != null && !body.isEmpty() ? new JsonSlurper().parseText(body) : null;
+            return parsed instanceof Map ? (Map<?, ?>) parsed : null;
+        } finally {
+            inFlight = null;
+        }
+    }
+
+    private long readOffset() {
+        try {
+            if (Files.exists(offsetFile)) return Long.parseLong(new String(Files.readAllBytes(offsetFile), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            logger.warn("Cannot read Telegram polling offset from {}: {}", offsetFile, e.getMessage());
+        }
+        return 0L;
+    }
+
+    /** 先写临时文件再原子替换，避免崩溃时留下半截 offset */
+    private void writeOffset(long value) {
+        try {
+            Files.createDirectories(offsetFile.getParent());
+            Path temp = offsetFile.resolveSibling(offsetFile.getFileName() + ".tmp");
+            Files.write(temp, Long.toString(value).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, offsetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Cannot write Telegram polling offset to {}: {}", offsetFile, e.getMessage());
+        }
+    }
+
+    /** 取消进行中的长轮询并停止线程；已拉取但未推进 offset 的更新下次启动时重新拉取 */
+    void destroy() {
+        if (!enabled) return;
+        running = false;
+        CompletableFuture<HttpResponse<String>> future = inFlight;
+        if (future != null) future.cancel(true);
+        try {
+            poller.join(10_000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("TelegramPollingIngester stopped at offset {}: polled={}, errors={}", offset, polledCount.get(), errorCount.get());
+    }
+}
@@ -0,0 +1,33 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.context.ToolFactory;
+
+/**
+ * 在 MoquiConf tools 中注册，随运行时启动/停止 TelegramPollingIngester 长轮询线程
+ */
+public class TelegramPollingIngesterToolFactory implements ToolFactory<TelegramPollingIngester> {
+    private TelegramPollingIngester ingester = null;
+
+    public TelegramPollingIngesterToolFactory() { }
+
+    @Override
+    public String getName() { return TelegramPollingIngester.TOOL_NAME; }
+
+    @Override
+    public void init(ExecutionContextFactory ecf) {
+        ingester = new TelegramPollingIngester(ecf);
+    }
+
+    @Override
+    public TelegramPollingIngester getInstance(Object... parameters) {
+        if (ingester == null) throw new IllegalStateException("TelegramPollingIngesterToolFactory not initialized");
+        return ingester;
+    }
+
+    @Override
+    public void destroy() {
+        if (ingester != null) ingester.destroy();
+        ingester = null;
+    }
+}
@@ -0,0 +1,194 @@
+package org.moqui.mcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Telegram update 的类型化视图，只解析处理流程用到的字段
+ * 消息解析为 Message（聊天、发送者、消息类型、文本和附件信息），按钮回调解析为 CallbackQuery；
+ * 附件信息保持 Map 形式，原样交给 MarketplaceMcpService
+ */
+public final class TelegramUpdate {
+    public static final String TYPE_TEXT = "text";
+    public static final String TYPE_VOICE = "voice";
+    public static final String TYPE_AUDIO = "audio";
+    public static final String TYPE_PHOTO = "photo";
+    public static final String TYPE_DOCUMENT = "document";
+
+    private final Message message;
+    private final CallbackQuery callbackQuery;
+
+    /** 普通消息；chatId 为空表示消息无法处理 */
+    public static final class Message {
+        public final String chatId;
+        public final String fromId;
+        public final String messageType;
+        /** 去掉首尾空白后的文本，空消息按 /start 处理 */
+        public final String text;
+        public final Map<String, Object> attachmentInfo;
+
+        Message(String chatId, String fromId, String messageType, String text, Map<String, Object> attachmentInfo) {
+            this.chatId = chatId;
+            this.fromId = fromId;
+            this.messageType = messageType;
+            this.text = text;
+            this.attachmentInfo = attachmentInfo;
+        }
+    }
+
+    /** 内联键盘按钮回调 */
+    public static final class CallbackQuery {
+        public final String id;
+        public final String data;
+        public final String chatId;
+        public final Integer messageId;
+        public final String fromId;
+
+        CallbackQuery(String id, String data, String chatId, Integer messageId, String fromId) {
+            this.id = id;
+            this.data = data;
+            this.chatId = chatId;
+            this.messageId = messageId;
+            this.fromId = fromId;
+        }
+    }
+
+    private TelegramUpdate(Message message, CallbackQuery callbackQuery) {
+        this.message = message;
+        this.callbackQuery = callbackQuery;
+    }
+
+    public Message getMessage() { return message; }
+    public CallbackQuery getCallbackQuery() { return callbackQuery; }
+
+    /**
+     * 解析 update；message、callbackQuery 为服务参数中单独传入的字段，update 中没有时使用。
+     * 两者都没有时 getMessage 与 getCallbackQuery 均返回 null
+     */
+    public static TelegramUpdate parse(Map<?, ?> update, Map<?, ?> message, Map<?, ?> callbackQuery) {
+        Map<?, ?> callback = map(update != null ? update.get("callback_query") : null);
+        if (callback == null) callback = callbackQuery;
+        if (callback != null && !callback.isEmpty()) return new TelegramUpdate(null, parseCallback(callback));
+
+        Map<?, ?> telegramMessage = message != null && !message.isEmpty() ? message : map(update != null ? update.get("message") : null);
+        if (telegramMessage == null || telegramMessage.isEmpty()) return new TelegramUpdate(null, null);
+        return new TelegramUpdate(parseMessage(telegramMessage), null);
+    }
+
+    private static CallbackQuery parseCallback(Map<?, ?> callback) {
+        Map<?, ?> message = map(callback.get("message"));
+        Object messageId = message != null ? message.get("message_id") : null;
+        Object data = callback.get("data");
+        return new CallbackQuery(string(callback.get("id")), data != null ? data.toString() : "",
+                message != null ? string(path(message, "chat", "id")) : null,
+                messageId instanceof Number ? ((Number) messageId).intValue() : null,
+                string(path(callback, "from", "id")));
+    }
+
+    private static Message parseMessage(Map<?, ?> message) {
+        String chatId = string(path(message, "chat", "id"));
+        String fromId = string(path(message, "from", "id"));
+        String caption = nonEmpty(message.get("caption"));
+        Map<String, Object> attachmentInfo = new LinkedHashMap<>();
+        String messageType;
+        String text;
+
+        Map<?, ?> voice = map(message.get("voice"));
+        Map<?, ?> audio = map(message.get("audio"));
+        List<?> photos = message.get("photo") instanceof List ? (List<?>) message.get("photo") : null;
+        Map<?, ?> document = map(message.get("document"));
+        if (voice != null && !voice.isEmpty()) {
+            messageType = TYPE_VOICE;
+            attachmentInfo.put("type", TYPE_VOICE);
+            putFileIds(attachmentInfo, voice);
+            attachmentInfo.put("duration", voice.get("duration"));
+            attachmentInfo.put("mimeType", orDefault(voice.get("mime_type"), "audio/ogg"));
+            text = "[Voice Message - Duration: " + voice.get("duration") + "s]";
+        } else if (audio != null && !audio.isEmpty()) {
+            messageType = TYPE_AUDIO;
+            attachmentInfo.put("type", TYPE_AUDIO);
+            putFileIds(attachmentInfo, audio);
+            attachmentInfo.put("duration", audio.get("duration"));
+            attachmentInfo.put("mimeType", orDefault(audio.get("mime_type"), "audio/mpeg"));
+            attachmentInfo.put("title", audio.get("title"));
+            attachmentInfo.put("performer", audio.get("performer"));
+            text = "[Audio Message - " + orDefault(audio.get("title"), "Unknown") + " by " + orDefault(audio.get("performer"), "Unknown") + "]";
+        } else if (photos != null && !photos.isEmpty()) {
+            messageType = TYPE_PHOTO;
+            Map<?, ?> largest = null;
+            long largestSize = -1L;
+            // 各个尺寸都保留，图片识别按服务商的目标分辨率挑选够用的最小尺寸
+            List<Map<String, Object>> photoSizes = new ArrayList<>(photos.size());
+            for (Object item : photos) {
+                Map<?, ?> photo = map(item);
+                if (photo == null) continue;
+                long size = photo.get("file_size") instanceof Number ? ((Number) photo.get("file_size")).longValue() : 0L;
+                if (size > largestSize) {
+                    largest = photo;
+                    largestSize = size;
+                }
+                Map<String, Object> photoSize = new LinkedHashMap<>();
+                photoSize.put("fileId", photo.get("file_id"));
+                photoSize.put("fileUniqueId", photo.get("file_unique_id"));
+                photoSize.put("width", photo.get("width"));
+                photoSize.put("height", photo.get("height"));
+                photoSize.put("fileSize", photo.get("file_size"));
+                photoSizes.add(photoSize);
+            }
+            if (largest == null) largest = Collections.emptyMap();
+            attachmentInfo.put("type", TYPE_PHOTO);
+            putFileIds(attachmentInfo, largest);
+            attachmentInfo.put("width", largest.get("width"));
+            attachmentInfo.put("height", largest.get("height"));
+            attachmentInfo.put("fileSize", largest.get("file_size"));
+            attachmentInfo.put("photoSizes", photoSizes);
+            text = caption != null ? caption : "[Photo Message]";
+        } else if (document != null && !document.isEmpty()) {
+            messageType = TYPE_DOCUMENT;
+            attachmentInfo.put("type", TYPE_DOCUMENT);
+            putFileIds(attachmentInfo, document);
+            attachmentInfo.put("fileName", document.get("file_name"));
+            attachmentInfo.put("mimeType", document.get("mime_type"));
+            attachmentInfo.put("fileSize", document.get("file_size"));
+            text = caption != null ? caption : "[Document: " + orDefault(document.get("file_name"), "Unknown") + "]";
+        } else {
+            messageType = TYPE_TEXT;
+            String messageText = nonEmpty(message.get("text"));
+            text = messageText != null ? messageText : caption != null ? caption : "";
+        }
+
+        text = text.trim();
+        if (text.isEmpty()) text = "/start";
+        return new Message(chatId, fromId, messageType, text, attachmentInfo);
+    }
+
+    private static void putFileIds(Map<String, Object> attachmentInfo, Map<?, ?> file) {
+        attachmentInfo.put("fileId", file.get("file_id"));
+        attachmentInfo.put("fileUniqueId", file.get("file_unique_id"));
+    }
+
+    private static Map<?, ?> map(Object value) {
+        return value instanceof Map ? (Map<?, ?>) value : null;
+    }
+
+    private static Object path(Map<?, ?> map, String first, String second) {
+        Map<?, ?> inner = map(map.get(first));
+        return inner != null ? inner.get(second) : null;
+    }
+
+    private static String string(Object value) {
+        return value != null ? value.toString() : null;
+    }
+
+    private static String nonEmpty(Object value) {
+        return value != null && !value.toString().isEmpty() ? value.toString() : null;
+    }
+
+    private static String orDefault(Object value, String defaultValue) {
+        String text = nonEmpty(value);
+        return text != null ? text : defaultValue;
+    }
+}
@@ -0,0 +1,153 @@
+package org.moqui.mcp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Telegram 更新去重
+ * webhook 响应慢时 Telegram 会重投同一个更新；按 bot + update_id（以及回调的 callback_query.id）记录最近见过的键，
+ * 重复的更新在写入队列之前直接丢弃，不再重复调用 LLM、重复发布供需或重复回复。
+ * 每个 bot 两代 long 开放寻址表，每 ttl 轮换一次，键保留 ttl 到 2*ttl，每个键只占 8 字节
+ */
+public class TelegramUpdateDeduplicator {
+    private final long ttlMillis;
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    /** 单个 bot 的去重窗口 */
+    private static final class Window {
+        LongSet current = new LongSet();
+        LongSet previous = new LongSet();
+        long rotatedAt = System.currentTimeMillis();
+
+        synchronized boolean markIfNew(long key, long now, long ttlMillis) {
+            if (now - rotatedAt >= ttlMillis) {
+                // 停顿超过两个周期时两代都已过期
+                previous = now - rotatedAt >= 2 * ttlMillis ? new LongSet() : current;
+                current = new LongSet();
+                rotatedAt = now;
+            }
+            if (previous.contains(key)) return false;
+            return current.add(key);
+        }
+
+        synchronized void forget(long key) {
+            current.remove(key);
+            previous.remove(key);
+        }
+    }
+
+    public TelegramUpdateDeduplicator(long ttlMillis) {
+        this.ttlMillis = Math.max(1000L, ttlMillis);
+    }
+
+    /**
+     * 首次见到该更新时记录并返回 true；没有可识别的键（update_id 或 callback_query.id）时不去重
+     */
+    public boolean markIfNew(String botId, Map<?, ?> update) {
+        Long key = keyOf(update);
+        if (key == null) return true;
+        return windows.computeIfAbsent(botId != null ? botId : "", k -> new Window())
+                .markIfNew(key, System.currentTimeMillis(), ttlMillis);
+    }
+
+    /** 更新最终未被接收（例如队列已满）时撤销记录，让 Telegram 的重投能够再次进入 */
+    public void forget(String botId, Map<?, ?> update) {
+        Long key = keyOf(update);
+        Window window = windows.get(botId != null ? botId : "");
+        if (key != null && window != null) window.forget(key);
+    }
+
+    /** update_id 直接作为键；只有回调 id 时取其 64 位哈希，最高位置 1 与 update_id 区分 */
+    static Long keyOf(Map<?, ?> update) {
+        if (update == null) return null;
+        Object updateId = update.get("update_id");
+        if (updateId instanceof Number) return ((Number) updateId).longValue() & Long.MAX_VALUE;
+        Object callback = update.get("callback_query");
+        if (callback instanceof Map && ((Map<?, ?>) callback).get("id") != null) {
+            String id = ((Map<?, ?>) callback).get("id").toString();
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < id.length(); i++) {
+                hash ^= id.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            return hash | Long.MIN_VALUE;
+        }
+        return null;
+    }
+
+    /** 从 bot token（"123456:ABC..."）取 bot id */
+    public static String botIdOf(String botToken) {
+        if (botToken == null) return "";
+        int colon = botToken.indexOf(':');
+        return colon > 0 ? botToken.substring(0, colon) : botToken;
+    }
+
+    /**
+     * long 开放寻址集合，0 表示空槽；删除使用墓碑，表在扩容时清理墓碑
+     */
+    static final class LongSet {
+        private static final long EMPTY = 0L;
+        private static final long TOMBSTONE = Long.MIN_VALUE + 1;
+        private long[] slots = new long[1024];
+        private int used;
+
+        /** 0 与墓碑值不能直接存放，映射为其他值 */
+        private static long encode(long key) {
+            if (key == EMPTY) return 1L << 62;
+            if (key == TOMBSTONE) return (1L << 62) + 1;
+            return key;
+        }
+
+        private static int indexFor(long key, int mask) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        boolean contains(long key) {
+            long value = encode(key);
+            int mask = slots.length - 1;
+            for (int i = indexFor(value, mask); ; i = (i + 1) & mask) {
+                if (slots[i] == EMPTY) return false;
+                if (slots[i] == value) return true;
+            }
+        }
+
+        boolean add(long key) {
+            long value = encode(key);
+            if (contains(key)) return false;
+            if ((used + 1) * 4 > slots.length * 3) rehash(slots.length * 2);
+            int mask = slots.length - 1;
+            int i = indexFor(value, mask);
+            while (slots[i] != EMPTY && slots[i] != TOMBSTONE) i = (i + 1) & mask;
+            if (slots[i] == EMPTY) used++;
+            slots[i] = value;
+            return true;
+        }
+
+        void remove(long key) {
+            long value = encode(key);
+            int mask = slots.length - 1;
+            for (int i = indexFor(value, mask); ; i = (i + 1) & mask) {
+                if (slots[i] == EMPTY) return;
+                if (slots[i] == value) {
+                    slots[i] = TOMBSTONE;
+                    return;
+                }
+            }
+        }
+
+        private void rehash(int capacity) {
+            long[] old = slots;
+            slots = new long[capacity];
+            used = 0;
+            int mask = capacity - 1;
+            for (long value : old) {
+                if (value == EMPTY || value == TOMBSTONE) continue;
+                int i = indexFor(value, mask);
+                while (slots[i] != EMPTY) i = (i + 1) & mask;
+                slots[i] = value;
+                used++;
+            }
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package org.moqui.mcp;
+
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.ExecutionContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Telegram 更新的进程内持久化工作队列
+ * webhook 只做校验并把原始更新追加到本地日志文件后立即返回 200，分发线程按 chatId 把更新交给
+ * McpStripedExecutor，同一聊天按到达顺序处理、不同聊天并行处理，执行 moqui.mcp.handle#TelegramMessage；
+ * 处理完成写确认记录，重启时重放未确认的更新。日志按段滚动，段内更新全部确认后整段删除
+ */
+public class TelegramUpdateQueue {
+    private static final Logger logger = LoggerFactory.getLogger(TelegramUpdateQueue.class);
+
+    public static final String TOOL_NAME = "TelegramUpdateQueue";
+    static final String HANDLE_SERVICE = "moqui.mcp.handle#TelegramMessage";
+
+    private static final byte RECORD_ENQUEUE = 1;
+    private static final byte RECORD_ACK = 2;
+    /** 记录头：长度(4) CRC(4) 类型(1) 序号(8) */
+    private static final int RECORD_HEADER = 17;
+
+    private final ExecutionContextFactory ecf;
+    private final Path directory;
+    private final long segmentMaxBytes;
+    private final boolean fsync;
+    private final int maxAttempts;
+    private final int capacity;
+    private final long retryBackoffMillis;
+    private final BlockingQueue<Update> queue;
+    private final TelegramUpdateDeduplicator deduplicator;
+    private final McpStripedExecutor executor;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    private final Object journalLock = new Object();
+    private long nextSeq = 1;
+    private int currentSegment;
+    private FileChannel currentChannel;
+    /** 段号 → 该段中尚未确认的更新数 */
+    private final TreeMap<Integer, Integer> pendingBySegment = new TreeMap<>();
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+
+    /** 队列中的一条更新 */
+    static final class Update {
+        final long seq;
+        final int segment;
+        final String json;
+        int attempts;
+
+        Update(long seq, int segment, String json) {
+            this.seq = seq;
+            this.segment = segment;
+            this.json = json;
+        }
+    }
+
+    TelegramUpdateQueue(ExecutionContextFactory ecf) {
+        this.ecf = ecf;
+        this.directory = Paths.get(McpConfig.get(ecf, "mcp.telegram.queue.dir", ecf.getRuntimePath() + "/mcp/telegram-queue"));
+        this.segmentMaxBytes = McpConfig.getLong(ecf, "mcp.telegram.queue.segment.bytes", 16L * 1024 * 1024);
+        this.fsync = McpConfig.getBoolean(ecf, "mcp.telegram.queue.fsync", true);
+        this.maxAttempts = McpConfig.getInt(ecf, "mcp.telegram.queue.max.attempts", 3);
+        this.capacity = McpConfig.getInt(ecf, "mcp.telegram.queue.capacity", 10000);
+        this.retryBackoffMillis = McpConfig.getLong(ecf, "mcp.telegram.queue.retry.backoff.millis", 1000L);
+        int stripeCount = McpConfig.getInt(ecf, "mcp.telegram.stripes", Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+        int stripeCapacity = McpConfig.getInt(ecf, "mcp.telegram.stripe.capacity", 256);
+        this.deduplicator = new TelegramUpdateDeduplicator(McpConfig.getLong(ecf, "mcp.telegram.dedup.ttl.seconds", 600L) * 1000L);
+
+        List<Update> recovered;
+        try {
+            Files.createDirectories(directory);
+            recovered = replay();
+            currentChannel = FileChannel.open(segmentPath(currentSegment),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open Telegram update journal at " + directory, e);
+        }
+        // 重放的更新不受容量限制，保证重启前已确认接收的更新不会丢失
+        this.queue = new ArrayBlockingQueue<>(Math.max(capacity, recovered.size() + capacity));
+        queue.addAll(recovered);
+        if (!recovered.isEmpty()) logger.info("Recovered {} unprocessed Telegram update(s) from {}", recovered.size(), directory);
+
+        this.executor = new McpStripedExecutor("TelegramUpdateWorker", stripeCount, stripeCapacity);
+        this.dispatcher = new Thread(this::runDispatcher, "TelegramUpdateDispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    public static TelegramUpdateQueue getInstance(ExecutionContext ec) {
+        return ec.getTool(TOOL_NAME, TelegramUpdateQueue.class);
+    }
+
+    /** 待分发与各条带排队中的更新总数 */
+    public int getQueueDepth() { return queue.size() + executor.getQueueDepth(); }
+    public int[] getStripeDepths() { return executor.getStripeDepths(); }
+    public long getAcceptedCount() { return acceptedCount.get(); }
+    public long getRejectedCount() { return rejectedCount.get(); }
+    public long getProcessedCount() { return processedCount.get(); }
+    public long getFailedCount() { return failedCount.get(); }
+    public long getDuplicateCount() { return duplicateCount.get(); }
+
+    /**
+     * 校验 webhook 的 X-Telegram-Bot-Api-Secret-Token；未配置 mcp.telegram.webhook.secret 时不校验。
+     * 按常数时间比较，避免通过响应耗时逐字节猜出密钥
+     */
+    public static boolean isAuthorized(ExecutionContext ec, String secretToken) {
+        String secret = McpConfig.get(ec.getFactory(), "mcp.telegram.webhook.secret", null);
+        if (secret == null) return true;
+        return secretToken != null && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                secretToken.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 校验 Telegram 更新：必须是 JSON 对象，且包含 update_id 或可处理的 message/callback_query
+     */
+    public static boolean isValidUpdate(Map<?, ?> update) {
+        if (update == null || update.isEmpty()) return false;
+        return update.get("update_id") instanceof Number || update.get("message") instanceof Map
+                || update.get("callback_query") instanceof Map;
+    }
+
+    /**
+     * 写入日志并入队；重复投递的更新直接视为已接收。队列已满时返回 false，由 webhook 返回错误让 Telegram 稍后重投
+     */
+    public boolean offer(Map<?, ?> update) {
+        return offerAll(Collections.singletonList(update)) == 1;
+    }
+
+    /**
+     * 按顺序批量写入日志并入队，整批只刷盘一次；返回从头开始已处理（入队或判定为重复）的条数，其余的由调用方稍后重试
+     */
+    public int offerAll(List<? extends Map<?, ?>> updateMaps) {
+        String botId = TelegramUpdateDeduplicator.botIdOf(TelegramOutboundSender.botToken(ecf));
+        List<Update> updates = new ArrayList<>(updateMaps.size());
+        List<Integer> positions = new ArrayList<>(updateMaps.size());
+        // 容量检查、写日志与入队都在日志锁内完成：只有这里会向队列添加元素，分发线程只会腾出空间，入队不会失败
+        synchronized (journalLock) {
+            int room = running ? capacity - queue.size() : 0;
+            int count = Math.min(Math.max(room, 0), updateMaps.size());
+            if (count < updateMaps.size()) rejectedCount.addAndGet(updateMaps.size() - count);
+            if (count == 0) return 0;
+            long journalEnd = -1L;
+            try {
+                for (int i = 0; i < count; i++) {
+                    Map<?, ?> updateMap = updateMaps.get(i);
+                    if (!deduplicator.markIfNew(botId, updateMap)) {
+                        duplicateCount.incrementAndGet();
+                        continue;
+                    }
+                    positions.add(i);
+                    String updateJson = JsonOutput.toJson(updateMap);
+                    byte[] payload = updateJson.getBytes(StandardCharsets.UTF_8);
+                    long seq = nextSeq++;
+                    rollIfNeeded(RECORD_HEADER + payload.length);
+                    journalEnd = currentChannel.size();
+                    append(RECORD_ENQUEUE, seq, payload);
+                    pendingBySegment.merge(currentSegment, 1, Integer::sum);
+                    updates.add(new Update(seq, currentSegment, updateJson));
+                }
+                if (fsync && !updates.isEmpty()) currentChannel.force(false);
+            } catch (IOException e) {
+                // 先截掉写了一半的记录，否则重放时会在此处截断、连同其后的取消记录一起丢弃
+                if (journalEnd >= 0) {
+                    try {
+                        currentChannel.truncate(journalEnd);
+                    } catch (IOException truncateError) {
+                        logger.warn("Failed to truncate Telegram update journal: {}", truncateError.getMessage());
+                    }
+                }
+                // 只撤销本批新标记的更新；批内判定为重复的保持已接收状态
+                cancel(updates);
+                for (int position : positions) deduplicator.forget(botId, updateMaps.get(position));
+                throw new UncheckedIOException("Failed to journal Telegram update", e);
+            }
+            for (int i = 0; i < updates.size(); i++) {
+                if (!queue.offer(updates.get(i))) {
+                    // 防御性处理：写取消记录使重启时不再重放，并撤销去重记录以便 Telegram 重投
+                    List<Update> rejected = updates.subList(i, updates.size());
+                    cancel(rejected);
+                    for (int position : positions.subList(i, positions.size())) deduplicator.forget(botId, updateMaps.get(position));
+                    rejectedCount.addAndGet(rejected.size());
+                    acceptedCount.addAndGet(i);
+                    return positions.get(i);
+                }
+            }
+            acceptedCount.addAndGet(updates.size());
+            return count;
+        }
+    }
+
+    /**
+     * 撤销已写入日志但不会处理的更新：写确认记录使其不被重放，并扣减所在段的待确认数；调用方持有日志锁
+     */
+    private void cancel(List<Update> cancelled) {
+        for (Update update : cancelled) {
+            try {
+                append(RECORD_ACK, update.seq, new byte[0]);
+            } catch (IOException e) {
+                logger.warn("Failed to journal cancel for Telegram update {}; it will be replayed on restart: {}", update.seq, e.getMessage());
+            }
+            Integer remaining = pendingBySegment.merge(update.segment, -1, Integer::sum);
+            if (remaining != null && remaining <= 0) pendingBySegment.remove(update.segment);
+        }
+        try {
+            if (fsync && !cancelled.isEmpty()) currentChannel.force(false);
+        } catch (IOException e) {
+            logger.warn("Failed to sync Telegram update journal: {}", e.getMessage());
+        }
+        deleteCompletedSegments();
+    }
+
+    /**
+     * 处理一条更新；失败时在同一条带上原地退避重试，保证同一聊天后续的更新不会越过它先执行
+     */
+    void process(Update update, Map<?, ?> body) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("update", body);
+        if (body.get("message") instanceof Map) parameters.put("message", body.get("message"));
+        while (true) {
+            ExecutionContext ec = ecf.getExecutionContext();
+            try {
+                ec.getService().sync().name(HANDLE_SERVICE).parameters(parameters).disableAuthz().call();
+                processedCount.incrementAndGet();
+                acknowledge(update);
+                return;
+            } catch (Throwable t) {
+                update.attempts++;
+                if (update.attempts >= maxAttempts) {
+                    dropped(update, t);
+                    return;
+                }
+                if (!running) return;
+                logger.warn("Telegram update {} failed (attempt {}), retrying: {}", update.seq, update.attempts, t.getMessage());
+            } finally {
+                ec.destroy();
+            }
+            try {
+                Thread.sleep(retryBackoffMillis * update.attempts);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** 分条键：同一聊天的消息与按钮回调落在同一条带 */
+    static Object stripeKey(Map<?, ?> body) {
+        Object message = body.get("message");
+        if (!(message instanceof Map) && body.get("callback_query") instanceof Map) {
+            message = ((Map<?, ?>) body.get("callback_query")).get("message");
+        }
+        if (message instanceof Map && ((Map<?, ?>) message).get("chat") instanceof Map) {
+            Object chatId = ((Map<?, ?>) ((Map<?, ?>) message).get("chat")).get("id");
+            if (chatId != null) return chatId.toString();
+        }
+        return body.get("update_id");
+    }
+
+    private void dropped(Update update, Throwable t) {
+        failedCount.incrementAndGet();
+        logger.error("Dropping Telegram update {} after {} attempt(s)", update.seq, update.attempts, t);
+        acknowledge(update);
+    }
+
+    /** 写确认记录；所在段的更新全部确认且不是当前段时删除该段 */
+    private void acknowledge(Update update) {
+        synchronized (journalLock) {
+            try {
+                append(RECORD_ACK, update.seq, new byte[0]);
+                if (fsync) currentChannel.force(false);
+            } catch (IOException e) {
+                logger.warn("Failed to journal ack for Telegram update {}: {}", update.seq, e.getMessage());
+            }
+            Integer remaining = pendingBySegment.merge(update.segment, -1, Integer::sum);
+            if (remaining != null && remaining <= 0) {
+                pendingBySegment.remove(update.segment);
+                deleteCompletedSegments();
+            }
+        }
+    }
+
+    private void runDispatcher() {
+        while (running) {
+            Update update = null;
+            try {
+                update = queue.poll(500, TimeUnit.MILLISECONDS);
+                if (update == null) continue;
+                Object parsed = new JsonSlurper().parseText(update.json);
+                if (!(parsed instanceof Map)) {
+                    acknowledge(update);
+                    continue;
+                }
+                Map<?, ?> body = (Map<?, ?>) parsed;
+                Update dispatched = update;
+                // 条带队列已满时阻塞，积压留在有界的接收队列中，由 webhook 以 503 向 Telegram 施加背压
+                executor.submit(stripeKey(body), () -> process(dispatched, body));
+            } catch (InterruptedException e) {
+                break;
+            } catch (IllegalStateException e) {
+                break;
+            } catch (Throwable t) {
+                logger.error("Unexpected error dispatching Telegram update", t);
+                if (update != null) dropped(update, t);
+            }
+        }
+    }
+
+    /** 停止接收与分发；各条带处理完已分发的更新后退出，未处理完的在下次启动时重放 */
+    void destroy() {
+        running = false;
+        try {
+            dispatcher.join(5_000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int abandoned = executor.shutdown(30_000L);
+        synchronized (journalLock) {
+            try {
+                currentChannel.force(true);
+                currentChannel.close();
+            } catch (IOException e) {
+                logger.warn("Error closing Telegram update journal: {}", e.getMessage());
+            }
+        }
+        logger.info("TelegramUpdateQueue stopped: accepted={}, processed={}, failed={}, rejected={}, unprocessed={}",
+                acceptedCount.get(), processedCount.get(), failedCount.get(), rejectedCount.get(), queue.size() + abandoned);
+    }
+
+    private void append(byte type, long seq, byte[] payload) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + payload.length);
+        body.put(type).putLong(seq).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        ByteBuffer record = ByteBuffer.allocate(8 + body.capacity());
+        record.putInt(body.capacity()).putInt((int) crc.getValue()).put(body.array());
+        record.flip();
+        while (record.hasRemaining()) currentChannel.write(record);
+    }
+
+    private void rollIfNeeded(int recordBytes) throws IOException {
+        if (currentChannel.size() == 0 || currentChannel.size() + recordBytes <= segmentMaxBytes) return;
+        currentChannel.force(false);
+        currentChannel.close();
+        currentSegment++;
+        currentChannel = FileChannel.open(segmentPath(currentSegment),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        deleteCompletedSegments();
+    }
+
+    private void deleteCompletedSegments() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path file : files) {
+                int segment = segmentNumber(file);
+                if (segment < currentSegment && !pendingBySegment.containsKey(segment)) Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to delete completed Telegram journal segments: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 按段号顺序读取全部日志，返回未确认的更新；末尾不完整或校验失败的记录视为崩溃时的半写入并截断
+     */
+    private List<Update> replay() throws IOException {
+        TreeMap<Integer, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path file : files) segments.put(segmentNumber(file), file);
+        }
+        Map<Long, Update> pending = new LinkedHashMap<>();
+        long maxSeq = 0;
+        for (Map.Entry<Integer, Path> segment : segments.entrySet()) {
+            try (FileChannel channel = FileChannel.open(segment.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+                while (data.hasRemaining() && channel.read(data) >= 0) { }
+                data.flip();
+                long validEnd = 0;
+                while (data.remaining() >= 8) {
+                    int length = data.getInt();
+                    int storedCrc = data.getInt();
+                    if (length < 9 || length > data.remaining()) break;
+                    byte[] body = new byte[length];
+                    data.get(body);
+                    CRC32 crc = new CRC32();
+                    crc.update(body);
+                    if ((int) crc.getValue() != storedCrc) break;
+                    ByteBuffer record = ByteBuffer.wrap(body);
+                    byte type = record.get();
+                    long seq = record.getLong();
+                    maxSeq = Math.max(maxSeq, seq);
+                    if (type == RECORD_ENQUEUE) {
+                        pending.put(seq, new Update(seq, segment.getKey(),
+                                new String(body, 9, body.length - 9, StandardCharsets.UTF_8)));
+                    } else if (type == RECORD_ACK) {
+                        pending.remove(seq);
+                    }
+                    validEnd = data.position();
+                }
+                if (validEnd < channel.size()) {
+                    logger.warn("Truncating {} bytes of incomplete records in {}", channel.size() - validEnd, segment.getValue());
+                    channel.truncate(validEnd);
+                }
+            }
+        }
+        nextSeq = maxSeq + 1;
+        currentSegment = segments.isEmpty() ? 0 : segments.lastKey();
+        for (Update update : pending.values()) pendingBySegment.merge(update.segment, 1, Integer::sum);
+        for (Map.Entry<Integer, Path> segment : segments.entrySet()) {
+            if (segment.getKey() < currentSegment && !pendingBySegment.containsKey(segment.getKey())) {
+                Files.deleteIfExists(segment.getValue());
+            }
+        }
+        return new ArrayList<>(pending.values());
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("journal-%06d.log", segment));
+    }
+
+    private static int segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(8, name.length() - 4));
+    }
+}
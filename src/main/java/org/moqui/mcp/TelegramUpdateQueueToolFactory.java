@@ -0,0 +1,33 @@
+package org.moqui.mcp;
+
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.context.ToolFactory;
+
+/**
+ * 在 MoquiConf tools 中注册，随运行时启动/停止 TelegramUpdateQueue 工作线程并打开/关闭更新日志
+ */
+public class TelegramUpdateQueueToolFactory implements ToolFactory<TelegramUpdateQueue> {
+    private TelegramUpdateQueue queue = null;
+
+    public TelegramUpdateQueueToolFactory() { }
+
+    @Override
+    public String getName() { return TelegramUpdateQueue.TOOL_NAME; }
+
+    @Override
+    public void init(ExecutionContextFactory ecf) {
+        queue = new TelegramUpdateQueue(ecf);
+    }
+
+    @Override
+    public TelegramUpdateQueue getInstance(Object... parameters) {
+        if (queue == null) throw new IllegalStateException("TelegramUpdateQueueToolFactory not initialized");
+        return queue;
+    }
+
+    @Override
+    public void destroy() {
+        if (queue != null) queue.destroy();
+        queue = null;
+    }
+}
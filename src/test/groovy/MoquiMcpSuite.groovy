@@ -0,0 +1,15 @@
+import org.junit.jupiter.api.AfterAll
+import org.junit.platform.suite.api.SelectClasses
+import org.junit.platform.suite.api.Suite
+import org.moqui.Moqui
+import org.moqui.mcp.TelegramCallbackReplyTests
+import org.moqui.mcp.TelegramCommandRoutingTests
+
+@Suite
+@SelectClasses([TelegramCommandRoutingTests.class, TelegramCallbackReplyTests.class])
+class MoquiMcpSuite {
+    @AfterAll
+    static void destroyMoqui() {
+        Moqui.destroyActiveExecutionContextFactory()
+    }
+}
@@ -0,0 +1,116 @@
+package org.moqui.mcp
+
+import org.moqui.Moqui
+import org.moqui.context.ExecutionContext
+import org.moqui.context.ExecutionContextFactory
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.CompletableFuture
+
+/**
+ * 内联键盘回调回复的固定输出；发送器只记录调用，不访问 Telegram。
+ * 只覆盖静态回调（TelegramCommandRegistry.isStaticCallback），它们不解析会话也不读写数据库
+ */
+class TelegramCallbackReplyTests extends Specification {
+    @Shared
+    ExecutionContext ec
+    @Shared
+    RecordingTelegramSender sender
+
+    def setupSpec() {
+        ec = Moqui.getExecutionContext()
+        sender = new RecordingTelegramSender(ec.getFactory())
+    }
+
+    def cleanupSpec() {
+        sender.destroy()
+        ec.destroy()
+    }
+
+    def setup() {
+        sender.calls.clear()
+    }
+
+    @Unroll
+    def "callback #data replies with #method"() {
+        when:
+        TelegramCallbackHandler.handle(ec, sender, callback("cb-1", data, 1001, 55))
+
+        then:
+        sender.calls.size() == 2
+        sender.calls[0].method == method
+        sender.calls[0].chatId == "1001"
+        sender.calls[0].text == text
+        sender.calls[0].replyMarkup.is(menu)
+        sender.calls[1] == [method: "answerCallbackQuery", callbackQueryId: "cb-1"]
+
+        where:
+        data                    | method            | menu                       | text
+        "category_ecommerce"    | "sendMessage"     | TelegramMenus.ECOMMERCE    | "🛒 流行电商\n\n请选择需要的操作："
+        "category_construction" | "sendMessage"     | TelegramMenus.CONSTRUCTION | "🏗️ 建筑工程服务\n\n请选择您的需求类型："
+        "category_hivemind"     | "sendMessage"     | TelegramMenus.PROJECT      | "🔧 蜂巢项目管理\n\n请选择需要的操作："
+        "category_erp"          | "sendMessage"     | null                       | "💼 大理石 ERP 正在集成中，稍后为您开放。"
+        "sd_publish"            | "sendMessage"     | null                       | "📢 请直接输入要发布的供需内容，我会协助您完成。"
+        "help_info"             | "sendMessage"     | null                       | "ℹ️ 操作指南：\n1️⃣ 选择分类进入对应功能\n2️⃣ 使用智能识别模式直接描述需求\n3️⃣ 随时点击返回主菜单切换功能"
+        "ec_orders"             | "editMessageText" | TelegramMenus.ECOMMERCE    | "🛒 订单管理说明：\n• 使用 `/order create` 指令可由AI助手引导创建订单\n• REST接口：`POST /rest/s1/marketplace/ecommerce/orders`\n• 查看状态：`GET /rest/s1/marketplace/ecommerce/orders/{ecommerceOrderId}`\n\n请选择其他操作或输入订单编号获取详情。"
+    }
+
+    def "replies are sent at reply priority and edits target the callback message"() {
+        when:
+        TelegramCallbackHandler.handle(ec, sender, callback("cb-2", "category_ecommerce", 1001, 55))
+        TelegramCallbackHandler.handle(ec, sender, callback("cb-3", "ec_orders", 1001, 55))
+
+        then:
+        sender.calls[0].priority == TelegramOutboundSender.Priority.REPLY
+        sender.calls[2].messageId == 55
+    }
+
+    def "callback without a chat is only answered"() {
+        when:
+        TelegramCallbackHandler.handle(ec, sender, callback("cb-4", "category_ecommerce", null, null))
+
+        then:
+        sender.calls == [[method: "answerCallbackQuery", callbackQueryId: "cb-4"]]
+    }
+
+    def "main menu keyboard"() {
+        expect:
+        TelegramMenus.MAIN == [inline_keyboard: [
+                [[text: "🏗️ 建筑工程", callback_data: "category_construction"], [text: "🔧 蜂巢项目管理", callback_data: "category_hivemind"]],
+                [[text: "🛒 流行电商", callback_data: "category_ecommerce"], [text: "💼 大理石ERP", callback_data: "category_erp"]],
+                [[text: "🤖 智能识别模式", callback_data: "smart_classify"], [text: "ℹ️ 帮助说明", callback_data: "help_info"]]]]
+    }
+
+    private static TelegramUpdate.CallbackQuery callback(String id, String data, Object chatId, Integer messageId) {
+        Map<String, Object> callbackQuery = [id: id, data: data, from: [id: 1001]]
+        if (chatId != null) callbackQuery.message = [message_id: messageId, chat: [id: chatId]]
+        return TelegramUpdate.parse([callback_query: callbackQuery], null, null).getCallbackQuery()
+    }
+}
+
+/** 只记录调用的发送器；构造时启动的调度线程由 destroy 停止 */
+class RecordingTelegramSender extends TelegramOutboundSender {
+    final List<Map<String, Object>> calls = []
+
+    RecordingTelegramSender(ExecutionContextFactory ecf) { super(ecf) }
+
+    @Override
+    CompletableFuture<Map<String, Object>> sendMessage(String chatId, String text, Map<String, Object> replyMarkup, TelegramOutboundSender.Priority priority) {
+        calls.add([method: "sendMessage", chatId: chatId, text: text, replyMarkup: replyMarkup, priority: priority])
+        return CompletableFuture.completedFuture([ok: true] as Map<String, Object>)
+    }
+
+    @Override
+    CompletableFuture<Map<String, Object>> editMessageText(String chatId, Object messageId, String text, Map<String, Object> replyMarkup) {
+        calls.add([method: "editMessageText", chatId: chatId, messageId: messageId, text: text, replyMarkup: replyMarkup])
+        return CompletableFuture.completedFuture([ok: true] as Map<String, Object>)
+    }
+
+    @Override
+    CompletableFuture<Map<String, Object>> answerCallbackQuery(String callbackQueryId) {
+        calls.add([method: "answerCallbackQuery", callbackQueryId: callbackQueryId])
+        return CompletableFuture.completedFuture([ok: true] as Map<String, Object>)
+    }
+}
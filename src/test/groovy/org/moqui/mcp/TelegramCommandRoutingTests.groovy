@@ -0,0 +1,99 @@
+package org.moqui.mcp
+
+import org.moqui.Moqui
+import org.moqui.context.ExecutionContext
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+/**
+ * 斜杠命令路由与回复的固定输出，锁定从 TelegramServices.groovy 移植后的行为；
+ * 只覆盖不访问数据库和外部服务的分支
+ */
+class TelegramCommandRoutingTests extends Specification {
+    @Shared
+    ExecutionContext ec
+
+    def setupSpec() {
+        ec = Moqui.getExecutionContext()
+    }
+
+    def cleanupSpec() {
+        ec.destroy()
+    }
+
+    @Unroll
+    def "route '#text' to #command:#action"() {
+        when:
+        TelegramCommandRegistry.Route route = TelegramCommandRegistry.route(text)
+
+        then:
+        route.command == command
+        route.action == action
+        route.payload == payload
+        route.firstToken() == firstToken
+
+        where:
+        text                                  | command   | action   | payload                    | firstToken
+        "/project"                            | "project" | "status" | ""                         | null
+        "/project list"                       | "project" | "list"   | ""                         | null
+        "/project 列表"                        | "project" | "list"   | ""                         | null
+        "/PROJECT Sync P-1"                   | "project" | "status" | "P-1"                      | "P-1"
+        "  /product add name=\"a b\" price=9" | "product" | "add"    | "name=\"a b\" price=9"     | "name=\"a"
+        "/product search x"                   | "product" | "list"   | "x"                        | "x"
+        "/order"                              | "order"   | "status" | ""                         | null
+        "/order track EC_ORDER_001 now"       | "order"   | "status" | "EC_ORDER_001 now"         | "EC_ORDER_001"
+        "/order foo"                          | "order"   | "help"   | ""                         | null
+        // 与原先的 startsWith 判断一致：命令前缀之后不要求空格
+        "/orderlist"                          | "order"   | "list"   | ""                         | null
+        "/orders list"                        | "order"   | "help"   | "list"                     | "list"
+    }
+
+    @Unroll
+    def "'#text' is not a command"() {
+        expect:
+        TelegramCommandRegistry.route(text) == null
+
+        where:
+        text << [null, "", "hello", "/start", "/pro", "project list"]
+    }
+
+    @Unroll
+    def "parse args '#payload'"() {
+        expect:
+        TelegramCommandRegistry.parseArgs(payload) == expected
+
+        where:
+        payload                                                  | expected
+        "name=\"智能 投影仪\" price=2299 Stock=12 cat='EC CAT'"    | [name: "智能 投影仪", price: "2299", stock: "12", cat: "EC CAT"]
+        // 未闭合的引号去掉首尾各一个字符
+        "name=\"abc"                                             | [name: "ab"]
+        "a=1 a=2"                                                | [a: "2"]
+        "no pairs here"                                          | [:]
+    }
+
+    @Unroll
+    def "reply to '#text'"() {
+        when:
+        TelegramCommandHandlers.Result result = TelegramCommandHandlers.dispatch(ec, TelegramCommandRegistry.route(text), "EX_MERCHANT")
+
+        then:
+        result.success == success
+        result.intent == intent
+        result.message == message
+
+        where:
+        text                                    | success | intent                   | message
+        "/project foo"                          | true    | "project_command"        | "⚙️ 项目命令用法:\n/project status [项目ID]  查看项目状态\n/project tasks [项目ID]   查看任务列表\n/project list             最近项目概览\n/project create 名称      新建项目\n\n示例:\n/project status PROJECT-1001\n/project tasks WORK1003"
+        "/project create"                       | false   | "project_command"        | "📋 创建项目\n请使用 `/project create 项目名称`，例如：`/project create 装修项目A`"
+        "/product add price=x"                  | false   | "ecommerce_product_add"  | "🛍️ 请提供商品名称，例如：`/product add name=夏季T恤 price=89 stock=50 category=EC_CAT_APPAREL`"
+        "/product add name=a price=x"           | false   | "ecommerce_product_add"  | "⚠️ 价格格式无效，请使用数字，例如 `price=99.9`"
+        "/product add name=a stock=1.5"         | false   | "ecommerce_product_add"  | "⚠️ 库存需为整数，例如 `stock=20`"
+        "/product foo"                          | true    | "ecommerce_command_help" | "🛍️ 商品命令用法：\n• `/product list limit=5 status=ACTIVE` 查看最近商品\n• `/product add name=商品名 price=99.9 stock=10 category=CAT100`\n• `/product update 商品ID price=199 stock=5 status=INACTIVE`\n\n示例：\n`/product add name=智能投影仪 price=2299 stock=12 category=EC_CAT_DIGITAL`\n"
+        "/order create"                         | false   | "ecommerce_order_create" | "请提供客户ID，例如：`/order create customer=EC_CUST_001 product=ECP1001 qty=1 address=东莞松山湖`"
+        "/order create customer=C1"             | false   | "ecommerce_order_create" | "请通过 `items=ECP1001:2,ECP1004:1` 或 `product=ECP1001 qty=2` 指定商品明细"
+        "/order create customer=C1 items=P1:ab" | false   | "ecommerce_order_create" | "⚠️ 第 1 个商品数量无效: ab"
+        "/order status"                         | false   | "ecommerce_order_status" | "请提供订单号，例如：`/order status EC_ORDER_001`"
+        "/order foo"                            | true    | "ecommerce_order_help"   | "🧾 订单命令用法：\n• `/order create customer=EC_CUST_001 items=ECP1001:2,ECP1004:1 address=东莞松山湖`\n• `/order list status=CREATED limit=5`\n• `/order status EC_ORDER_001`\n\n示例：\n`/order create customer=EC_CUST_001 product=ECP1001 qty=1 address=\"东莞松山湖\"`\n"
+    }
+}
@@ -0,0 +1,215 @@
+package org.moqui.mcp;
+
+import org.moqui.Moqui;
+import org.moqui.context.ExecutionContext;
+import org.moqui.entity.EntityValue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * get#DialogMessagePage / get#DialogSessionPage 的规模基准：消息表逐级增长到每个目标行数后，
+ * 分别测首页和 90% 深度游标页的耗时，并与同样深度的 offset 查询对比。
+ * 数据分布：会话数为消息数的 1/200，其中一个大会话占 10% 的消息，10% 的消息与前一条时间相同以覆盖主键排序尾键。
+ * 使用 moqui.conf 配置的数据库；测试数据以 BENCH_ 为前缀，结束时删除（参数 keep 保留）。
+ * 运行：gradle benchDialogHistory --args="10000 100000 1000000 10000000"
+ */
+public class DialogHistoryBench {
+    private static final String SESSION_ENTITY = "mcp.dialog.McpDialogSession";
+    private static final String MESSAGE_ENTITY = "mcp.dialog.McpDialogMessage";
+    // Moqui 默认的表名、列名规则：驼峰转大写下划线
+    private static final String SESSION_TABLE = "MCP_DIALOG_SESSION";
+    private static final String MESSAGE_TABLE = "MCP_DIALOG_MESSAGE";
+    private static final String BIG_SESSION = "BENCH_S0000000";
+    private static final int MERCHANTS = 50;
+    private static final int BATCH = 50_000;
+    private static final long BASE_MILLIS = 1_700_000_000_000L;
+
+    private final ExecutionContext ec;
+    private final Random random = new Random(1);
+    private long messageCount = 0;
+    private int sessionCount = 0;
+
+    private DialogHistoryBench(ExecutionContext ec) {
+        this.ec = ec;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> argList = Arrays.asList(args);
+        boolean keep = argList.contains("keep");
+        long[] sizes = argList.stream().filter(a -> !a.equals("keep")).mapToLong(Long::parseLong).toArray();
+        if (sizes.length == 0) sizes = new long[]{10_000L, 100_000L, 1_000_000L, 10_000_000L};
+
+        ExecutionContext ec = Moqui.getExecutionContext();
+        try {
+            ec.getUser().loginAnonymousIfNoUser();
+            ec.getArtifactExecution().disableAuthz();
+            DialogHistoryBench bench = new DialogHistoryBench(ec);
+            bench.prepare();
+            for (long size : sizes) {
+                bench.growTo(size);
+                bench.measure();
+            }
+            if (!keep) bench.cleanup();
+        } finally {
+            ec.destroy();
+            Moqui.destroyActiveExecutionContextFactory();
+        }
+    }
+
+    private void prepare() throws Exception {
+        // 触发建表，并清掉上次未删除的测试数据
+        ec.getEntity().find(SESSION_ENTITY).count();
+        ec.getEntity().find(MESSAGE_ENTITY).count();
+        cleanup();
+        ec.getTransaction().runRequireNew(60, "Error creating bench merchants", () -> {
+            for (int i = 0; i < MERCHANTS; i++) {
+                ec.getEntity().makeValue("mantle.party.Party").set("partyId", merchantId(i))
+                        .set("partyTypeEnumId", "PtyOrganization").createOrUpdate();
+            }
+            return null;
+        });
+    }
+
+    /** 先补齐会话行（消息表外键引用会话），再批量写入消息，每批一个事务 */
+    private void growTo(long targetMessages) throws Exception {
+        int targetSessions = (int) Math.max(20, targetMessages / 200);
+        while (sessionCount < targetSessions) {
+            int from = sessionCount;
+            int to = Math.min(targetSessions, from + BATCH);
+            jdbc("INSERT INTO " + SESSION_TABLE + " (SESSION_ID, MERCHANT_ID, STATUS, SESSION_TYPE, CREATED_DATE, LAST_MODIFIED_DATE) VALUES (?,?,?,?,?,?)", ps -> {
+                for (int i = from; i < to; i++) {
+                    Timestamp modified = new Timestamp(BASE_MILLIS + (long) random.nextInt((int) Math.min(Integer.MAX_VALUE, targetMessages)) * 1000L);
+                    ps.setString(1, sessionId(i));
+                    ps.setString(2, merchantId(i % MERCHANTS));
+                    ps.setString(3, "ACTIVE");
+                    ps.setString(4, "BENCH");
+                    ps.setTimestamp(5, modified);
+                    ps.setTimestamp(6, modified);
+                    ps.addBatch();
+                }
+            });
+            sessionCount = to;
+        }
+        while (messageCount < targetMessages) {
+            long from = messageCount;
+            long to = Math.min(targetMessages, from + BATCH);
+            jdbc("INSERT INTO " + MESSAGE_TABLE + " (MESSAGE_ID, SESSION_ID, MESSAGE_TYPE, MESSAGE, PROCESSED_DATE) VALUES (?,?,?,?,?)", ps -> {
+                for (long i = from; i < to; i++) {
+                    ps.setString(1, String.format("BENCH_M%012d", i));
+                    ps.setString(2, i % 10 == 0 ? BIG_SESSION : sessionId(1 + random.nextInt(sessionCount - 1)));
+                    ps.setString(3, "TEXT");
+                    ps.setString(4, "benchmark message " + i);
+                    ps.setTimestamp(5, new Timestamp(BASE_MILLIS + (i % 10 != 0 ? i : i - 1) * 1000L));
+                    ps.addBatch();
+                }
+            });
+            messageCount = to;
+        }
+    }
+
+    private void measure() {
+        long bigCount = ec.getEntity().find(MESSAGE_ENTITY).condition("sessionId", BIG_SESSION).count();
+        int messageDepth = (int) (bigCount * 9 / 10);
+        EntityValue messageAt = ec.getEntity().find(MESSAGE_ENTITY).condition("sessionId", BIG_SESSION)
+                .selectFields(Arrays.asList("processedDate", "messageId"))
+                .orderBy("-processedDate").orderBy("-messageId").offset(messageDepth).limit(1).one();
+        String messageCursor = McpDialogHistory.Cursor.format(messageAt.getTimestamp("processedDate"), messageAt.getString("messageId"));
+
+        int sessionDepth = sessionCount * 9 / 10;
+        EntityValue sessionAt = ec.getEntity().find(SESSION_ENTITY)
+                .selectFields(Arrays.asList("lastModifiedDate", "sessionId"))
+                .orderBy("-lastModifiedDate").orderBy("-sessionId").offset(sessionDepth).limit(1).one();
+        String sessionCursor = McpDialogHistory.Cursor.format(sessionAt.getTimestamp("lastModifiedDate"), sessionAt.getString("sessionId"));
+
+        Map<String, Double> results = new LinkedHashMap<>();
+        results.put("msg first page", time(20, () -> messagePage(null)));
+        results.put("msg cursor @90%", time(20, () -> messagePage(messageCursor)));
+        results.put("msg offset @90%", time(3, () -> ec.getEntity().find(MESSAGE_ENTITY).condition("sessionId", BIG_SESSION)
+                .orderBy("-processedDate").orderBy("-messageId").offset(messageDepth).limit(21).list()));
+        results.put("sess first page", time(20, () -> sessionPage(null, null)));
+        results.put("sess cursor @90%", time(20, () -> sessionPage(null, sessionCursor)));
+        results.put("sess offset @90%", time(3, () -> ec.getEntity().find(SESSION_ENTITY)
+                .orderBy("-lastModifiedDate").orderBy("-sessionId").offset(sessionDepth).limit(21).list()));
+        results.put("sess merchant cursor", time(20, () -> sessionPage(merchantId(7), sessionCursor)));
+
+        StringBuilder line = new StringBuilder(String.format("rows=%,12d bigSession=%,d sessions=%,d", messageCount, bigCount, sessionCount));
+        results.forEach((label, micros) -> line.append(String.format("  %s=%,.0fus", label, micros)));
+        System.out.println(line);
+    }
+
+    private Object messagePage(String cursor) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("sessionId", BIG_SESSION);
+        params.put("pageSize", 20);
+        if (cursor != null) params.put("cursor", cursor);
+        Map<String, Object> page = ec.getService().sync().name("moqui.mcp.get#DialogMessagePage").parameters(params).disableAuthz().call();
+        if (((List<?>) page.get("messages")).size() != 20) throw new IllegalStateException("Short message page");
+        return page;
+    }
+
+    private Object sessionPage(String merchantId, String cursor) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("pageSize", 20);
+        if (merchantId != null) params.put("merchantId", merchantId);
+        if (cursor != null) params.put("cursor", cursor);
+        return ec.getService().sync().name("moqui.mcp.get#DialogSessionPage").parameters(params).disableAuthz().call();
+    }
+
+    /** 预热后取多次的中位数，单位微秒 */
+    private static double time(int reps, Supplier<Object> call) {
+        for (int i = 0; i < Math.max(1, reps / 4); i++) call.get();
+        long[] samples = new long[reps];
+        for (int i = 0; i < reps; i++) {
+            long start = System.nanoTime();
+            call.get();
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        return samples[reps / 2] / 1000.0;
+    }
+
+    private void cleanup() throws Exception {
+        jdbcUpdate("DELETE FROM " + MESSAGE_TABLE + " WHERE MESSAGE_ID LIKE 'BENCH_%'");
+        jdbcUpdate("DELETE FROM " + SESSION_TABLE + " WHERE SESSION_ID LIKE 'BENCH_%'");
+        messageCount = 0;
+        sessionCount = 0;
+    }
+
+    interface Binder { void bind(PreparedStatement ps) throws Exception; }
+
+    /** 连接由实体层登记在当前事务中，事务结束时关闭 */
+    private void jdbc(String sql, Binder binder) throws Exception {
+        ec.getTransaction().runRequireNew(3600, "Error seeding benchmark rows", () -> {
+            Connection connection = ec.getEntity().getConnection(ec.getEntity().getEntityGroupName(MESSAGE_ENTITY));
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                binder.bind(ps);
+                ps.executeBatch();
+            }
+            return null;
+        });
+    }
+
+    private void jdbcUpdate(String sql) throws Exception {
+        ec.getTransaction().runRequireNew(3600, "Error deleting benchmark rows", () -> {
+            Connection connection = ec.getEntity().getConnection(ec.getEntity().getEntityGroupName(MESSAGE_ENTITY));
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate(sql);
+            }
+            return null;
+        });
+    }
+
+    private static String sessionId(int i) { return String.format("BENCH_S%07d", i); }
+
+    private static String merchantId(int i) { return String.format("BENCH_MER%03d", i); }
+}
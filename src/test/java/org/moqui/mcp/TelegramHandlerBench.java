@@ -0,0 +1,155 @@
+package org.moqui.mcp;
+
+import com.sun.management.ThreadMXBean;
+import org.moqui.context.ExecutionContext;
+import org.moqui.context.ExecutionContextFactory;
+import org.moqui.entity.EntityList;
+
+import javax.cache.Cache;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.IntFunction;
+
+/**
+ * handle#TelegramMessage 的微基准：按更新计的 CPU 时间、分配量与耗时。
+ * ExecutionContext 由动态代理模拟（查询返回空结果，服务调用返回空 Map），出站发送器已停止，
+ * 测的是更新解析、路由、会话状态与回复组装本身的开销，不含数据库和网络。
+ * 运行：gradle benchTelegram --args="预热次数 测量次数"
+ */
+public class TelegramHandlerBench {
+    private static final Map<String, Object> tools = new HashMap<>();
+    private static final Map<String, Cache<?, ?>> caches = new HashMap<>();
+    private static final Map<String, Object> context = new HashMap<>();
+
+    interface Runner { void run(Map<String, Object> update) throws Exception; }
+
+    public static void main(String[] args) throws Exception {
+        int warmup = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        System.setProperty("mcp.message.writer.spill.dir", Files.createTempDirectory("mcp-bench-spill").toString());
+
+        ExecutionContextFactory ecf = mock(ExecutionContextFactory.class);
+        // 发送器停止后入队立即返回，不访问网络
+        TelegramOutboundSender sender = new TelegramOutboundSender(ecf);
+        sender.destroy();
+        tools.put(TelegramOutboundSender.TOOL_NAME, sender);
+        tools.put(McpSessionStateStore.TOOL_NAME, new McpSessionStateStore(ecf));
+        tools.put(McpRecentTurnStore.TOOL_NAME, new McpRecentTurnStore(ecf));
+        tools.put(McpMessageWriter.TOOL_NAME, new McpMessageWriter(ecf));
+        ExecutionContext ec = mock(ExecutionContext.class);
+
+        Runner handler = update -> {
+            context.clear();
+            context.put("update", update);
+            TelegramMessageHandler.handleTelegramMessage(ec);
+        };
+        bench("callback category_ecommerce", handler, TelegramHandlerBench::callbackUpdate, warmup, iterations);
+        bench("/order list ...", handler, TelegramHandlerBench::commandUpdate, warmup, iterations);
+    }
+
+    private static void bench(String label, Runner runner, IntFunction<Map<String, Object>> updates,
+                              int warmup, int iterations) throws Exception {
+        for (int i = 0; i < warmup; i++) runner.run(updates.apply(i));
+        System.gc();
+        ThreadMXBean mx = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long cpu0 = mx.getCurrentThreadCpuTime();
+        long alloc0 = mx.getThreadAllocatedBytes(threadId);
+        long wall0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) runner.run(updates.apply(i));
+        long cpu = mx.getCurrentThreadCpuTime() - cpu0;
+        long alloc = mx.getThreadAllocatedBytes(threadId) - alloc0;
+        long wall = System.nanoTime() - wall0;
+        System.out.printf("%-30s cpu %8.1f us/update   alloc %8.1f KB/update   wall %8.1f us/update%n",
+                label, cpu / 1000.0 / iterations, alloc / 1024.0 / iterations, wall / 1000.0 / iterations);
+    }
+
+    private static Map<String, Object> callbackUpdate(int i) {
+        Map<String, Object> callback = new HashMap<>();
+        callback.put("id", "cb" + i);
+        callback.put("data", "category_ecommerce");
+        callback.put("from", Collections.singletonMap("id", 1001));
+        Map<String, Object> message = new HashMap<>();
+        message.put("message_id", 55);
+        message.put("chat", Collections.singletonMap("id", 1001));
+        callback.put("message", message);
+        Map<String, Object> update = new HashMap<>();
+        update.put("update_id", i);
+        update.put("callback_query", callback);
+        return update;
+    }
+
+    private static Map<String, Object> commandUpdate(int i) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("message_id", i);
+        message.put("chat", Collections.singletonMap("id", 1001));
+        message.put("from", Collections.singletonMap("id", 1001));
+        message.put("text", "/order list status=CREATED customer=EC_CUST_001 limit=5");
+        Map<String, Object> update = new HashMap<>();
+        update.put("update_id", i);
+        update.put("message", message);
+        return update;
+    }
+
+    /** Moqui 接口的最小模拟：流式调用返回自身，查询为空，服务返回空 Map，事务直接执行回调 */
+    @SuppressWarnings("unchecked")
+    private static <T> T mock(Class<T> type) {
+        List<Object> empty = Collections.emptyList();
+        return (T) Proxy.newProxyInstance(TelegramHandlerBench.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            String name = method.getName();
+            Class<?> returnType = method.getReturnType();
+            switch (name) {
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == args[0];
+                case "toString": return type.getSimpleName() + "Mock";
+                case "getContext": return context;
+                case "getTool": return tools.get((String) args[0]);
+                case "getWeb": case "one": case "getFirst": return null;
+                case "getNowTimestamp": return new Timestamp(System.currentTimeMillis());
+                case "call": return new HashMap<String, Object>();
+                case "runUseOrBegin": case "runRequireNew": return ((Callable<?>) args[args.length - 1]).call();
+                default: break;
+            }
+            if ("getCache".equals(name) && returnType == Cache.class) return caches.computeIfAbsent((String) args[0], key -> cache());
+            if (type == EntityList.class && method.getDeclaringClass().isAssignableFrom(ArrayList.class)) return method.invoke(empty, args);
+            if (returnType == type) return proxy;
+            if (returnType == boolean.class) return false;
+            if (returnType == int.class) return 0;
+            if (returnType == long.class) return 0L;
+            if (returnType == Map.class) return new HashMap<>();
+            if (returnType.isInterface() && returnType.getName().startsWith("org.moqui")) return mock(returnType);
+            return null;
+        });
+    }
+
+    /** javax.cache.Cache 的 HashMap 模拟，只实现处理流程用到的方法 */
+    private static Cache<?, ?> cache() {
+        Map<Object, Object> values = new HashMap<>();
+        return (Cache<?, ?>) Proxy.newProxyInstance(TelegramHandlerBench.class.getClassLoader(), new Class<?>[]{Cache.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "get": return values.get(args[0]);
+                case "put": values.put(args[0], args[1]); return null;
+                case "getAndPut": return values.put(args[0], args[1]);
+                case "putIfAbsent": return values.putIfAbsent(args[0], args[1]) == null;
+                case "containsKey": return values.containsKey(args[0]);
+                case "remove": return args.length == 1 ? values.remove(args[0]) != null : values.remove(args[0], args[1]);
+                case "removeAll":
+                    if (args == null) values.clear(); else values.keySet().removeAll((Set<?>) args[0]);
+                    return null;
+                case "clear": values.clear(); return null;
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == args[0];
+                default: return null;
+            }
+        });
+    }
+}